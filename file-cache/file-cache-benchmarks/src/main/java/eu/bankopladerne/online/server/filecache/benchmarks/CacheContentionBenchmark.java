@@ -0,0 +1,130 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache.benchmarks;
+
+import eu.bankopladerne.online.server.filecache.Cache;
+import eu.bankopladerne.online.server.filecache.CacheFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares throughput of the cache implementations backing the FileCache when accessed concurrently.
+ * <p>
+ * Run all thread counts (1..64) with {@link #main(String[])} or a single thread count from the uber-jar:
+ * <pre>
+ * java -jar target/benchmarks.jar CacheContentionBenchmark -t 16
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheContentionBenchmark {
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+    @Param({"simplest", "segmented", "concurrent", "tinylfu"})
+    public String implementation;
+
+    @Param("1000")
+    public int maxElements;
+
+    @Param("16")
+    public int segments;
+
+    @Param({"uniform", "zipfian"})
+    public String distribution;
+
+    private Cache<Integer, Integer> cache;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final var cacheFactory = switch (implementation) {
+            case "simplest" -> CacheFactory.simplest();
+            case "segmented" -> CacheFactory.segmented(segments);
+            case "concurrent" -> CacheFactory.concurrentLru();
+            case "tinylfu" -> CacheFactory.tinyLfu();
+            default -> throw new IllegalArgumentException("Unknown implementation: " + implementation);
+        };
+        this.cache = cacheFactory.create(maxElements, e -> false, e -> {
+        });
+        for (int i = 0; i < maxElements; i++) {
+            cache.put(i, i);
+        }
+    }
+
+    /**
+     * Per thread source of keys, 90% of the keys are in the cache
+     */
+    @State(Scope.Thread)
+    public static class Keys {
+        private SplittableRandom random;
+        private KeyDistribution keyDistribution;
+
+        @Setup(Level.Trial)
+        public void setUp(CacheContentionBenchmark benchmark) {
+            this.random = new SplittableRandom();
+            this.keyDistribution = KeyDistribution.of(benchmark.distribution, benchmark.maxElements + benchmark.maxElements / 9);
+        }
+
+        int next() {
+            return keyDistribution.next(random);
+        }
+    }
+
+    @Benchmark
+    public Integer get(Keys keys) {
+        return cache.get(keys.next());
+    }
+
+    @Benchmark
+    public Integer put(Keys keys) {
+        final var key = keys.next();
+        return cache.put(key, key);
+    }
+
+    @Benchmark
+    public Integer computeIfAbsent(Keys keys) {
+        return cache.computeIfAbsent(keys.next(), k -> k);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (var threads : THREADS) {
+            final var options = new OptionsBuilder()
+                    .include(CacheContentionBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache.benchmarks;
+
+import eu.bankopladerne.online.server.filecache.CacheFactory;
+import eu.bankopladerne.online.server.filecache.FileCache;
+import eu.bankopladerne.online.server.filecache.FileProducer;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+/**
+ * Throughput of {@link FileCache#produceAndCache(String, FileProducer)} with a fast producer writing small files, so
+ * the overhead of the FileCache itself dominates:
+ * <ul>
+ *     <li>{@code hit} - objects all cached, keys drawn from the cached objects</li>
+ *     <li>{@code miss} - every object new, produced and evicting the least recently used</li>
+ *     <li>{@code mixed} - keys drawn from more objects than cached, the hit ratio given by the distribution; the
+ *     {@code produced} counter reports the objects produced</li>
+ * </ul>
+ * The files are produced on tmpfs ({@code /dev/shm}) when available so the file system is not measured, or in the
+ * directory given by {@code tempDir}.
+ * <p>
+ * Run all thread counts (1..64) with {@link #main(String[])} or a single thread count from the uber-jar:
+ * <pre>
+ * java -jar target/benchmarks.jar FileCacheBenchmark -t 16 -p distribution=zipfian
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileCacheBenchmark {
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+    private static final Path TMPFS = Path.of("/dev/shm");
+
+    @Param({"simplest", "concurrent"})
+    public String implementation;
+
+    @Param({"false", "true"})
+    public boolean singleFlight;
+
+    @Param({"uniform", "zipfian"})
+    public String distribution;
+
+    @Param("1000")
+    public int maxFilesToCache;
+
+    /**
+     * Number of objects requested by {@code mixed}
+     */
+    @Param("10000")
+    public int objects;
+
+    @Param("1024")
+    public int fileSize;
+
+    /**
+     * Whether hits trust the files produced, verified by the scrubber, rather than checking the file on every hit
+     */
+    @Param("false")
+    public boolean scrubbing;
+
+    /**
+     * Directory of the files produced, empty for tmpfs if available
+     */
+    @Param("")
+    public String tempDir;
+
+    private Path directory;
+    private FileCache fileCache;
+    private byte[] content;
+    private String[] objectNames;
+    private final AtomicLong missSequence = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        final var parent = !tempDir.isEmpty() ? Path.of(tempDir)
+                : Files.isDirectory(TMPFS) && Files.isWritable(TMPFS) ? TMPFS
+                : Path.of(System.getProperty("java.io.tmpdir"));
+        this.directory = Files.createTempDirectory(parent, "filecache-benchmark");
+        final var builder = FileCache.builder()
+                .tempPath(directory)
+                .maxFilesToCache(maxFilesToCache)
+                .minFreeSpacePercent(0.0)
+                .maxConcurrency(THREADS[THREADS.length - 1])
+                .cacheFactory(switch (implementation) {
+                    case "simplest" -> CacheFactory.simplest();
+                    case "concurrent" -> CacheFactory.concurrentLru();
+                    default -> throw new IllegalArgumentException("Unknown implementation: " + implementation);
+                })
+                .singleFlight(singleFlight);
+        if (scrubbing) {
+            builder.scrubbing(Duration.ofSeconds(1), 100);
+        }
+        this.fileCache = builder.build();
+        this.content = new byte[fileSize];
+        this.objectNames = IntStream.range(0, Math.max(objects, maxFilesToCache))
+                .mapToObj(i -> "object-" + i)
+                .toArray(String[]::new);
+        for (int i = 0; i < maxFilesToCache; i++) {
+            fileCache.produceAndCache(objectNames[i], this::produce);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fileCache.close();
+        if (Files.exists(directory)) {
+            try (final var walk = Files.walk(directory)) {
+                walk.sorted(Comparator.reverseOrder()).forEach(FileCacheBenchmark::deleteSilently);
+            }
+        }
+    }
+
+    /**
+     * Per thread source of keys, of the cached objects and of all the objects
+     */
+    @State(Scope.Thread)
+    public static class Keys {
+        private SplittableRandom random;
+        private KeyDistribution cached;
+        private KeyDistribution all;
+
+        @Setup(Level.Trial)
+        public void setUp(FileCacheBenchmark benchmark) {
+            this.random = new SplittableRandom();
+            this.cached = KeyDistribution.of(benchmark.distribution, benchmark.maxFilesToCache);
+            this.all = KeyDistribution.of(benchmark.distribution, Math.max(benchmark.objects, benchmark.maxFilesToCache));
+        }
+    }
+
+    /**
+     * Objects produced per thread, reported next to the throughput
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Productions {
+        public long produced;
+    }
+
+    @Benchmark
+    public Path hit(Keys keys) {
+        return fileCache.produceAndCache(objectNames[keys.cached.next(keys.random)], this::produce);
+    }
+
+    @Benchmark
+    public Path miss() {
+        return fileCache.produceAndCache("miss-" + missSequence.incrementAndGet(), this::produce);
+    }
+
+    @Benchmark
+    public Path mixed(Keys keys, Productions productions) {
+        return fileCache.produceAndCache(objectNames[keys.all.next(keys.random)], (objectName, tempFile) -> {
+            productions.produced++;
+            return produce(objectName, tempFile);
+        });
+    }
+
+    private Path produce(String objectName, Path tempFile) {
+        try {
+            return Files.write(tempFile, content);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void deleteSilently(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) {
+            // best effort
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (var threads : THREADS) {
+            final var options = new OptionsBuilder()
+                    .include(FileCacheBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
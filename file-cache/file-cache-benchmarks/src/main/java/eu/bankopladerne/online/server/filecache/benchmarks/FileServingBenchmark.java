@@ -0,0 +1,181 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of serving a cached file to a socket, as done for every request of a cached object:
+ * <ul>
+ *     <li>handlerCopy - what the test-setup handler does for files below sendfile-min-size: read the file through a
+ *     heap buffer and write it to the output stream</li>
+ *     <li>copy - Files.copy to the output stream</li>
+ *     <li>transferToStream - FileChannel.transferTo a channel wrapping the output stream, which the JDK copies through a
+ *     temporary direct buffer and a byte array</li>
+ *     <li>transferTo - FileChannel.transferTo the socket channel, which the JDK implements using sendfile where
+ *     available, as the container does for files handed to it</li>
+ * </ul>
+ * The output stream only takes byte arrays, like the servlet output stream, and the receiving end of the loopback
+ * connection discards the bytes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileServingBenchmark {
+    /**
+     * Size of the heap buffer the handler copies files through
+     */
+    private static final int COPY_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * 14336 is about the size of the images of the test-setup, 8192 the sendfile-min-size of the test-setup where
+     * transferTo (sendfile) starts beating handlerCopy
+     */
+    @Param({"4096", "8192", "14336", "65536", "1048576"})
+    public int fileSize;
+
+    private Path file;
+    private ServerSocketChannel server;
+    private SocketChannel socket;
+    private OutputStream socketOut;
+    private WritableByteChannel socketOutChannel;
+    private Thread discarder;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.file = Files.createTempFile("benchmark", ".png");
+        Files.write(file, new byte[fileSize]);
+        this.server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        this.socket = SocketChannel.open(server.getLocalAddress());
+        final var accepted = server.accept();
+        this.discarder = Thread.ofPlatform().daemon().start(() -> discard(accepted));
+        this.socketOut = new ArrayOutputStream(Channels.newOutputStream(socket));
+        this.socketOutChannel = Channels.newChannel(socketOut);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        socket.close();
+        discarder.join();
+        server.close();
+        Files.delete(file);
+    }
+
+    @Benchmark
+    public long handlerCopy() throws IOException {
+        try (final var channel = FileChannel.open(file)) {
+            final long size = channel.size();
+            final var buffer = ByteBuffer.allocate((int) Math.min(size, COPY_BUFFER_SIZE));
+            long position = 0L;
+            while (position < size) {
+                final int read = channel.read(buffer.clear().limit((int) Math.min(buffer.capacity(), size - position)), position);
+                socketOut.write(buffer.array(), 0, read);
+                position += read;
+            }
+            return position;
+        }
+    }
+
+    @Benchmark
+    public long copy() throws IOException {
+        return Files.copy(file, socketOut);
+    }
+
+    @Benchmark
+    public long transferToStream() throws IOException {
+        try (final var channel = FileChannel.open(file)) {
+            final long size = channel.size();
+            long position = 0L;
+            while (position < size) {
+                position += channel.transferTo(position, size - position, socketOutChannel);
+            }
+            return position;
+        }
+    }
+
+    @Benchmark
+    public long transferTo() throws IOException {
+        try (final var channel = FileChannel.open(file)) {
+            final long size = channel.size();
+            long position = 0L;
+            while (position < size) {
+                position += channel.transferTo(position, size - position, socket);
+            }
+            return position;
+        }
+    }
+
+    /**
+     * Output stream writing byte arrays, hiding the socket channel from the JDK shortcuts for channel streams
+     */
+    private static final class ArrayOutputStream extends OutputStream {
+        private final OutputStream out;
+
+        private ArrayOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+    }
+
+    private static void discard(SocketChannel accepted) {
+        final var buffer = ByteBuffer.allocateDirect(1 << 16);
+        try (accepted) {
+            while (accepted.read(buffer.clear()) >= 0) {
+                // discard
+            }
+        } catch (IOException ignored) {
+            // closed
+        }
+    }
+}
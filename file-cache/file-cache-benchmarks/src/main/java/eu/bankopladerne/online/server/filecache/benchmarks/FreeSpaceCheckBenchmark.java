@@ -0,0 +1,82 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache.benchmarks;
+
+import eu.bankopladerne.online.server.filecache.Cache;
+import eu.bankopladerne.online.server.filecache.FreeSpaceMonitor;
+import eu.bankopladerne.online.server.filecache.SimplestCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of putting elements into the cache when the cleanPredicate checks the free space of the FileStore, as
+ * done by the FileCache while holding the cache lock. Compares querying the FileStore on every put with reading the
+ * value sampled in the background.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FreeSpaceCheckBenchmark {
+    @Param({"direct", "sampled"})
+    public String freeSpace;
+
+    private FreeSpaceMonitor freeSpaceMonitor;
+    private Cache<Integer, Integer> cache;
+    private int key;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        final var fileStore = Files.getFileStore(Files.createTempDirectory("benchmark"));
+        this.freeSpaceMonitor = switch (freeSpace) {
+            case "direct" -> FreeSpaceMonitor.direct(fileStore);
+            case "sampled" -> FreeSpaceMonitor.sampled(fileStore, Duration.ofSeconds(1), Long.MAX_VALUE);
+            default -> throw new IllegalArgumentException("Unknown freeSpace: " + freeSpace);
+        };
+        // the predicate is evaluated on every put of a new key, always evicting the eldest keeps the cache small
+        this.cache = new SimplestCache<>(Integer.MAX_VALUE, e -> freeSpaceMonitor.freeSpacePercent() >= 0.0, e -> {
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        freeSpaceMonitor.close();
+    }
+
+    @Benchmark
+    public Integer put() {
+        final var k = key++;
+        return cache.put(k, k);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache.benchmarks;
+
+import java.util.SplittableRandom;
+
+/**
+ * Distribution of the keys 0..n-1 requested by the benchmarks: uniform, or Zipfian where a few keys are requested
+ * most, as typical for web content. The lower the key the more popular it is.
+ * <p>
+ * Zipfian keys are drawn using the algorithm of Gray et al, "Quickly Generating Billion-Record Synthetic Databases",
+ * as used by YCSB, in constant time per key after computing the zeta constant once.
+ */
+final class KeyDistribution {
+    /**
+     * Skew of the Zipfian distribution, as used by YCSB
+     */
+    private static final double ZIPFIAN_CONSTANT = 0.99;
+
+    private final int n;
+    private final boolean zipfian;
+    private final double zetan;
+    private final double alpha;
+    private final double eta;
+
+    private KeyDistribution(int n, boolean zipfian) {
+        if (n < 2) {
+            throw new IllegalArgumentException("n must be at least 2: " + n);
+        }
+        this.n = n;
+        this.zipfian = zipfian;
+        double zeta = 0.0;
+        for (int i = 1; i <= n; i++) {
+            zeta += 1.0 / Math.pow(i, ZIPFIAN_CONSTANT);
+        }
+        this.zetan = zeta;
+        final var zeta2 = 1.0 + 1.0 / Math.pow(2, ZIPFIAN_CONSTANT);
+        this.alpha = 1.0 / (1.0 - ZIPFIAN_CONSTANT);
+        this.eta = (1.0 - Math.pow(2.0 / n, 1.0 - ZIPFIAN_CONSTANT)) / (1.0 - zeta2 / zetan);
+    }
+
+    /**
+     * Create the distribution by name
+     *
+     * @param name "uniform" or "zipfian"
+     * @param n    Number of keys
+     * @return The distribution
+     */
+    static KeyDistribution of(String name, int n) {
+        return switch (name) {
+            case "uniform" -> new KeyDistribution(n, false);
+            case "zipfian" -> new KeyDistribution(n, true);
+            default -> throw new IllegalArgumentException("Unknown distribution: " + name);
+        };
+    }
+
+    /**
+     * Draw the next key
+     *
+     * @param random Source of randomness, per thread
+     * @return Key in 0..n-1
+     */
+    int next(SplittableRandom random) {
+        if (!zipfian) {
+            return random.nextInt(n);
+        }
+        final var u = random.nextDouble();
+        final var uz = u * zetan;
+        if (uz < 1.0) {
+            return 0;
+        }
+        if (uz < 1.0 + Math.pow(0.5, ZIPFIAN_CONSTANT)) {
+            return 1;
+        }
+        return Math.min(n - 1, (int) (n * Math.pow(eta * u - eta + 1.0, alpha)));
+    }
+}
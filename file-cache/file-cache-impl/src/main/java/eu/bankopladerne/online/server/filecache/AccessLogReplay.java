@@ -0,0 +1,78 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Reconstructs the hot set of objects from a recorded access log, eg to {@link FileCache#warmUp warm up} the
+ * FileCache after a restart.
+ */
+public final class AccessLogReplay {
+
+    private AccessLogReplay() {
+    }
+
+    /**
+     * Returns the names of the objects requested most often according to the access log, most frequent first. Objects
+     * requested equally often are ordered by their first request.
+     *
+     * @param accessLog    Access log, one request per line
+     * @param objectNameOf Extracts the object name from a line of the log, null to skip the line
+     * @param maxObjects   Max number of object names returned
+     * @return Names of the most frequently requested objects
+     * @throws UncheckedIOException If the access log cannot be read
+     */
+    public static List<String> hotSet(Path accessLog, Function<String, String> objectNameOf, int maxObjects) {
+        final Map<String, Long> requests = new LinkedHashMap<>();
+        try (var lines = Files.lines(accessLog)) {
+            lines.map(objectNameOf)
+                    .forEach(objectName -> {
+                        if (objectName != null) {
+                            requests.merge(objectName, 1L, Long::sum);
+                        }
+                    });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        // stable sort keeps the order of the first requests
+        return requests.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()))
+                .limit(maxObjects)
+                .map(Map.Entry::getKey)
+                .toList();
+    }
+
+    /**
+     * Returns the names of the objects requested most often according to the access log, one object name per line
+     *
+     * @param accessLog  Access log, one object name per line
+     * @param maxObjects Max number of object names returned
+     * @return Names of the most frequently requested objects, most frequent first
+     * @throws UncheckedIOException If the access log cannot be read
+     */
+    public static List<String> hotSet(Path accessLog, int maxObjects) {
+        return hotSet(accessLog, line -> line.isBlank() ? null : line.strip(), maxObjects);
+    }
+}
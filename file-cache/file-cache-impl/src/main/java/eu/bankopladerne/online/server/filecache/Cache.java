@@ -0,0 +1,108 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Thread-safe cache as used by the FileCache. Implementations decide on how elements are evicted when the cache is
+ * full.
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public interface Cache<K, V> {
+    /**
+     * Compute and cache V if not already cached, returns V if cached.
+     *
+     * @param key             Key
+     * @param mappingFunction Function to compute V
+     * @return Cached value V for key
+     * @see Map#computeIfAbsent(Object, Function)
+     */
+    V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction);
+
+    /**
+     * Returns V if cached, null if not
+     *
+     * @param key Key
+     * @return Cached value V for key
+     * @see Map#get(Object)
+     */
+    V get(K key);
+
+    /**
+     * Cache a value V for the Key given, returns previously set value or null if not
+     *
+     * @param key   Key
+     * @param value Value V to set for key
+     * @return Previous value or null
+     * @see Map#put(Object, Object)
+     */
+    V put(K key, V value);
+
+    /**
+     * Remove the element cached for the key given without invoking the cleaner, returns the value removed or null
+     *
+     * @param key Key
+     * @return Removed value or null
+     * @see Map#remove(Object)
+     */
+    V remove(K key);
+
+    /**
+     * Evict the element next in line for eviction according to the policy of the cache, invoking the cleaner.
+     *
+     * @return true if an element was evicted, false if the cache is empty
+     */
+    boolean evict();
+
+    /**
+     * Evict the element next in line for eviction if it matches the condition, passing it to the cleaner given instead
+     * of the cleaner of the cache, eg to tell why it is evicted.
+     *
+     * @param condition Whether the element next in line is to be evicted
+     * @param cleaner   Invoked for the element evicted instead of the cleaner of the cache
+     * @return true if an element was evicted, false if the cache is empty or the element next in line does not match
+     */
+    boolean evict(Predicate<Map.Entry<K, V>> condition, Consumer<Map.Entry<K, V>> cleaner);
+
+    /**
+     * Performs the action for each element cached, eldest first in the order the elements would be evicted as far as
+     * the implementation knows. The action is performed while the cache is locked so should be short/fast.
+     *
+     * @param action Action performed for each key and value
+     */
+    void forEach(BiConsumer<? super K, ? super V> action);
+
+    /**
+     * Returns number of elements currently cached
+     *
+     * @return Number of elements in the cache
+     */
+    int size();
+
+    /**
+     * Returns the total time threads have waited for the lock guarding the cache, only measured when contended
+     *
+     * @return Nanoseconds waited for the lock
+     */
+    long lockWaitNanos();
+}
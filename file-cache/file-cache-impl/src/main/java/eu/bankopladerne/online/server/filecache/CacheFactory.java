@@ -0,0 +1,88 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Creates the caches used by the FileCache, making it possible to choose between the available implementations and
+ * eviction policies.
+ *
+ * @see SimplestCache
+ * @see SegmentedCache
+ * @see ConcurrentLruCache
+ * @see TinyLfuCache
+ */
+@FunctionalInterface
+public interface CacheFactory {
+    /**
+     * Create a thread-safe cache containing at most maxElements elements or whatever the cleanPredicate dictates.
+     *
+     * @param maxElements    Max number elements to cache
+     * @param cleanPredicate Alternative predicate - return true if oldest element is to be evicted even if maxElements
+     *                       is not reached
+     * @param cleaner        Reference to a cleaning method doing cleanup of external resources when an element is
+     *                       evicted.
+     * @param <K>            Key type
+     * @param <V>            Value type
+     * @return New cache
+     */
+    <K, V> Cache<K, V> create(int maxElements, Predicate<Map.Entry<K, V>> cleanPredicate, Consumer<Map.Entry<K, V>> cleaner);
+
+    /**
+     * Single LRU cache guarded by a single semaphore
+     *
+     * @return CacheFactory creating SimplestCache instances
+     */
+    static CacheFactory simplest() {
+        return SimplestCache::new;
+    }
+
+    /**
+     * LRU cache with non-blocking reads, recording reads in a buffer drained in batches
+     *
+     * @return CacheFactory creating ConcurrentLruCache instances
+     */
+    static CacheFactory concurrentLru() {
+        return ConcurrentLruCache::new;
+    }
+
+    /**
+     * Cache using the W-TinyLFU policy, only admitting new elements when they are more popular than the ones evicted
+     *
+     * @return CacheFactory creating TinyLfuCache instances
+     */
+    static CacheFactory tinyLfu() {
+        return TinyLfuCache::new;
+    }
+
+    /**
+     * LRU cache split into a number of independently locked segments
+     *
+     * @param segments Number of segments, rounded up to the nearest power of two
+     * @return CacheFactory creating SegmentedCache instances
+     */
+    static CacheFactory segmented(int segments) {
+        return new CacheFactory() {
+            @Override
+            public <K, V> Cache<K, V> create(int maxElements, Predicate<Map.Entry<K, V>> cleanPredicate, Consumer<Map.Entry<K, V>> cleaner) {
+                return new SegmentedCache<>(segments, maxElements, cleanPredicate, cleaner);
+            }
+        };
+    }
+}
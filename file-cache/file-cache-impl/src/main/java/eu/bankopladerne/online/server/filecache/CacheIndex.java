@@ -0,0 +1,146 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Compact on-disk index of the files cached, kept in the cache directory by a persistent FileCache. The index is
+ * written when the FileCache is closed and read (and removed) when the FileCache is created, so an index is only
+ * present after a clean shutdown.
+ * <p>
+ * Binary format: magic, version, number of entries followed by the entries (object name, file name relative to the
+ * cache directory, size, when produced, content hash or empty, checksum, last-access ordinal).
+ */
+final class CacheIndex {
+    static final String FILE_NAME = "filecache.index";
+    private static final int MAGIC = 0x46434958;
+    private static final int VERSION = 1;
+
+    /**
+     * Entry of the index
+     *
+     * @param objectName  Name of the object cached
+     * @param fileName    Name of the file relative to the cache directory
+     * @param size        Size of the file in bytes
+     * @param produced    When the file was produced
+     * @param contentHash Hash of the content of the file, null if not recorded
+     * @param checksum    CRC32C of the content of the file, {@link CachedFile#NO_CHECKSUM} if not recorded
+     * @param ordinal     Last-access ordinal, the eldest entry having the lowest ordinal
+     */
+    record Entry(String objectName, String fileName, long size, Instant produced, String contentHash, long checksum, long ordinal) {
+    }
+
+    private CacheIndex() {
+    }
+
+    /**
+     * Write the index to the directory, replacing the index previously written if any
+     *
+     * @param directory Cache directory
+     * @param entries   Entries to write
+     * @throws IOException If writing fails
+     */
+    static void write(Path directory, List<Entry> entries) throws IOException {
+        final var temp = directory.resolve(FILE_NAME + ".tmp");
+        try (final var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (var entry : entries) {
+                writeString(out, entry.objectName());
+                writeString(out, entry.fileName());
+                out.writeLong(entry.size());
+                out.writeLong(entry.produced().toEpochMilli());
+                writeString(out, entry.contentHash() == null ? "" : entry.contentHash());
+                out.writeLong(entry.checksum());
+                out.writeLong(entry.ordinal());
+            }
+        }
+        Files.move(temp, directory.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read and remove the index from the directory
+     *
+     * @param directory Cache directory
+     * @return Entries ordered by last-access ordinal, eldest first, or null if there is no (valid) index
+     */
+    static List<Entry> readAndRemove(Path directory) {
+        final var indexFile = directory.resolve(FILE_NAME);
+        try (final var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            final int count = in.readInt();
+            final var entries = new ArrayList<Entry>(count);
+            for (int i = 0; i < count; i++) {
+                final var objectName = readString(in);
+                final var fileName = readString(in);
+                final long size = in.readLong();
+                final var produced = Instant.ofEpochMilli(in.readLong());
+                final var contentHash = readString(in);
+                final long checksum = in.readLong();
+                entries.add(new Entry(objectName, fileName, size, produced, contentHash.isEmpty() ? null : contentHash,
+                        checksum, in.readLong()));
+            }
+            entries.sort(Comparator.comparingLong(Entry::ordinal));
+            return entries;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            // a truncated or otherwise unreadable index is as good as no index
+            return null;
+        } finally {
+            deleteSilently(indexFile);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        final var bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid length: " + length);
+        }
+        return new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+
+    private static void deleteSilently(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) {
+            // the index is read once, failing to remove it means it is read again next time
+        }
+    }
+}
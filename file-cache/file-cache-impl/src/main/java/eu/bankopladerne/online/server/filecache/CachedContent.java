@@ -0,0 +1,29 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The content of a cached object and its validators, both from the same lookup so the validators describe the content
+ * returned even when the object is produced again meanwhile
+ *
+ * @param content   Read-only buffer with the content of the object
+ * @param validator Validators of the content
+ * @see FileCache#produceAndCacheContent(String, FileProducer)
+ */
+public record CachedContent(ByteBuffer content, ContentValidator validator) {
+}
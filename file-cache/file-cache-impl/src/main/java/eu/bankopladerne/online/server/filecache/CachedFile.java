@@ -0,0 +1,118 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import java.nio.file.Path;
+import java.time.Instant;
+
+/**
+ * A file/object produced and cached by the FileCache.
+ * <p>
+ * When scrubbing, files produced by the FileCache and files restored from the index (checked against the size recorded
+ * when restored) are verified from the start, so hits do not need to touch the file system. The scrubber verifies the
+ * files in the background.
+ */
+final class CachedFile {
+    /**
+     * Checksum of files cached without recording checksums
+     */
+    static final long NO_CHECKSUM = -1L;
+
+    private final Path path;
+    private final long size;
+    private final Instant produced;
+    private final String contentHash;
+    private final long checksum;
+    private final Object fileKey;
+    private volatile boolean verified;
+
+    /**
+     * Create CachedFile
+     *
+     * @param path        Path to the cached file
+     * @param size        Size of the file in bytes when it was cached
+     * @param produced    When the file was produced
+     * @param contentHash Hash of the content of the file, null unless recording content hashes
+     * @param checksum    CRC32C of the content of the file, {@link #NO_CHECKSUM} unless recording checksums
+     * @param fileKey     Identity of the file in its file system (eg the inode), null if not known
+     */
+    CachedFile(Path path, long size, Instant produced, String contentHash, long checksum, Object fileKey) {
+        this.path = path;
+        this.size = size;
+        this.produced = produced;
+        this.contentHash = contentHash;
+        this.checksum = checksum;
+        this.fileKey = fileKey;
+    }
+
+    /**
+     * Create CachedFile without a file key
+     */
+    CachedFile(Path path, long size, Instant produced, String contentHash, long checksum) {
+        this(path, size, produced, contentHash, checksum, null);
+    }
+
+    /**
+     * Create CachedFile without a checksum
+     */
+    CachedFile(Path path, long size, Instant produced, String contentHash) {
+        this(path, size, produced, contentHash, NO_CHECKSUM);
+    }
+
+    Path path() {
+        return path;
+    }
+
+    long size() {
+        return size;
+    }
+
+    Instant produced() {
+        return produced;
+    }
+
+    String contentHash() {
+        return contentHash;
+    }
+
+    long checksum() {
+        return checksum;
+    }
+
+    /**
+     * Identity of the file in its file system, telling it from a file produced again under the same name. Only
+     * recorded when naming files by hash, null otherwise
+     */
+    Object fileKey() {
+        return fileKey;
+    }
+
+    /**
+     * Whether the file is known to be intact, the in-memory flag sparing a check of the file system on every hit
+     */
+    boolean verified() {
+        return verified;
+    }
+
+    void markVerified() {
+        this.verified = true;
+    }
+
+    @Override
+    public String toString() {
+        return "CachedFile[path=" + path + ", size=" + size + ", produced=" + produced + "]";
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import java.nio.file.Path;
+
+/**
+ * A cached object, its validators and compressed variant, all from the same lookup so they describe the file returned
+ * even when the object is produced again meanwhile
+ *
+ * @param path       The cached file
+ * @param validator  Validators of the file
+ * @param compressed The gzip compressed variant of the file, null if none (yet)
+ * @see FileCache#produceAndCacheObject(String, FileProducer)
+ * @see FileCache.Builder#compressedVariants(java.util.function.Predicate)
+ */
+public record CachedObject(Path path, ContentValidator validator, Path compressed) {
+}
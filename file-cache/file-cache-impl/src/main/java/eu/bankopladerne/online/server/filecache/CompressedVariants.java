@@ -0,0 +1,146 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Predicate;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compressed (gzip) variants of the files cached, produced once per file so the compression is not paid per
+ * response. A variant belongs to the very file it was compressed from: it is dropped when that file is evicted or
+ * replaced, and only recorded if the file is still cached when the compression is done.
+ */
+class CompressedVariants {
+    private final ConcurrentMap<String, Variant> variants = new ConcurrentHashMap<>();
+    private final Predicate<String> compressible;
+    private final Consumer<Path> deleter;
+    private final ObjLongConsumer<Path> bytesChanged;
+
+    /**
+     * A compressed variant of a file cached
+     *
+     * @param primary    The file cached, compared by identity
+     * @param compressed The compressed file
+     * @param size       Size of the compressed file in bytes
+     */
+    private record Variant(CachedFile primary, Path compressed, long size) {
+    }
+
+    /**
+     * Create CompressedVariants
+     *
+     * @param compressible Whether the object, by name, is worth compressing
+     * @param deleter      Deletes a compressed file no longer needed
+     * @param bytesChanged Invoked with compressed files and their size recorded (positive) and dropped (negative)
+     */
+    CompressedVariants(Predicate<String> compressible, Consumer<Path> deleter, ObjLongConsumer<Path> bytesChanged) {
+        this.compressible = compressible;
+        this.deleter = deleter;
+        this.bytesChanged = bytesChanged;
+    }
+
+    boolean compressible(String objectName) {
+        return compressible.test(objectName);
+    }
+
+    /**
+     * Returns the compressed variant of the file cached
+     *
+     * @param objectName Name of the object
+     * @param primary    The file currently cached for the object
+     * @return Path to the compressed file, null if none
+     */
+    Path get(String objectName, CachedFile primary) {
+        final var variant = variants.get(objectName);
+        return variant != null && variant.primary() == primary ? variant.compressed() : null;
+    }
+
+    /**
+     * Compress the file cached into the target, recording it as the variant of the file unless it does not get
+     * smaller or the file is no longer cached when done
+     *
+     * @param objectName  Name of the object
+     * @param primary     The file cached for the object
+     * @param target      File to compress into, deleted if not recorded
+     * @param stillCached Whether the file is still the one cached for the object
+     * @throws IOException If compressing fails
+     */
+    void compress(String objectName, CachedFile primary, Path target, Predicate<CachedFile> stillCached) throws IOException {
+        gzip(primary.path(), target);
+        final long size = Files.size(target);
+        if (size >= primary.size()) {
+            // not compressible after all
+            deleter.accept(target);
+            return;
+        }
+        final var variant = new Variant(primary, target, size);
+        bytesChanged.accept(target, size);
+        final var previous = variants.put(objectName, variant);
+        if (previous != null) {
+            discard(previous);
+        }
+        // the file might have been evicted or replaced meanwhile, not dropping the variant
+        if (!stillCached.test(primary)) {
+            drop(objectName, primary);
+        }
+    }
+
+    /**
+     * Drop the variant of the file, evicted or replaced
+     *
+     * @param objectName Name of the object
+     * @param primary    The file no longer cached
+     */
+    void drop(String objectName, CachedFile primary) {
+        final var variant = variants.get(objectName);
+        if (variant != null && variant.primary() == primary && variants.remove(objectName, variant)) {
+            discard(variant);
+        }
+    }
+
+    /**
+     * Performs the action for each compressed file recorded
+     *
+     * @param action Action performed for each compressed file
+     */
+    void forEachCompressed(Consumer<Path> action) {
+        variants.values().forEach(variant -> action.accept(variant.compressed()));
+    }
+
+    private void discard(Variant variant) {
+        bytesChanged.accept(variant.compressed(), -variant.size());
+        deleter.accept(variant.compressed());
+    }
+
+    private static void gzip(Path source, Path target) throws IOException {
+        try (final var out = new GZIPOutputStream(Files.newOutputStream(target)) {
+            {
+                // paid once per file
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            Files.copy(source, out);
+        }
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Thread-safe LRU cache where reads never block. Elements are held in a ConcurrentHashMap, the LRU order is maintained
+ * in a linked list guarded by a lock.
+ * <p>
+ * Reads do not update the LRU order directly, instead the element read is recorded in a lossy ring buffer which is
+ * drained in batches by whichever thread manages to obtain the lock (tryLock), or by the next write. The read buffer is
+ * striped by thread so reads on different cores do not contend on the same buffer. When a buffer is full, further
+ * reads are not recorded until it is drained, so the LRU order is approximated under heavy load.
+ * <p>
+ * Writes (put and computeIfAbsent of absent elements) take the lock to link the new element and evict the eldest.
+ * The cleaner is invoked while the lock is held so should be short/fast and not lock on other elements.
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public class ConcurrentLruCache<K, V> implements Cache<K, V> {
+    /**
+     * Size of each read buffer, must be a power of two
+     */
+    static final int READ_BUFFER_SIZE = 128;
+    /**
+     * Number of pending reads in the buffer before trying to drain it
+     */
+    static final int READ_BUFFER_DRAIN_THRESHOLD = 32;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+    /**
+     * Number of read buffers, the number of processors rounded up to a power of two
+     */
+    static final int READ_BUFFERS = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+
+    private final ConcurrentHashMap<K, Node<K, V>> data;
+    private final int maxElements;
+    private final Predicate<Map.Entry<K, V>> cleanPredicate;
+    private final Consumer<Map.Entry<K, V>> cleaner;
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final LongAdder lockWait = new LongAdder();
+    /**
+     * Sentinel of the LRU list, head.next is the eldest element, head.prev the youngest. Guarded by evictionLock
+     */
+    private final Node<K, V> head = new Node<>(null, null);
+    private final ReadBuffer<K, V>[] readBuffers = newReadBuffers();
+
+    /**
+     * Create thread-safe LRU cache with non-blocking reads containing at most maxElements elements or whatever the
+     * cleanPredicate dictates. Also supports a cleaning operation which is invoked when old elements are evicted from
+     * the cache.
+     *
+     * @param maxElements    Max number elements to cache
+     * @param cleanPredicate Alternative predicate - return true if oldest element is to be evicted even if maxElements
+     *                       is not reached
+     * @param cleaner        Reference to a cleaning method doing cleanup of external resources when oldest element is
+     *                       evicted.
+     */
+    public ConcurrentLruCache(int maxElements, Predicate<Map.Entry<K, V>> cleanPredicate, Consumer<Map.Entry<K, V>> cleaner) {
+        this.data = new ConcurrentHashMap<>(Math.min(maxElements, 1 << 16));
+        this.maxElements = maxElements;
+        this.cleanPredicate = cleanPredicate;
+        this.cleaner = cleaner;
+        this.head.prev = head;
+        this.head.next = head;
+    }
+
+    /**
+     * Create thread-safe LRU cache with non-blocking reads containing at most maxElements elements.
+     *
+     * @param maxElements Max number elements to cache
+     */
+    public ConcurrentLruCache(int maxElements) {
+        this(maxElements, e -> false, e -> {
+        });
+    }
+
+    @Override
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        final var existing = data.get(key);
+        if (existing != null) {
+            afterRead(existing);
+            return existing.value;
+        }
+        final List<Node<K, V>> created = new ArrayList<>(1);
+        final var node = data.computeIfAbsent(key, k -> {
+            final V value = mappingFunction.apply(k);
+            if (value == null) {
+                return null;
+            }
+            final var newNode = new Node<>(k, value);
+            created.add(newNode);
+            return newNode;
+        });
+        if (node == null) {
+            return null;
+        }
+        if (!created.isEmpty() && created.getFirst() == node) {
+            afterWrite(node);
+        } else {
+            afterRead(node);
+        }
+        return node.value;
+    }
+
+    @Override
+    public V get(K key) {
+        final var node = data.get(key);
+        if (node == null) {
+            return null;
+        }
+        afterRead(node);
+        return node.value;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        final List<V> previous = new ArrayList<>(1);
+        final var node = data.compute(key, (k, n) -> {
+            if (n == null) {
+                return new Node<>(k, value);
+            }
+            previous.add(n.value);
+            n.value = value;
+            return n;
+        });
+        if (previous.isEmpty()) {
+            afterWrite(node);
+        } else {
+            afterRead(node);
+        }
+        return previous.isEmpty() ? null : previous.getFirst();
+    }
+
+    @Override
+    public V remove(K key) {
+        final var node = data.remove(key);
+        if (node == null) {
+            return null;
+        }
+        lockEviction();
+        try {
+            if (node.linked) {
+                unlink(node);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+        return node.value;
+    }
+
+    @Override
+    public boolean evict() {
+        return evict(e -> true, cleaner);
+    }
+
+    @Override
+    public boolean evict(Predicate<Map.Entry<K, V>> condition, Consumer<Map.Entry<K, V>> cleaner) {
+        lockEviction();
+        try {
+            drainReadBuffers();
+            if (head.next == head || !condition.test(head.next.entry())) {
+                return false;
+            }
+            evictEldest(cleaner);
+            return true;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Performs the action for each element cached, least recently used first as far as the reads recorded tell
+     *
+     * @param action Action performed for each key and value
+     */
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        lockEviction();
+        try {
+            drainReadBuffers();
+            for (var node = head.next; node != head; node = node.next) {
+                action.accept(node.key, node.value);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return data.size();
+    }
+
+    @Override
+    public long lockWaitNanos() {
+        return lockWait.sum();
+    }
+
+    private void lockEviction() {
+        if (!evictionLock.tryLock()) {
+            final long start = System.nanoTime();
+            evictionLock.lock();
+            lockWait.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Record the read in the buffer of the current thread, drop it if the buffer is full. Try draining the buffers when
+     * enough reads are pending, but never wait for the lock.
+     */
+    private void afterRead(Node<K, V> node) {
+        final var buffer = readBuffers[stripe()];
+        final long writeCount = buffer.writeCount.get();
+        final long pending = writeCount - buffer.readCount;
+        if (pending < READ_BUFFER_SIZE && buffer.writeCount.compareAndSet(writeCount, writeCount + 1)) {
+            buffer.nodes.lazySet((int) (writeCount & READ_BUFFER_MASK), node);
+        }
+        if (pending >= READ_BUFFER_DRAIN_THRESHOLD && evictionLock.tryLock()) {
+            try {
+                drainReadBuffers();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Read buffer of the current thread, spreading the thread ids over the buffers
+     */
+    private static int stripe() {
+        final long id = Thread.currentThread().threadId() * 0x9E3779B97F4A7C15L;
+        return (int) (id >>> 32) & (READ_BUFFERS - 1);
+    }
+
+    private void afterWrite(Node<K, V> node) {
+        lockEviction();
+        try {
+            drainReadBuffers();
+            // the node might have been removed before getting here
+            if (data.get(node.key) == node) {
+                linkLast(node);
+            }
+            evictIfNeeded();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Guarded by evictionLock
+     */
+    private void drainReadBuffers() {
+        for (final var buffer : readBuffers) {
+            drainReadBuffer(buffer);
+        }
+    }
+
+    /**
+     * Guarded by evictionLock
+     */
+    private void drainReadBuffer(ReadBuffer<K, V> buffer) {
+        long readCount = buffer.readCount;
+        final long writeCount = buffer.writeCount.get();
+        for (; readCount < writeCount; readCount++) {
+            final int index = (int) (readCount & READ_BUFFER_MASK);
+            final var node = buffer.nodes.get(index);
+            if (node == null) {
+                // slot claimed but not yet published, pick it up next time
+                break;
+            }
+            buffer.nodes.lazySet(index, null);
+            if (node.linked) {
+                unlink(node);
+                linkLast(node);
+            }
+        }
+        buffer.readCount = readCount;
+    }
+
+    /**
+     * Guarded by evictionLock
+     */
+    private void evictIfNeeded() {
+        while (data.size() > maxElements && head.next != head) {
+            evictEldest(cleaner);
+        }
+        final var eldest = head.next;
+        if (eldest != head && cleanPredicate.test(eldest.entry())) {
+            evictEldest(cleaner);
+        }
+    }
+
+    /**
+     * Guarded by evictionLock
+     */
+    private void evictEldest(Consumer<Map.Entry<K, V>> cleaner) {
+        final var eldest = head.next;
+        unlink(eldest);
+        if (data.remove(eldest.key, eldest)) {
+            cleaner.accept(eldest.entry());
+        }
+    }
+
+    /**
+     * Guarded by evictionLock
+     */
+    private void linkLast(Node<K, V> node) {
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+        node.linked = true;
+    }
+
+    /**
+     * Guarded by evictionLock
+     */
+    private void unlink(Node<K, V> node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+        node.linked = false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> ReadBuffer<K, V>[] newReadBuffers() {
+        final var buffers = (ReadBuffer<K, V>[]) new ReadBuffer<?, ?>[READ_BUFFERS];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = new ReadBuffer<>();
+        }
+        return buffers;
+    }
+
+    /**
+     * Lossy ring buffer of the reads of the threads mapped to it
+     */
+    private static final class ReadBuffer<K, V> {
+        private final AtomicReferenceArray<Node<K, V>> nodes = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+        private final AtomicLong writeCount = new AtomicLong();
+        /**
+         * Guarded by evictionLock
+         */
+        private volatile long readCount;
+    }
+
+    private static final class Node<K, V> {
+        private final K key;
+        private volatile V value;
+        /**
+         * LRU list, guarded by evictionLock
+         */
+        private Node<K, V> prev;
+        private Node<K, V> next;
+        private boolean linked;
+
+        private Node(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        private Map.Entry<K, V> entry() {
+            return new AbstractMap.SimpleImmutableEntry<>(key, value);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import java.time.Instant;
+
+/**
+ * Validators of a cached object for answering conditional requests, eg the ETag and Last-Modified of an HTTP response
+ *
+ * @param contentHash Strong validator, the SHA-256 hash (hex) of the content computed when the object was produced,
+ *                    null unless the FileCache records content hashes
+ * @param produced    When the object was produced
+ * @see FileCache.Builder#contentHashes(boolean)
+ */
+public record ContentValidator(String contentHash, Instant produced) {
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.InstantSource;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Negative cache of failed productions. After a production fails, requests for the object fail fast with a
+ * {@link ProductionFailedException} until the backoff period has passed; the period doubles with each consecutive
+ * failure up to the max given. The number of failed objects being retried at the same time is bounded, requests for
+ * other failed objects fail fast meanwhile.
+ */
+class FailureBackoff {
+    private final Cache<String, Failure> failures;
+    private final Duration initialBackoff;
+    private final Duration maxBackoff;
+    private final Semaphore retryPermits;
+    private final InstantSource clock;
+
+    /**
+     * A production failed one or more times in a row
+     *
+     * @param failure Failure of the last production
+     * @param count   Number of consecutive failures
+     * @param retryAt When the object may be produced again
+     */
+    private record Failure(Throwable failure, int count, Instant retryAt) {
+    }
+
+    /**
+     * Create negative cache
+     *
+     * @param initialBackoff       Backoff after the first failure
+     * @param maxBackoff           Max backoff after consecutive failures
+     * @param maxConcurrentRetries Max number of failed objects being produced again at the same time
+     * @param maxElements          Max number of failed objects remembered
+     * @param cacheFactory         Creates the cache holding the failures
+     * @param clock                Source of the current time
+     */
+    FailureBackoff(Duration initialBackoff, Duration maxBackoff, int maxConcurrentRetries, int maxElements,
+                   CacheFactory cacheFactory, InstantSource clock) {
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.retryPermits = new Semaphore(maxConcurrentRetries);
+        this.clock = clock;
+        this.failures = cacheFactory.create(maxElements, e -> false, e -> {
+        });
+    }
+
+    /**
+     * Check whether the object may be produced
+     *
+     * @param objectName Name of the object about to be produced
+     * @return true if the object failed before and is being retried, {@link #completed(String, boolean, Throwable)}
+     * must be called when done
+     * @throws ProductionFailedException While backing off or too many failed objects are being retried
+     */
+    boolean beforeProducing(String objectName) {
+        final var failure = failures.get(objectName);
+        if (failure == null) {
+            return false;
+        }
+        if (clock.instant().isBefore(failure.retryAt()) || !retryPermits.tryAcquire()) {
+            throw new ProductionFailedException(objectName, failure.retryAt(), failure.failure());
+        }
+        return true;
+    }
+
+    /**
+     * Record the outcome of the production
+     *
+     * @param objectName Name of the object produced
+     * @param retry      As returned by {@link #beforeProducing(String)}
+     * @param failure    Failure of the production, null if it succeeded
+     */
+    void completed(String objectName, boolean retry, Throwable failure) {
+        try {
+            if (failure == null) {
+                if (retry) {
+                    failures.remove(objectName);
+                }
+                return;
+            }
+            final var previous = retry ? failures.get(objectName) : null;
+            final int count = previous == null ? 1 : previous.count() + 1;
+            failures.put(objectName, new Failure(failure, count, clock.instant().plus(backoff(count))));
+        } finally {
+            if (retry) {
+                retryPermits.release();
+            }
+        }
+    }
+
+    /**
+     * The object was not produced after all, eg rejected by admission control, so there is no outcome to record
+     *
+     * @param objectName Name of the object not produced
+     * @param retry      As returned by {@link #beforeProducing(String)}
+     */
+    void abandoned(String objectName, boolean retry) {
+        if (retry) {
+            retryPermits.release();
+        }
+    }
+
+    /**
+     * The initial backoff doubled for each consecutive failure, at most maxBackoff
+     */
+    private Duration backoff(int count) {
+        final int doublings = Math.min(count - 1, 30);
+        final var backoff = initialBackoff.multipliedBy(1L << doublings);
+        return backoff.compareTo(maxBackoff) > 0 ? maxBackoff : backoff;
+    }
+}
@@ -15,36 +15,172 @@
  */
 package eu.bankopladerne.online.server.filecache;
 
+import eu.bankopladerne.online.server.filecache.FileCacheStats.EvictionCause;
+
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UncheckedIOException;
-import java.nio.file.FileStore;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.InstantSource;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.locks.Lock;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
 
 /**
  * Component managing a cache in the server temp directory of files produced by the application
  */
 public class FileCache implements AutoCloseable {
+    private static final String INVALID_FS_CHARACTERS = "\\/:*?\"<>|";
+    private static final HexFormat HEX_FORMAT = HexFormat.of();
+    /**
+     * Max time to wait for the productions in flight on the executor owned when closing
+     */
+    private static final Duration CLOSE_TIMEOUT = Duration.ofSeconds(30);
     /**
-     * FileStore related to the temporary directory
+     * The directories holding the files cached and the free space of their FileStores
      */
-    private final FileStore fileStore;
+    private final StorageShards storage;
     /**
      * Cache of concurrent locks on object names
      */
-    private final SimplestCache<String, Lock> lockCache;
+    private final Cache<String, ReentrantLock> lockCache;
     /**
      * Cache of Paths of objects/files
      */
-    private final SimplestCache<String, Path> tempCache;
+    private final Cache<String, CachedFile> tempCache;
+    /**
+     * Minimum percentage of free space of the FileStores before evicting files/objects
+     */
+    private final double minFreeSpacePercent;
+    /**
+     * Max number of bytes the cached files may take up, Long.MAX_VALUE if unlimited
+     */
+    private final long maxBytesToCache;
+    /**
+     * Total size in bytes of the files currently cached
+     */
+    private final AtomicLong bytesCached = new AtomicLong();
+    /**
+     * Deletes files evicted from the cache
+     */
+    private final FileDeleter fileDeleter;
+    /**
+     * Productions in flight by object name, in single-flight mode or produced asynchronously
+     */
+    private final ConcurrentMap<String, CompletableFuture<CachedFile>> productionsInFlight = new ConcurrentHashMap<>();
+    /**
+     * Files being produced by streaming producers by object name, read while growing
+     */
+    private final ConcurrentMap<String, GrowingFile> streamsInFlight = new ConcurrentHashMap<>();
+    /**
+     * Join productions in flight rather than locking on object names
+     */
+    private final boolean singleFlight;
+    /**
+     * Executor producing objects asynchronously
+     */
+    private final Executor executor;
+    /**
+     * Executor created by the FileCache, closed when the FileCache is closed
+     */
+    private final ExecutorService ownedExecutor;
+    /**
+     * Keep the files cached when closed, restoring them when created again
+     */
+    private final boolean persistent;
+    /**
+     * Name files by the hash of the object name rather than temporary file names
+     */
+    private final boolean hashedFileNames;
+    /**
+     * Record the hash of the content of the objects produced
+     */
+    private final boolean contentHashes;
+    /**
+     * Unique suffixes of files being produced or evicted when naming files by hash
+     */
+    private final AtomicLong fileSequence = new AtomicLong();
+    /**
+     * Cache directories restored without an index when naming files by hash, their files are adopted when requested
+     */
+    private final Set<Path> unindexedDirectories;
+    /**
+     * Small, frequently requested files held in memory, null unless tiered
+     */
+    private final MemoryTier memoryTier;
+    /**
+     * Objects expire this long after being produced, null if they never expire
+     */
+    private final Duration timeToLive;
+    /**
+     * Objects are produced again in the background this long before expiring
+     */
+    private final Duration refreshAhead;
+    private final InstantSource clock;
+    /**
+     * Names of objects being refreshed in the background
+     */
+    private final Set<String> refreshesInFlight = ConcurrentHashMap.newKeySet();
+    private final FileCacheStats stats;
+    /**
+     * Negative cache of failed productions, null unless backing off
+     */
+    private final FailureBackoff failureBackoff;
+    /**
+     * Compressed variants of the files cached, null unless compressing
+     */
+    private final CompressedVariants compressedVariants;
+    /**
+     * Bounds the number of objects produced at the same time, null if unbounded
+     */
+    private final ProducerAdmission admission;
+    /**
+     * Verifies the files cached in the background, null if not scrubbing
+     */
+    private final Scrubber scrubber;
     /**
-     * Path to the temporary cache of objects/files
+     * Reclaims orphan files in the cache directories in the background, null if not reconciling
      */
-    private final Path tempCacheDir;
+    private final Reconciler reconciler;
 
     /**
      * Create FileCache
@@ -54,7 +190,26 @@ public class FileCache implements AutoCloseable {
      * @param maxConcurrency      Max number of concurrent threads requesting objects/files to be produced
      */
     public FileCache(int maxFilesToCache, double minFreeSpacePercent, int maxConcurrency) {
-        this(createTempDirectory(), maxFilesToCache, minFreeSpacePercent, maxConcurrency);
+        this(builder()
+                .maxFilesToCache(maxFilesToCache)
+                .minFreeSpacePercent(minFreeSpacePercent)
+                .maxConcurrency(maxConcurrency));
+    }
+
+    /**
+     * Create FileCache
+     *
+     * @param maxFilesToCache     Max number of files/objects to cache
+     * @param minFreeSpacePercent Minimum percentage of free space in the temporary file system before deleting files/objects
+     * @param maxConcurrency      Max number of concurrent threads requesting objects/files to be produced
+     * @param cacheFactory        Creates the internal caches, eg {@link CacheFactory#segmented(int)} to reduce contention
+     */
+    public FileCache(int maxFilesToCache, double minFreeSpacePercent, int maxConcurrency, CacheFactory cacheFactory) {
+        this(builder()
+                .maxFilesToCache(maxFilesToCache)
+                .minFreeSpacePercent(minFreeSpacePercent)
+                .maxConcurrency(maxConcurrency)
+                .cacheFactory(cacheFactory));
     }
 
     /**
@@ -66,16 +221,95 @@ public class FileCache implements AutoCloseable {
      * @param maxConcurrency      Max number of concurrent threads requesting objects/files to be produced
      */
     public FileCache(final Path tempPath, final int maxFilesToCache, final double minFreeSpacePercent, final int maxConcurrency) {
-        this.lockCache = new SimplestCache<>(maxConcurrency);
-        this.tempCacheDir = tempPath;
-        this.tempCache = new SimplestCache<>(maxFilesToCache, e -> freeSpacePercent() < minFreeSpacePercent, FileCache::deleteFileEntry);
-        try {
-            this.fileStore = Files.getFileStore(tempPath);
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+        this(tempPath, maxFilesToCache, minFreeSpacePercent, maxConcurrency, CacheFactory.simplest());
+    }
+
+    /**
+     * Create FileCache
+     *
+     * @param tempPath            Location of temporary files
+     * @param maxFilesToCache     Max number of files/objects to cache
+     * @param minFreeSpacePercent Minimum percentage of free space in the temporary file system before deleting files/objects
+     * @param maxConcurrency      Max number of concurrent threads requesting objects/files to be produced
+     * @param cacheFactory        Creates the internal caches, eg {@link CacheFactory#segmented(int)} to reduce contention
+     */
+    public FileCache(final Path tempPath, final int maxFilesToCache, final double minFreeSpacePercent, final int maxConcurrency, final CacheFactory cacheFactory) {
+        this(builder()
+                .tempPath(tempPath)
+                .maxFilesToCache(maxFilesToCache)
+                .minFreeSpacePercent(minFreeSpacePercent)
+                .maxConcurrency(maxConcurrency)
+                .cacheFactory(cacheFactory));
+    }
+
+    private FileCache(final Builder builder) {
+        final var tempPaths = builder.tempPaths != null
+                ? builder.persistent ? builder.tempPaths.stream().map(FileCache::createDirectories).toList() : builder.tempPaths
+                : List.of(createTempDirectory());
+        this.minFreeSpacePercent = builder.minFreeSpacePercent;
+        this.lockCache = builder.cacheFactory.create(builder.maxConcurrency, e -> false, e -> {
+        });
+        this.maxBytesToCache = builder.maxBytesToCache;
+        // evicted by the cache itself when too many files are cached, or not admitted by its policy
+        this.tempCache = builder.cacheFactory.create(builder.maxFilesToCache, e -> false,
+                e -> deleteFileEntry(e, EvictionCause.SIZE));
+        this.stats = new FileCacheStats(bytesCached::get, tempCache::size,
+                () -> tempCache.lockWaitNanos() + lockCache.lockWaitNanos());
+        this.storage = new StorageShards(tempPaths, builder.freeSpaceSampleInterval, builder.freeSpaceResampleAfterBytes);
+        this.fileDeleter = builder.deletionBacklog > 0
+                ? FileDeleter.background(FileCache::deleteFileSilently, builder.deletionBacklog, builder.deletionBatchSize, storage::resample)
+                : FileDeleter.synchronous(FileCache::deleteFileSilently);
+        this.singleFlight = builder.singleFlight;
+        this.ownedExecutor = builder.executor == null ? Executors.newVirtualThreadPerTaskExecutor() : null;
+        this.executor = builder.executor == null ? ownedExecutor : builder.executor;
+        this.persistent = builder.persistent;
+        this.hashedFileNames = builder.hashedFileNames;
+        this.contentHashes = builder.contentHashes;
+        this.timeToLive = builder.timeToLive;
+        this.refreshAhead = builder.refreshAhead;
+        this.clock = builder.clock;
+        this.failureBackoff = builder.initialFailureBackoff != null
+                ? new FailureBackoff(builder.initialFailureBackoff, builder.maxFailureBackoff, builder.maxConcurrentRetries,
+                builder.maxFilesToCache, builder.cacheFactory, builder.clock)
+                : null;
+        this.memoryTier = builder.memoryTierMaxBytes > 0L
+                ? new MemoryTier(builder.memoryTierMaxBytes, builder.memoryTierMaxFileSize,
+                builder.memoryTierPromoteAfterHits, builder.maxFilesToCache, builder.cacheFactory)
+                : null;
+        this.compressedVariants = builder.compressible != null
+                ? new CompressedVariants(builder.compressible, fileDeleter::delete, this::compressedBytesChanged)
+                : null;
+        this.admission = builder.maxConcurrentProductions > 0
+                ? new ProducerAdmission(builder.maxConcurrentProductions, builder.maxQueuedProductions,
+                builder.maxProductionWait, builder.prioritizeWaitedOn)
+                : null;
+        this.scrubber = builder.scrubInterval != null
+                ? new Scrubber(builder.scrubInterval, builder.scrubFilesPerInterval, tempCache::forEach, this::corrupted, stats::scrubbed)
+                : null;
+        this.reconciler = builder.reconcileInterval != null
+                ? new Reconciler(builder.reconcileInterval, builder.reconcileGracePeriod,
+                storage.shards().stream().map(StorageShards.Shard::directory).toList(), this::knownFiles,
+                fileDeleter::delete, (orphan, bytes) -> stats.reclaimed(bytes))
+                : null;
+        this.unindexedDirectories = persistent ? restore() : Set.of();
+        // not before the files cached are restored, or the files in the index would be taken for orphans
+        if (scrubber != null) {
+            scrubber.start();
+        }
+        if (reconciler != null) {
+            reconciler.start();
         }
     }
 
+    /**
+     * Create a Builder for configuring the FileCache
+     *
+     * @return New Builder with default settings
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
     /**
      * Return cached object or produce and return a new object. The objectName must uniquely identify the file/object
      * being created.
@@ -84,129 +318,1571 @@ public class FileCache implements AutoCloseable {
      * Locking is in place to help ensure the same item is not being produced twice in high-traffic situations, but
      * it cannot be ensured. The maxConcurrency setting must be aligned with the max number of concurrent requests
      * expected.
+     * In single-flight mode concurrent requests for the same objectName instead join the production already in
+     * flight, ensuring the object is produced at most once at a time regardless of concurrency.
      *
      * @param objectName       Name of item to produce - must uniquely identify the object to cache/produce
      * @param producerFunction Reference(lambda) to the producing implementation
      * @return Path to the cached, produced file/object
+     * @throws ProductionFailedException  When backing off after the production of the object failed
+     * @throws RejectedExecutionException When too many objects are being produced
+     * @see Builder#singleFlight(boolean)
+     * @see Builder#failureBackoff(Duration, Duration, int)
+     * @see Builder#maxConcurrentProductions(int, int, Duration, boolean)
      */
     public Path produceAndCache(String objectName, FileProducer producerFunction) {
-        final var lock = lockOn(objectName);
-        lock.lock();
+        return cachedOrProduced(objectName, producerFunction).path();
+    }
+
+    /**
+     * Same as {@link #produceAndCache(String, FileProducer)}, also returning the validators and compressed variant of
+     * the file returned, eg for answering conditional requests consistently with the content served even when the
+     * object is produced again meanwhile
+     *
+     * @param objectName       Name of item to produce - must uniquely identify the object to cache/produce
+     * @param producerFunction Reference(lambda) to the producing implementation
+     * @return The cached, produced file/object, its validators and compressed variant
+     * @see #validator(String)
+     */
+    public CachedObject produceAndCacheObject(String objectName, FileProducer producerFunction) {
+        return cachedObject(objectName, cachedOrProduced(objectName, producerFunction));
+    }
+
+    private CachedFile cachedOrProduced(String objectName, FileProducer producerFunction) {
+        final var file = available(objectName, producerFunction);
+        if (file != null) {
+            stats.hit();
+            return file;
+        }
+        stats.miss();
+        return singleFlight
+                ? produceAndCacheSingleFlight(objectName, producerFunction, 1)
+                : produceAndCacheLocked(objectName, producerFunction, 1);
+    }
+
+    /**
+     * Return cached object or produce a new object without blocking the calling thread. If the object is cached the
+     * future returned is already completed, otherwise the object is produced using the executor of the FileCache.
+     *
+     * @param objectName       Name of item to produce - must uniquely identify the object to cache/produce
+     * @param producerFunction Reference(lambda) to the producing implementation
+     * @return Future completed with the Path to the cached, produced file/object
+     * @see #produceAndCache(String, FileProducer)
+     * @see Builder#executor(Executor)
+     */
+    public CompletableFuture<Path> produceAndCacheAsync(String objectName, FileProducer producerFunction) {
+        return cachedOrProducedAsync(objectName, producerFunction).thenApply(CachedFile::path);
+    }
+
+    /**
+     * Same as {@link #produceAndCacheAsync(String, FileProducer)}, also returning the validators and compressed variant
+     * of the file returned
+     *
+     * @param objectName       Name of item to produce - must uniquely identify the object to cache/produce
+     * @param producerFunction Reference(lambda) to the producing implementation
+     * @return Future completed with the cached, produced file/object, its validators and compressed variant
+     * @see #produceAndCacheObject(String, FileProducer)
+     */
+    public CompletableFuture<CachedObject> produceAndCacheObjectAsync(String objectName, FileProducer producerFunction) {
+        return cachedOrProducedAsync(objectName, producerFunction)
+                .thenApply(file -> cachedObject(objectName, file));
+    }
+
+    private CompletableFuture<CachedFile> cachedOrProducedAsync(String objectName, FileProducer producerFunction) {
+        final var file = available(objectName, producerFunction);
+        if (file != null) {
+            stats.hit();
+            return CompletableFuture.completedFuture(file);
+        }
+        stats.miss();
+        return CompletableFuture.supplyAsync(() -> singleFlight
+                ? produceAndCacheSingleFlight(objectName, producerFunction, 1)
+                : produceAndCacheLocked(objectName, producerFunction, 1), executor);
+    }
+
+    /**
+     * Return cached object or have the producer produce a new object asynchronously. If the object is cached the
+     * future returned is already completed. Concurrent requests for the same object join the production in flight.
+     *
+     * @param objectName       Name of item to produce - must uniquely identify the object to cache/produce
+     * @param producerFunction Reference(lambda) to the asynchronous producing implementation
+     * @return Future completed with the Path to the cached, produced file/object
+     * @see #produceAndCacheAsync(String, FileProducer)
+     */
+    public CompletableFuture<Path> produceAsync(String objectName, AsyncFileProducer producerFunction) {
+        final var file = cachedPath(objectName, null);
+        if (file != null) {
+            stats.hit();
+            return CompletableFuture.completedFuture(file);
+        }
+        stats.miss();
+
+        final var production = new CompletableFuture<CachedFile>();
+        final var inFlight = productionsInFlight.putIfAbsent(objectName, production);
+        if (inFlight != null) {
+            return inFlight.thenApply(CachedFile::path);
+        }
+        boolean retry = false;
         try {
-            final var file = cached(objectName);
-            if (file == null || notReadable(file)) {
-                // Create a temporary file for the object to produce
-                final var temp = Files.createTempFile(tempCacheDir, ensureOnlyValidFSCharacters(objectName), "");
-                final Path producedFile;
+            // the previous production might have completed after we looked in the cache
+            final var cachedMeanwhile = available(objectName, null);
+            final var available = cachedMeanwhile != null ? cachedMeanwhile : adopt(objectName);
+            if (available != null) {
+                production.complete(available);
+                productionsInFlight.remove(objectName, production);
+                return production.thenApply(CachedFile::path);
+            }
+
+            retry = retrying(objectName);
+            final var retrying = retry;
+            final var temp = createTempFile(objectName);
+            final long start = stats.startProducing();
+            CompletionStage<Path> producing;
+            try {
+                producing = producerFunction.produceToCache(objectName, temp);
+            } catch (RuntimeException e) {
+                producing = CompletableFuture.failedFuture(e);
+            }
+            producing.whenComplete((producedFile, failure) -> {
+                Throwable failed = failure;
                 try {
-                    producedFile = producerFunction.produceToCache(objectName, temp);
+                    stats.produced(start, failure == null);
+                    if (failure != null) {
+                        deleteFileSilently(temp);
+                        production.completeExceptionally(failure);
+                    } else {
+                        production.complete(cacheProduced(objectName, temp, producedFile));
+                    }
                 } catch (RuntimeException e) {
-                    deleteFileSilently(temp);
-                    throw e;
+                    failed = e;
+                    production.completeExceptionally(e);
+                } finally {
+                    completed(objectName, retrying, failed);
+                    productionsInFlight.remove(objectName, production);
                 }
+            });
+        } catch (ProductionFailedException e) {
+            // failing fast while backing off, not an outcome of its own
+            production.completeExceptionally(e);
+            productionsInFlight.remove(objectName, production);
+        } catch (RuntimeException e) {
+            completed(objectName, retry, e);
+            production.completeExceptionally(e);
+            productionsInFlight.remove(objectName, production);
+        }
+        return production.thenApply(CachedFile::path);
+    }
+
+    /**
+     * Return a channel reading the cached object, or produce a new object reading it while it is being produced. The
+     * object is produced using the executor of the FileCache, writing to a temporary file that concurrent requests for
+     * the same object tail as it grows, so the first bytes can be served before the object is completely produced.
+     * Once produced the object is cached as by {@link #produceAndCache(String, FileProducer)}.
+     * <p>
+     * Reading blocks until more bytes are written or the object is produced; if the production fails (or is
+     * rejected) reading fails with an IOException caused by the failure.
+     *
+     * @param objectName       Name of item to produce - must uniquely identify the object to cache/produce
+     * @param producerFunction Reference(lambda) to the producing implementation, writing to a channel
+     * @return Channel reading the content of the object, must be closed
+     * @see Builder#executor(Executor)
+     */
+    public ReadableByteChannel produceAndStream(String objectName, StreamingFileProducer producerFunction) {
+        final var file = cachedPath(objectName, null);
+        if (file != null) {
+            try {
+                // the file stays readable while open, even when evicted meanwhile
+                final var channel = Files.newByteChannel(file);
+                stats.hit();
+                return channel;
+            } catch (IOException e) {
+                // evicted after we looked in the cache, produce it again
+            }
+        }
+        stats.miss();
 
-                // producer might choose to dump into a different file...
-                if (!producedFile.equals(temp)) {
-                    // remove temp if it is not the one being cached
-                    deleteFileSilently(temp);
+        final var growing = new GrowingFile();
+        final var inFlight = streamsInFlight.putIfAbsent(objectName, growing);
+        if (inFlight != null) {
+            return inFlight.newReader();
+        }
+        final var reader = growing.newReader();
+        final FileProducer writing = (name, tempFile) -> {
+            try (final var channel = growing.writeTo(tempFile)) {
+                producerFunction.produceToChannel(name, channel);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return tempFile;
+        };
+        try {
+            executor.execute(() -> {
+                try {
+                    growing.complete((singleFlight
+                            ? produceAndCacheSingleFlight(objectName, writing, 1)
+                            : produceAndCacheLocked(objectName, writing, 1)).path());
+                } catch (IOException | RuntimeException | Error e) {
+                    growing.abort(e);
+                } finally {
+                    streamsInFlight.remove(objectName, growing);
                 }
+            });
+        } catch (RejectedExecutionException e) {
+            streamsInFlight.remove(objectName, growing);
+            throw e;
+        }
+        return reader;
+    }
 
-                // cache the item produced
-                cacheIt(objectName, producedFile);
+    /**
+     * Produce the object unless cached meanwhile, locking on the object name
+     *
+     * @param requests 1 if requested, 0 if warming up, prioritizing the production by the requests waiting
+     */
+    private CachedFile produceAndCacheLocked(String objectName, FileProducer producerFunction, int requests) {
+        return produceAndCacheLocked(objectName, producerFunction, requests, null);
+    }
 
-                return producedFile;
+    /**
+     * Produce the object unless cached (or refreshed) meanwhile, locking on the object name
+     *
+     * @param requests   1 if requested, 0 if warming up or refreshing, prioritizing the production by the requests waiting
+     * @param refreshing The file cached being refreshed, null if not refreshing
+     */
+    private CachedFile produceAndCacheLocked(String objectName, FileProducer producerFunction, int requests, CachedFile refreshing) {
+        final var lock = lockOn(objectName);
+        if (!lock.tryLock()) {
+            final long start = System.nanoTime();
+            lock.lock();
+            stats.lockWaited(System.nanoTime() - start);
+        }
+        try {
+            final var file = cachedMeanwhile(objectName, refreshing);
+            if (file == null) {
+                return produce(objectName, producerFunction, () -> requests + lock.getQueueLength());
             }
             return file;
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
         } finally {
             lock.unlock();
         }
     }
 
     /**
-     * While closing this FileCache, do remove all files/objects cached
+     * Produce the object unless cached meanwhile, joining the production already in flight if any. The future in
+     * flight is removed when the object is cached (or production fails) so no locks are held while producing.
      *
-     * @throws IOException
+     * @param requests 1 if requested, 0 if warming up, prioritizing the production by the requests waiting
      */
-    @Override
-    public void close() throws IOException {
-        try (final var list = Files.list(tempCacheDir)) {
-            list.forEach(FileCache::deleteFileSilently);
+    private CachedFile produceAndCacheSingleFlight(String objectName, FileProducer producerFunction, int requests) {
+        return produceAndCacheSingleFlight(objectName, producerFunction, requests, null);
+    }
+
+    /**
+     * Produce the object unless cached (or refreshed) meanwhile, joining the production already in flight if any
+     *
+     * @param requests   1 if requested, 0 if warming up or refreshing, prioritizing the production by the requests waiting
+     * @param refreshing The file cached being refreshed, null if not refreshing
+     */
+    private CachedFile produceAndCacheSingleFlight(String objectName, FileProducer producerFunction, int requests, CachedFile refreshing) {
+        final var production = new CompletableFuture<CachedFile>();
+        final var inFlight = productionsInFlight.putIfAbsent(objectName, production);
+        if (inFlight != null) {
+            return join(inFlight);
+        }
+        try {
+            // the previous production might have completed after we looked in the cache
+            final var cachedMeanwhile = cachedMeanwhile(objectName, refreshing);
+            final var produced = cachedMeanwhile != null
+                    ? cachedMeanwhile
+                    : produce(objectName, producerFunction, () -> requests + production.getNumberOfDependents());
+            production.complete(produced);
+            return produced;
+        } catch (RuntimeException | Error e) {
+            production.completeExceptionally(e);
+            throw e;
+        } finally {
+            productionsInFlight.remove(objectName, production);
         }
+    }
 
-        Files.deleteIfExists(tempCacheDir);
+    /**
+     * Returns the object cached meanwhile, null if it is to be produced: when refreshing, unless the file being
+     * refreshed has been replaced meanwhile
+     */
+    private CachedFile cachedMeanwhile(String objectName, CachedFile refreshing) {
+        if (refreshing == null) {
+            return available(objectName, null);
+        }
+        final var file = cached(objectName);
+        return file == null || file == refreshing ? null : file;
     }
 
     /**
-     * Calculate the amount of free space in the temporary directory, in percentage (0..100).
+     * Produce the object into a temporary file and cache it, once admitted
      *
-     * @return percentage of free space in the temporary directory (0..100)
+     * @param waiters Number of requests waiting for the object, prioritizing its admission
      */
-    private double freeSpacePercent() {
+    private CachedFile produce(String objectName, FileProducer producerFunction, IntSupplier waiters) {
+        final var adopted = adopt(objectName);
+        if (adopted != null) {
+            return adopted;
+        }
+        final var retry = retrying(objectName);
         try {
-            final long totalSpace = fileStore.getTotalSpace();
-            final long usableSpace = fileStore.getUsableSpace();
-            return 100.0 * usableSpace / totalSpace;
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+            admit(waiters);
+        } catch (RejectedExecutionException e) {
+            stats.rejected();
+            if (failureBackoff != null) {
+                failureBackoff.abandoned(objectName, retry);
+            }
+            throw e;
+        }
+        Throwable failure = null;
+        try {
+            final var temp = createTempFile(objectName);
+            final long start = stats.startProducing();
+            final Path producedFile;
+            try {
+                producedFile = producerFunction.produceToCache(objectName, temp);
+            } catch (RuntimeException e) {
+                stats.produced(start, false);
+                deleteFileSilently(temp);
+                throw e;
+            }
+            stats.produced(start, true);
+            return cacheProduced(objectName, temp, producedFile);
+        } catch (RuntimeException | Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            if (admission != null) {
+                admission.release();
+            }
+            completed(objectName, retry, failure);
         }
     }
 
     /**
-     * Remove characters from object name that any filesystem might not approve on
+     * Wait for the production to be admitted when bounding the number of objects produced at the same time
      *
-     * @param name Name of object
-     * @return Name of object where weird characters are replaced with '~'
+     * @throws RejectedExecutionException If too many productions are waiting or the wait times out
      */
-    static String ensureOnlyValidFSCharacters(String name) {
-        return Objects.requireNonNull(name).replaceAll("[\\\\/:*?\"<>|]", "~");
+    private void admit(IntSupplier waiters) {
+        if (admission != null) {
+            admission.acquire(waiters);
+        }
     }
 
-    private void cacheIt(String objectName, Path file) {
-        tempCache.put(objectName, file);
+    /**
+     * Check whether the object may be produced when backing off failed productions
+     *
+     * @return true if retrying a failed production
+     * @throws ProductionFailedException While backing off
+     */
+    private boolean retrying(String objectName) {
+        return failureBackoff != null && failureBackoff.beforeProducing(objectName);
     }
 
-    private Path cached(String objectName) {
-        return tempCache.get(objectName);
+    /**
+     * Record the outcome of the production when backing off failed productions
+     */
+    private void completed(String objectName, boolean retry, Throwable failure) {
+        if (failureBackoff != null) {
+            failureBackoff.completed(objectName, retry, failure);
+        }
     }
 
-    private Lock lockOn(String objectName) {
-        return lockCache.computeIfAbsent(objectName, k -> new ReentrantLock());
+    /**
+     * Compress the file produced using the executor, if the object is compressible
+     */
+    private void compressInBackground(String objectName, CachedFile file) {
+        if (compressedVariants == null || !compressedVariants.compressible(objectName)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                Path target = null;
+                try {
+                    target = Files.createTempFile(shardOf(objectName), "filecache", ".gz");
+                    compressedVariants.compress(objectName, file, target, f -> cached(objectName) == f);
+                } catch (IOException | RuntimeException e) {
+                    // served uncompressed
+                    if (target != null) {
+                        deleteFileSilently(target);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ignored) {
+            // served uncompressed
+        }
     }
 
-    private static Path createTempDirectory() {
+    private void compressedBytesChanged(Path compressed, long bytes) {
+        bytesCached.addAndGet(bytes);
+        if (bytes > 0L) {
+            storage.written(compressed, bytes);
+        }
+    }
+
+    /**
+     * Create a temporary file for the object to produce
+     */
+    private Path createTempFile(String objectName) {
         try {
-            return Files.createTempDirectory("filecache");
+            if (hashedFileNames) {
+                final var file = hashedPath(objectName);
+                Files.createDirectories(file.getParent());
+                while (true) {
+                    try {
+                        return Files.createFile(siblingOf(file, ".tmp"));
+                    } catch (FileAlreadyExistsException e) {
+                        // left over from an earlier run, try the next
+                    }
+                }
+            }
+            return Files.createTempFile(shardOf(objectName), ensureOnlyValidFSCharacters(objectName), "");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The file of the object when naming files by hash, in a subdirectory given by the first 2 characters of the hash
+     */
+    private Path hashedPath(String objectName) {
+        final var fileName = hashedFileName(objectName);
+        return shardOf(objectName).resolve(fileName.substring(0, 2)).resolve(fileName);
+    }
+
+    /**
+     * The directory to place a new file of the object in
+     */
+    private Path shardOf(String objectName) {
+        return storage.shardOf(objectName, minFreeSpacePercent).directory();
+    }
+
+    /**
+     * A new file name next to the file given, unique to this FileCache
+     */
+    private Path siblingOf(Path file, String suffix) {
+        return file.resolveSibling(file.getFileName() + suffix + fileSequence.incrementAndGet());
+    }
+
+    /**
+     * Cache the file produced, cleaning up the temporary file if the producer chose another
+     */
+    private CachedFile cacheProduced(String objectName, Path temp, Path producedFile) {
+        try {
+            final Path file;
+            // producer might choose to dump into a different file...
+            if (!producedFile.equals(temp)) {
+                // remove temp if it is not the one being cached
+                deleteFileSilently(temp);
+                file = producedFile;
+            } else if (hashedFileNames) {
+                // readers never see a partially produced file under the final name; next to the temporary file, as
+                // the directory placing the object might have changed while producing
+                file = Files.move(temp, temp.resolveSibling(hashedFileName(objectName)),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                file = temp;
+            }
+
+            // cache the item produced
+            final var cachedFile = describe(file);
+            if (cachedFile.size() > maxBytesToCache) {
+                // would be evicted right away, the path returned deleted
+                deleteFileSilently(file);
+                throw new IOException("%s is %d bytes, more than maxBytesToCache %d"
+                        .formatted(objectName, cachedFile.size(), maxBytesToCache));
+            }
+            if (scrubber != null) {
+                // produced by us, trusted until the scrubber finds otherwise
+                cachedFile.markVerified();
+            }
+            cacheIt(objectName, cachedFile);
+            compressInBackground(objectName, cachedFile);
+            return cachedFile;
         } catch (IOException e) {
+            deleteFileSilently(temp);
             throw new UncheckedIOException(e);
         }
     }
 
     /**
-     * Called when the cache overflows (too many items, or we are running out of temp space)
+     * Return the content of the cached object or produce and return a new object. In tiered mode small, frequently
+     * requested objects are served from memory without touching the file system; other objects are read from the
+     * file cached.
      *
-     * @param e
+     * @param objectName       Name of item to produce - must uniquely identify the object to cache/produce
+     * @param producerFunction Reference(lambda) to the producing implementation
+     * @return Read-only buffer with the content of the cached, produced object
+     * @see Builder#memoryTier(long, int, int)
      */
-    private static void deleteFileEntry(Map.Entry<String, Path> e) {
-        deleteFileSilently(e.getValue());
+    public ByteBuffer produceAndCacheBytes(String objectName, FileProducer producerFunction) {
+        return produceAndCacheContent(objectName, producerFunction).content();
     }
 
-    private static void deleteFileSilently(Path path) {
+    /**
+     * Same as {@link #produceAndCacheBytes(String, FileProducer)}, also returning the validators of the content
+     * returned, eg for answering conditional requests consistently with the content served even when the object is
+     * produced again meanwhile
+     *
+     * @param objectName       Name of item to produce - must uniquely identify the object to cache/produce
+     * @param producerFunction Reference(lambda) to the producing implementation
+     * @return The content of the cached, produced object and its validators
+     * @see #validator(String)
+     */
+    public CachedContent produceAndCacheContent(String objectName, FileProducer producerFunction) {
+        if (memoryTier != null) {
+            final var current = current(objectName, producerFunction);
+            final var inMemory = current == null ? null : memoryTier.get(objectName, current);
+            if (inMemory != null) {
+                stats.hit();
+                return new CachedContent(inMemory, validatorOf(current));
+            }
+        }
+
+        final var file = cachedOrProduced(objectName, producerFunction);
+        if (memoryTier != null) {
+            final var promoted = memoryTier.hit(objectName, file, () -> cached(objectName) == file);
+            if (promoted != null) {
+                return new CachedContent(promoted, validatorOf(file));
+            }
+        }
         try {
-            Files.deleteIfExists(path);
-        } catch (IOException ignored) {
-            // We do not expect problems while deleting ancient temporary files
+            return new CachedContent(ByteBuffer.wrap(Files.readAllBytes(file.path())).asReadOnlyBuffer(), validatorOf(file));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Produce the objects not cached yet, eg the objects known to be hot after a restart, without blocking live
+     * traffic: at most maxConcurrency objects are produced at the same time using the executor of the FileCache, and
+     * when admission control prioritizes productions by the requests waiting, requested objects are admitted first.
+     * Objects failing to be produced (or rejected) are skipped. Returns when all objects are warmed up.
+     *
+     * @param objectNames      Names of the objects to warm up, eg the {@link AccessLogReplay#hotSet(Path, Function, int) hot set}
+     * @param producerFunction Reference(lambda) to the producing implementation
+     * @param maxConcurrency   Max number of objects warmed up at the same time
+     * @return Number of objects warmed up
+     * @throws InterruptedException If interrupted while warming up, objects being produced are still cached
+     * @see Builder#maxConcurrentProductions(int, int, Duration, boolean)
+     */
+    public int warmUp(Stream<String> objectNames, FileProducer producerFunction, int maxConcurrency) throws InterruptedException {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be positive: " + maxConcurrency);
         }
+        final var permits = new Semaphore(maxConcurrency);
+        final var warmedUp = new AtomicInteger();
+        try (objectNames) {
+            final var names = objectNames.iterator();
+            while (names.hasNext()) {
+                final var objectName = names.next();
+                if (cachedPath(objectName, null) != null) {
+                    continue;
+                }
+                permits.acquire();
+                try {
+                    executor.execute(() -> {
+                        try {
+                            if (singleFlight) {
+                                produceAndCacheSingleFlight(objectName, producerFunction, 0);
+                            } else {
+                                produceAndCacheLocked(objectName, producerFunction, 0);
+                            }
+                            warmedUp.incrementAndGet();
+                        } catch (RuntimeException ignored) {
+                            // requested objects will be produced again when requested
+                        } finally {
+                            permits.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    permits.release();
+                    throw e;
+                }
+            }
+        } finally {
+            // wait for the objects being produced
+            permits.acquireUninterruptibly(maxConcurrency);
+        }
+        return warmedUp.get();
     }
 
-    private static boolean notReadable(Path file) {
-        final var readable = Files.isReadable(file);
-        if (!readable) {
-            // This is slightly surprising since FileCache has a reference to a file previously produced but where
-            // some other infrastructure has decided to delete it. This is gracefully handled by the implementation
-            return true;
+    /**
+     * Returns the validators of the object currently cached, eg for answering conditional requests without touching
+     * the file
+     *
+     * @param objectName Name of the object
+     * @return Validators of the object, null if not cached (or expired)
+     * @see Builder#contentHashes(boolean)
+     */
+    public ContentValidator validator(String objectName) {
+        final var file = current(objectName, null);
+        return file == null ? null : validatorOf(file);
+    }
+
+    private CachedObject cachedObject(String objectName, CachedFile file) {
+        final var compressed = compressedVariants == null ? null : compressedVariants.get(objectName, file);
+        return new CachedObject(file.path(), validatorOf(file), compressed);
+    }
+
+    private static ContentValidator validatorOf(CachedFile file) {
+        return new ContentValidator(file.contentHash(), file.produced());
+    }
+
+    /**
+     * Returns the compressed (gzip) variant of the object currently cached, produced in the background after the
+     * object was produced. Use {@link CachedObject#compressed()} to get it from the same lookup as the object served.
+     *
+     * @param objectName Name of the object
+     * @return Path to the gzip compressed content of the object, null if none (yet)
+     * @see Builder#compressedVariants(Predicate)
+     */
+    public Path compressedVariant(String objectName) {
+        final var file = compressedVariants == null ? null : current(objectName, null);
+        return file == null ? null : compressedVariants.get(objectName, file);
+    }
+
+    /**
+     * Returns the statistics of this FileCache
+     *
+     * @return Live statistics
+     */
+    public FileCacheStats stats() {
+        return stats;
+    }
+
+    /**
+     * Returns true if small, frequently requested objects are held in memory
+     *
+     * @return true if tiered
+     * @see #produceAndCacheBytes(String, FileProducer)
+     */
+    public boolean hasMemoryTier() {
+        return memoryTier != null;
+    }
+
+    /**
+     * Returns the number of bytes held in memory, 0 unless tiered
+     *
+     * @return Number of bytes held in memory
+     */
+    public long bytesInMemory() {
+        return memoryTier == null ? 0L : memoryTier.bytes();
+    }
+
+    /**
+     * Returns the total size in bytes of the files currently cached, as measured when they were cached
+     *
+     * @return Number of bytes cached
+     */
+    public long bytesCached() {
+        return bytesCached.get();
+    }
+
+    /**
+     * While closing this FileCache, do remove all files/objects cached. In persistent mode the files are kept and the
+     * index of the files cached is written to the cache directory instead. Productions in flight on the executor owned
+     * by the FileCache are waited for (up to 30 seconds), so the files they cache are in the index or removed.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+            try {
+                ownedExecutor.awaitTermination(CLOSE_TIMEOUT.toNanos(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        storage.close();
+        if (scrubber != null) {
+            scrubber.close();
+        }
+        if (reconciler != null) {
+            reconciler.close();
+        }
+        fileDeleter.close();
+
+        if (persistent) {
+            writeIndex();
+            return;
+        }
+
+        for (var shard : storage.shards()) {
+            try (final var walk = Files.walk(shard.directory())) {
+                // deepest first, deleting the files before the directories holding them
+                walk.sorted(Comparator.reverseOrder()).forEach(FileCache::deleteFileSilently);
+            }
+        }
+    }
+
+    /**
+     * The amount of free space of the FileStore holding the file, in percentage (0..100). Evicting a file only frees
+     * space on its own FileStore, so a FileStore low on free space does not evict files held on the others.
+     *
+     * @param file File cached
+     * @return percentage of free space of the FileStore of the file (0..100)
+     */
+    private double freeSpacePercent(Path file) {
+        return storage.freeSpacePercent(file);
+    }
+
+    /**
+     * Remove characters from object name that any filesystem might not approve on
+     *
+     * @param name Name of object
+     * @return Name of object where weird characters are replaced with '~'
+     */
+    static String ensureOnlyValidFSCharacters(String name) {
+        final var chars = Objects.requireNonNull(name).toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            if (INVALID_FS_CHARACTERS.indexOf(chars[i]) >= 0) {
+                chars[i] = '~';
+            }
+        }
+        return new String(chars);
+    }
+
+    /**
+     * The file produced with its size and, if recorded, the SHA-256 hash and CRC32C checksum of its content, reading
+     * the content once for both
+     */
+    private CachedFile describe(Path file) throws IOException {
+        return describe(file, Files.readAttributes(file, BasicFileAttributes.class), clock.instant());
+    }
+
+    private CachedFile describe(Path file, BasicFileAttributes attributes, Instant produced) throws IOException {
+        final var fileKey = hashedFileNames ? attributes.fileKey() : null;
+        if (!contentHashes && scrubber == null) {
+            return new CachedFile(file, attributes.size(), produced, null, CachedFile.NO_CHECKSUM, fileKey);
+        }
+        final var crc = new CRC32C();
+        try (final var in = new DigestInputStream(new CheckedInputStream(Files.newInputStream(file), crc), MessageDigest.getInstance("SHA-256"))) {
+            in.on(contentHashes);
+            final long size = in.transferTo(OutputStream.nullOutputStream());
+            return new CachedFile(file, size, produced, contentHashes ? HEX_FORMAT.formatHex(in.getMessageDigest().digest()) : null,
+                    scrubber != null ? crc.getValue() : CachedFile.NO_CHECKSUM, fileKey);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Stable file name of the object: the 128-bit MD5 hash of the object name in hex
+     *
+     * @param name Name of object
+     * @return Hash of the name of the object in hex (32 characters)
+     */
+    static String hashedFileName(String name) {
+        try {
+            final var digest = MessageDigest.getInstance("MD5");
+            return HEX_FORMAT.formatHex(digest.digest(Objects.requireNonNull(name).getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void cacheIt(String objectName, CachedFile file) {
+        // large files are likely to change the free space significantly, sample it before the cache checks it
+        storage.written(file.path(), file.size());
+
+        keep(objectName, file);
+    }
+
+    private void keep(String objectName, CachedFile file) {
+        final var previous = tempCache.put(objectName, file);
+        bytesCached.addAndGet(previous == null ? file.size() : file.size() - previous.size());
+        if (previous != null && !previous.path().equals(file.path())) {
+            // produced again into another file, eg when refreshed
+            fileDeleter.delete(previous.path());
+        }
+        if (previous != null && memoryTier != null) {
+            // the content held in memory is outdated
+            memoryTier.remove(objectName);
+        }
+        if (previous != null && compressedVariants != null) {
+            compressedVariants.drop(objectName, previous);
+        }
+
+        // evict the eldest file if its FileStore is low on free space
+        if (minFreeSpacePercent > 0.0) {
+            tempCache.evict(e -> freeSpacePercent(e.getValue().path()) < minFreeSpacePercent,
+                    e -> deleteFileEntry(e, EvictionCause.FREE_SPACE));
+        }
+        // evict until the files cached fit into the byte budget
+        while (bytesCached.get() > maxBytesToCache && tempCache.evict(e -> true, e -> deleteFileEntry(e, EvictionCause.BYTES))) {
+            // evicting...
+        }
+    }
+
+    /**
+     * Restore the files cached from the indexes written when last closed, least recently used first. Files in the cache
+     * directories not in the indexes are deleted; without an index (eg after a crash) the file names can not be mapped
+     * back to the objects so everything found is deleted, unless naming files by hash: then the files named by hash are
+     * kept and adopted when their object is requested (or reclaimed by the reconciler). The files restored are
+     * validated lazily when requested. Directories no longer configured are not restored from.
+     *
+     * @return Directories without an index whose files named by hash are adopted when requested
+     */
+    private Set<Path> restore() {
+        final var entries = new ArrayList<Map.Entry<Path, CacheIndex.Entry>>();
+        final var unindexed = new HashSet<Path>();
+        for (var shard : storage.shards()) {
+            final var indexed = CacheIndex.readAndRemove(shard.directory());
+            if (indexed != null) {
+                indexed.forEach(entry -> entries.add(Map.entry(shard.directory(), entry)));
+            } else if (hashedFileNames) {
+                unindexed.add(shard.directory());
+            }
+        }
+        final var found = new HashMap<Path, BasicFileAttributes>();
+        for (var shard : storage.shards()) {
+            try (final var walk = Files.walk(shard.directory())) {
+                walk.forEach(path -> {
+                    try {
+                        final var attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                        if (attributes.isRegularFile()) {
+                            found.put(path, attributes);
+                        }
+                    } catch (IOException ignored) {
+                        // gone
+                    }
+                });
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // the ordinals are shared by the indexes of all directories
+        entries.sort(Comparator.comparingLong(e -> e.getValue().ordinal()));
+        for (var e : entries) {
+            final var entry = e.getValue();
+            final var path = e.getKey().resolve(entry.fileName());
+            final var attributes = found.get(path);
+            if (attributes == null || attributes.size() != entry.size()) {
+                // deleted or truncated while we were away, produced again when requested
+                continue;
+            }
+            found.remove(path);
+            final var cachedFile = new CachedFile(path, entry.size(), entry.produced(), entry.contentHash(),
+                    entry.checksum(), hashedFileNames ? attributes.fileKey() : null);
+            if (scrubber != null) {
+                // checked against the index just now, trusted until the scrubber finds otherwise
+                cachedFile.markVerified();
+            }
+            keep(entry.objectName(), cachedFile);
+        }
+
+        found.keySet().stream()
+                .filter(path -> !(unindexed.contains(path.getParent().getParent()) && isHashedFileName(path)))
+                .forEach(FileCache::deleteFileSilently);
+        return Set.copyOf(unindexed);
+    }
+
+    /**
+     * Whether the file is named by the hash of an object name, in the subdirectory given by the hash
+     */
+    private static boolean isHashedFileName(Path file) {
+        final var fileName = file.getFileName().toString();
+        return fileName.length() == 32 && fileName.chars().allMatch(HexFormat::isHexDigit)
+                && fileName.startsWith(file.getParent().getFileName().toString());
+    }
+
+    /**
+     * Adopt the file named by the hash of the object left in a directory restored without an index, if any, rather
+     * than producing the object again. The object must not be cached. The file is touched, so a reconciliation that
+     * has not seen it cached yet does not take it for an orphan.
+     *
+     * @return The file adopted, null if none
+     */
+    private CachedFile adopt(String objectName) {
+        if (unindexedDirectories.isEmpty() || cached(objectName) != null) {
+            return null;
+        }
+        final var shard = storage.shardOf(objectName, 0.0);
+        if (!unindexedDirectories.contains(shard.directory())) {
+            return null;
+        }
+        final var fileName = hashedFileName(objectName);
+        final var file = shard.directory().resolve(fileName.substring(0, 2)).resolve(fileName);
+        try {
+            final var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            if (attributes.size() > maxBytesToCache) {
+                return null;
+            }
+            final var cachedFile = describe(file, attributes, attributes.lastModifiedTime().toInstant());
+            if (scrubber != null) {
+                cachedFile.markVerified();
+            }
+            // a reconciliation in progress might not know the file yet, it keeps files younger than its grace period
+            Files.setLastModifiedTime(file, FileTime.from(Instant.now()));
+            keep(objectName, cachedFile);
+            compressInBackground(objectName, cachedFile);
+            return cachedFile;
+        } catch (IOException e) {
+            // not left, or gone meanwhile
+            return null;
+        }
+    }
+
+    /**
+     * Write the index of the files cached in each cache directory, least recently used first
+     */
+    private void writeIndex() throws IOException {
+        final Map<StorageShards.Shard, List<CacheIndex.Entry>> entries = new HashMap<>();
+        final long[] ordinal = {0L};
+        tempCache.forEach((objectName, file) -> {
+            // files the producer chose to put elsewhere are not ours to keep
+            final var shard = storage.shardContaining(file.path());
+            if (shard != null) {
+                entries.computeIfAbsent(shard, k -> new ArrayList<>()).add(new CacheIndex.Entry(objectName,
+                        shard.directory().relativize(file.path()).toString(), file.size(), file.produced(),
+                        file.contentHash(), file.checksum(), ordinal[0]++));
+            }
+        });
+        for (var shard : storage.shards()) {
+            CacheIndex.write(shard.directory(), entries.getOrDefault(shard, List.of()));
+        }
+    }
+
+    private CachedFile cached(String objectName) {
+        return tempCache.get(objectName);
+    }
+
+    /**
+     * Returns the Path of the cached object if it is still there and has not expired, null otherwise
+     *
+     * @see #current(String, FileProducer)
+     */
+    private Path cachedPath(String objectName, FileProducer producerFunction) {
+        final var file = available(objectName, producerFunction);
+        return file == null ? null : file.path();
+    }
+
+    /**
+     * Returns the cached object if its file is still there and has not expired, null otherwise
+     */
+    private CachedFile available(String objectName, FileProducer producerFunction) {
+        final var file = current(objectName, producerFunction);
+        return file == null || !intact(file) ? null : file;
+    }
+
+    /**
+     * Returns the cached object unless it has expired. When the object is about to expire it is produced again in the
+     * background by the producer given, if any, while the current one is still served.
+     */
+    private CachedFile current(String objectName, FileProducer producerFunction) {
+        final var file = cached(objectName);
+        if (file == null || timeToLive == null) {
+            return file;
+        }
+        final var now = clock.instant();
+        final var expires = file.produced().plus(timeToLive);
+        if (!now.isBefore(expires)) {
+            return null;
+        }
+        if (producerFunction != null && !now.isBefore(expires.minus(refreshAhead))) {
+            refreshInBackground(objectName, producerFunction, file);
+        }
+        return file;
+    }
+
+    /**
+     * Produce the object again using the executor, replacing the cached object when done. At most one refresh of an
+     * object is in flight at a time, and it is produced like a request: requests for the object once expired wait for
+     * (or join) the refresh rather than producing the object again.
+     */
+    private void refreshInBackground(String objectName, FileProducer producerFunction, CachedFile refreshing) {
+        if (!refreshesInFlight.add(objectName)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    if (singleFlight) {
+                        produceAndCacheSingleFlight(objectName, producerFunction, 0, refreshing);
+                    } else {
+                        produceAndCacheLocked(objectName, producerFunction, 0, refreshing);
+                    }
+                } catch (RuntimeException ignored) {
+                    // the object simply expires and is produced again when requested
+                } finally {
+                    refreshesInFlight.remove(objectName);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshesInFlight.remove(objectName);
+        }
+    }
+
+    private ReentrantLock lockOn(String objectName) {
+        return lockCache.computeIfAbsent(objectName, k -> new ReentrantLock());
+    }
+
+    /**
+     * Wait for the production in flight, rethrowing what the producer threw
+     */
+    private static CachedFile join(CompletableFuture<CachedFile> inFlight) {
+        try {
+            return inFlight.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw e;
+        }
+    }
+
+    private static Path createDirectories(Path directory) {
+        try {
+            return Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Path createTempDirectory() {
+        try {
+            return Files.createTempDirectory("filecache");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Called when the cache overflows (too many items, too many bytes, or we are running out of temp space)
+     *
+     * @param e     The entry evicted
+     * @param cause Why it is evicted
+     */
+    private void deleteFileEntry(Map.Entry<String, CachedFile> e, EvictionCause cause) {
+        stats.evicted(cause);
+        bytesCached.addAndGet(-e.getValue().size());
+        if (memoryTier != null) {
+            // demoted to nothing, the memory tier only holds files cached
+            memoryTier.remove(e.getKey());
+        }
+        if (compressedVariants != null) {
+            compressedVariants.drop(e.getKey(), e.getValue());
+        }
+        final var path = e.getValue().path();
+        if (hashedFileNames && storage.shardContaining(path) != null) {
+            deleteHashedFile(e.getValue());
+            return;
+        }
+        fileDeleter.delete(path);
+    }
+
+    /**
+     * The object might be produced again under the same name before the file is deleted in the background, so the
+     * file is moved out of the way first. Only the file evicted is moved: a file produced again into its place, which
+     * is about to be cached, is left alone.
+     */
+    private void deleteHashedFile(CachedFile file) {
+        final var path = file.path();
+        try {
+            if (file.fileKey() != null && !file.fileKey().equals(fileKey(path))) {
+                // replaced by a new production
+                return;
+            }
+            final var evicted = Files.move(path, siblingOf(path, ".evicted"), StandardCopyOption.ATOMIC_MOVE);
+            if (file.fileKey() != null && !file.fileKey().equals(fileKey(evicted))) {
+                // replaced after we looked, the file evicted is already gone
+                Files.move(evicted, path, StandardCopyOption.ATOMIC_MOVE);
+                return;
+            }
+            fileDeleter.delete(evicted);
+        } catch (IOException ignored) {
+            // already gone
+        }
+    }
+
+    private static Object fileKey(Path path) throws IOException {
+        return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+    }
+
+    private static void deleteFileSilently(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) {
+            // We do not expect problems while deleting ancient temporary files
+        }
+    }
+
+    /**
+     * Whether the file cached can be served. When scrubbing, the files are trusted, sparing a syscall per hit, and the
+     * scrubber finds files missing or truncated; otherwise the file is checked to be there on every hit. Files restored
+     * from the index are checked against the size recorded once, when restored.
+     */
+    private boolean intact(CachedFile file) {
+        // This is slightly surprising since FileCache has a reference to a file previously produced but where some
+        // other infrastructure has decided to delete it. This is gracefully handled by the implementation
+        return file.verified() || Files.isReadable(file.path());
+    }
+
+    /**
+     * Evict the file failing verification unless produced again meanwhile, it is produced again when requested
+     */
+    private void corrupted(String objectName, CachedFile file) {
+        if (cached(objectName) != file) {
+            return;
+        }
+        final var removed = tempCache.remove(objectName);
+        if (removed != file) {
+            if (removed != null) {
+                // produced again after we looked, keep the new file
+                tempCache.put(objectName, removed);
+            }
+            return;
+        }
+        deleteFileEntry(Map.entry(objectName, file), EvictionCause.CORRUPT);
+    }
+
+    /**
+     * Snapshot of the files known to the cache, the files cached and their compressed variants
+     */
+    private Set<Path> knownFiles() {
+        final var known = new HashSet<Path>();
+        tempCache.forEach((objectName, file) -> known.add(file.path()));
+        if (compressedVariants != null) {
+            compressedVariants.forEachCompressed(known::add);
+        }
+        return known;
+    }
+
+    /**
+     * Reclaim the orphan files now rather than waiting for the reconciler
+     *
+     * @return Number of bytes reclaimed
+     */
+    long reconcile() {
+        return reconciler != null ? reconciler.reconcile() : 0L;
+    }
+
+    /**
+     * Verify the next batch of files cached now rather than waiting for the scrubber
+     *
+     * @return Number of files failing verification, evicted
+     */
+    int scrub() {
+        return scrubber != null ? scrubber.scrub() : 0;
+    }
+
+    /**
+     * Number of requests joining the production in flight of the object in single-flight mode
+     *
+     * @return Requests waiting, 0 if the object is not being produced
+     */
+    int joining(String objectName) {
+        final var inFlight = productionsInFlight.get(objectName);
+        return inFlight != null ? inFlight.getNumberOfDependents() : 0;
+    }
+
+    /**
+     * Builder for the FileCache, settings not given are defaulted
+     */
+    public static final class Builder {
+        private List<Path> tempPaths;
+        private int maxFilesToCache = 1000;
+        private double minFreeSpacePercent = 20.0;
+        private int maxConcurrency = 10;
+        private long maxBytesToCache = Long.MAX_VALUE;
+        private CacheFactory cacheFactory = CacheFactory.simplest();
+        private Duration freeSpaceSampleInterval = Duration.ZERO;
+        private long freeSpaceResampleAfterBytes = Long.MAX_VALUE;
+        private int deletionBacklog;
+        private int deletionBatchSize = 1;
+        private boolean singleFlight;
+        private Executor executor;
+        private boolean persistent;
+        private boolean hashedFileNames;
+        private boolean contentHashes;
+        private Predicate<String> compressible;
+        private long memoryTierMaxBytes;
+        private int memoryTierMaxFileSize;
+        private int memoryTierPromoteAfterHits;
+        private Duration timeToLive;
+        private Duration refreshAhead = Duration.ZERO;
+        private InstantSource clock = InstantSource.system();
+        private Duration initialFailureBackoff;
+        private Duration maxFailureBackoff;
+        private int maxConcurrentRetries;
+        private int maxConcurrentProductions;
+        private int maxQueuedProductions;
+        private Duration maxProductionWait;
+        private boolean prioritizeWaitedOn;
+        private Duration scrubInterval;
+        private int scrubFilesPerInterval;
+        private Duration reconcileInterval;
+        private Duration reconcileGracePeriod;
+
+        private Builder() {
+        }
+
+        /**
+         * @param tempPath Location of temporary files, default a new directory in the default temporary-file directory
+         * @return this
+         */
+        public Builder tempPath(Path tempPath) {
+            this.tempPaths = List.of(Objects.requireNonNull(tempPath, "tempPath"));
+            return this;
+        }
+
+        /**
+         * Shard the files cached across several directories, eg on different volumes to spread the IOPS and capacity.
+         * New files are placed by consistent hashing of the object name, skipping directories whose FileStore is low
+         * on free space. Adding or removing a directory only moves the placement of about 1/n of the objects; in
+         * persistent mode the files of directories removed are not restored.
+         *
+         * @param tempPaths Locations of temporary files, at least one
+         * @return this
+         */
+        public Builder tempPaths(List<Path> tempPaths) {
+            if (tempPaths.isEmpty()) {
+                throw new IllegalArgumentException("tempPaths must not be empty");
+            }
+            this.tempPaths = List.copyOf(tempPaths);
+            return this;
+        }
+
+        /**
+         * @param maxFilesToCache Max number of files/objects to cache, default 1000
+         * @return this
+         */
+        public Builder maxFilesToCache(int maxFilesToCache) {
+            this.maxFilesToCache = requirePositive(maxFilesToCache, "maxFilesToCache");
+            return this;
+        }
+
+        /**
+         * @param minFreeSpacePercent Minimum percentage of free space in the temporary file system before deleting
+         *                            files/objects, default 20.0. Use 0.0 to not check the free space
+         * @return this
+         */
+        public Builder minFreeSpacePercent(double minFreeSpacePercent) {
+            if (minFreeSpacePercent < 0.0 || minFreeSpacePercent > 100.0) {
+                throw new IllegalArgumentException("minFreeSpacePercent must be 0..100: %f".formatted(minFreeSpacePercent));
+            }
+            this.minFreeSpacePercent = minFreeSpacePercent;
+            return this;
+        }
+
+        /**
+         * @param maxConcurrency Max number of concurrent threads requesting objects/files to be produced, default 10
+         * @return this
+         */
+        public Builder maxConcurrency(int maxConcurrency) {
+            this.maxConcurrency = requirePositive(maxConcurrency, "maxConcurrency");
+            return this;
+        }
+
+        /**
+         * Limit the total size of the files cached. Each file is weighed by its size when it is cached, and the least
+         * recently used files are evicted until the total is within the limit. Producing an object larger than the
+         * limit fails rather than caching a file evicted right away.
+         *
+         * @param maxBytesToCache Max number of bytes the cached files may take up, default unlimited
+         * @return this
+         */
+        public Builder maxBytesToCache(long maxBytesToCache) {
+            this.maxBytesToCache = requirePositive(maxBytesToCache, "maxBytesToCache");
+            return this;
+        }
+
+        /**
+         * @param cacheFactory Creates the internal caches, default {@link CacheFactory#simplest()}
+         * @return this
+         */
+        public Builder cacheFactory(CacheFactory cacheFactory) {
+            this.cacheFactory = Objects.requireNonNull(cacheFactory, "cacheFactory");
+            return this;
+        }
+
+        /**
+         * Sample the free space of the temporary file system in the background instead of querying it every time a
+         * file is cached. It is sampled immediately when resampleAfterBytes have been cached since the last sample.
+         *
+         * @param interval           Interval between samples, default zero querying the free space every time
+         * @param resampleAfterBytes Number of bytes cached triggering an immediate sample
+         * @return this
+         */
+        public Builder freeSpaceSampling(Duration interval, long resampleAfterBytes) {
+            if (Objects.requireNonNull(interval, "interval").isNegative()) {
+                throw new IllegalArgumentException("interval cannot be negative: %s".formatted(interval));
+            }
+            this.freeSpaceSampleInterval = interval;
+            this.freeSpaceResampleAfterBytes = requirePositive(resampleAfterBytes, "resampleAfterBytes");
+            return this;
+        }
+
+        /**
+         * Delete files evicted from the cache in the background rather than while the cache lock is held. When more
+         * than maxBacklog files are waiting to be deleted, the thread evicting the file deletes it. The free space is
+         * sampled after each batch of files is deleted.
+         *
+         * @param maxBacklog Max number of files waiting to be deleted, default 0 deleting evicted files immediately
+         * @param batchSize  Max number of files deleted in one go
+         * @return this
+         */
+        public Builder asyncDeletion(int maxBacklog, int batchSize) {
+            this.deletionBacklog = requirePositive(maxBacklog, "maxBacklog");
+            this.deletionBatchSize = requirePositive(batchSize, "batchSize");
+            return this;
+        }
+
+        /**
+         * In single-flight mode concurrent requests for the same object join the production in flight instead of
+         * locking on the object name, guaranteeing the object is produced at most once at a time regardless of the
+         * maxConcurrency setting.
+         *
+         * @param singleFlight true to enable single-flight mode, default false
+         * @return this
+         */
+        public Builder singleFlight(boolean singleFlight) {
+            this.singleFlight = singleFlight;
+            return this;
+        }
+
+        /**
+         * @param executor Executor producing objects requested by {@link #produceAndCacheAsync(String, FileProducer)},
+         *                 default a virtual thread per object produced
+         * @return this
+         */
+        public Builder executor(Executor executor) {
+            this.executor = Objects.requireNonNull(executor, "executor");
+            return this;
+        }
+
+        /**
+         * In persistent mode the files cached survive closing the FileCache: an index of the files is written to the
+         * cache directory when closed and read when created again, so restarts do not start out cold. Requires the
+         * tempPath to be set, the directory is created if it does not exist.
+         *
+         * @param persistent true to enable persistent mode, default false
+         * @return this
+         */
+        public Builder persistent(boolean persistent) {
+            this.persistent = persistent;
+            return this;
+        }
+
+        /**
+         * Name the files cached by the hash of the object name, sharded into 256 subdirectories, instead of temporary
+         * file names. Files are produced into a temporary file and moved into place atomically when done.
+         *
+         * @param hashedFileNames true to name files by hash, default false
+         * @return this
+         */
+        public Builder hashedFileNames(boolean hashedFileNames) {
+            this.hashedFileNames = hashedFileNames;
+            return this;
+        }
+
+        /**
+         * Record the SHA-256 hash of the content of each object when it is produced, a strong validator for answering
+         * conditional requests (ETag) without reading the file again.
+         *
+         * @param contentHashes true to record content hashes, default false
+         * @return this
+         * @see FileCache#validator(String)
+         */
+        public Builder contentHashes(boolean contentHashes) {
+            this.contentHashes = contentHashes;
+            return this;
+        }
+
+        /**
+         * Hold small, frequently requested files in memory (direct ByteBuffers) as well as on disk, served by
+         * {@link #produceAndCacheBytes(String, FileProducer)}. Files evicted from memory stay cached on disk.
+         *
+         * @param maxBytes         Max number of bytes held in memory, default 0 disabling the memory tier
+         * @param maxFileSize      Max size of files held in memory
+         * @param promoteAfterHits Number of times a file is requested before it is held in memory (1..15)
+         * @return this
+         */
+        public Builder memoryTier(long maxBytes, int maxFileSize, int promoteAfterHits) {
+            if (promoteAfterHits > FrequencySketch.MAX_FREQUENCY) {
+                throw new IllegalArgumentException("promoteAfterHits must be at most %d: %d".formatted(FrequencySketch.MAX_FREQUENCY, promoteAfterHits));
+            }
+            this.memoryTierMaxBytes = requirePositive(maxBytes, "maxBytes");
+            this.memoryTierMaxFileSize = requirePositive(maxFileSize, "maxFileSize");
+            this.memoryTierPromoteAfterHits = requirePositive(promoteAfterHits, "promoteAfterHits");
+            return this;
+        }
+
+        /**
+         * Objects expire when they have been cached for the time given, being produced again when requested.
+         *
+         * @param timeToLive Time objects are cached, default objects never expire
+         * @return this
+         */
+        public Builder timeToLive(Duration timeToLive) {
+            if (timeToLive.isNegative() || timeToLive.isZero()) {
+                throw new IllegalArgumentException("timeToLive must be positive: " + timeToLive);
+            }
+            this.timeToLive = timeToLive;
+            return this;
+        }
+
+        /**
+         * Objects requested within the time given before they expire are produced again in the background using the
+         * executor, replacing the cached object when done. Until then the current object is served so requests never
+         * wait for the object to be produced again. Only objects produced by a {@link FileProducer} are refreshed.
+         *
+         * @param refreshAhead Time before expiry objects are refreshed, less than the timeToLive, default zero
+         * @return this
+         * @see #timeToLive(Duration)
+         */
+        public Builder refreshAhead(Duration refreshAhead) {
+            if (refreshAhead.isNegative()) {
+                throw new IllegalArgumentException("refreshAhead must not be negative: " + refreshAhead);
+            }
+            this.refreshAhead = refreshAhead;
+            return this;
+        }
+
+        /**
+         * Remember failed productions: requests for an object whose production failed fail fast with a
+         * {@link ProductionFailedException} until the backoff period has passed. The period doubles with each
+         * consecutive failure of the object.
+         *
+         * @param initialBackoff       Backoff after the first failure, default none remembering no failures
+         * @param maxBackoff           Max backoff after consecutive failures
+         * @param maxConcurrentRetries Max number of failed objects being produced again at the same time, requests for
+         *                             other failed objects fail fast meanwhile
+         * @return this
+         */
+        public Builder failureBackoff(Duration initialBackoff, Duration maxBackoff, int maxConcurrentRetries) {
+            if (initialBackoff.isNegative() || initialBackoff.isZero() || maxBackoff.compareTo(initialBackoff) < 0) {
+                throw new IllegalArgumentException("backoff must be positive and initial at most max: %s, %s".formatted(initialBackoff, maxBackoff));
+            }
+            this.initialFailureBackoff = initialBackoff;
+            this.maxFailureBackoff = maxBackoff;
+            this.maxConcurrentRetries = requirePositive(maxConcurrentRetries, "maxConcurrentRetries");
+            return this;
+        }
+
+        /**
+         * Produce a gzip compressed variant of the compressible objects in the background after they are produced,
+         * eg SVG, JSON or CSV, so the compression is paid once per object rather than per response. The variant is
+         * only kept if it is smaller, and counts towards the bytes cached.
+         *
+         * @param compressible Whether the object, by name, is worth compressing
+         * @return this
+         * @see FileCache#compressedVariant(String)
+         */
+        public Builder compressedVariants(Predicate<String> compressible) {
+            this.compressible = Objects.requireNonNull(compressible, "compressible");
+            return this;
+        }
+
+        /**
+         * Bound the number of objects produced at the same time, unlike maxConcurrency which only bounds the locks on
+         * object names. Further productions wait in a bounded queue and are rejected with a
+         * {@link RejectedExecutionException} when the queue is full or the wait times out. Objects produced by an
+         * {@link AsyncFileProducer} are not bounded.
+         *
+         * @param maxConcurrentProductions Max number of objects produced at the same time, default unbounded
+         * @param maxQueued                Max number of productions waiting to be admitted, 0 to reject immediately
+         * @param maxWait                  Max time a production waits to be admitted
+         * @param prioritizeWaitedOn       Admit the production with most requests waiting for it first rather than
+         *                                 the one waiting longest
+         * @return this
+         */
+        public Builder maxConcurrentProductions(int maxConcurrentProductions, int maxQueued, Duration maxWait, boolean prioritizeWaitedOn) {
+            if (maxQueued < 0 || maxWait.isNegative()) {
+                throw new IllegalArgumentException("maxQueued and maxWait must not be negative: %d, %s".formatted(maxQueued, maxWait));
+            }
+            this.maxConcurrentProductions = requirePositive(maxConcurrentProductions, "maxConcurrentProductions");
+            this.maxQueuedProductions = maxQueued;
+            this.maxProductionWait = maxWait;
+            this.prioritizeWaitedOn = prioritizeWaitedOn;
+            return this;
+        }
+
+        /**
+         * Record the CRC32C checksum of each file when produced and verify the files cached in the background, a
+         * batch of files every interval: files missing, truncated or corrupted are evicted and produced again when
+         * requested. Hits trust the files produced rather than checking the file system on every request.
+         *
+         * @param interval         Interval between batches
+         * @param filesPerInterval Max number of files verified per interval, bounding the IO spent scrubbing
+         * @return this
+         */
+        public Builder scrubbing(Duration interval, int filesPerInterval) {
+            if (interval.isNegative() || interval.isZero()) {
+                throw new IllegalArgumentException("interval must be positive: %s".formatted(interval));
+            }
+            this.scrubInterval = interval;
+            this.scrubFilesPerInterval = requirePositive(filesPerInterval, "filesPerInterval");
+            return this;
+        }
+
+        /**
+         * Reclaim orphan files in the cache directories every interval: files not known to the cache, eg left by a
+         * producer returning another file than the temporary file or by a crash while producing, last modified more
+         * than the grace period ago are deleted. The grace period must exceed the time it takes to produce an object.
+         *
+         * @param interval    Interval between reconciliations
+         * @param gracePeriod Min age of orphan files deleted
+         * @return this
+         */
+        public Builder reconciling(Duration interval, Duration gracePeriod) {
+            if (interval.isNegative() || interval.isZero() || gracePeriod.isNegative()) {
+                throw new IllegalArgumentException("interval must be positive and gracePeriod not negative: %s, %s".formatted(interval, gracePeriod));
+            }
+            this.reconcileInterval = interval;
+            this.reconcileGracePeriod = gracePeriod;
+            return this;
+        }
+
+        /**
+         * @param clock Source of the current time for expiring objects and backing off failures, default the system clock
+         * @return this
+         */
+        public Builder clock(InstantSource clock) {
+            this.clock = Objects.requireNonNull(clock, "clock");
+            return this;
+        }
+
+        /**
+         * Create the FileCache
+         *
+         * @return New FileCache
+         */
+        public FileCache build() {
+            if (persistent && tempPaths == null) {
+                throw new IllegalArgumentException("persistent mode requires tempPath");
+            }
+            if (!refreshAhead.isZero() && (timeToLive == null || refreshAhead.compareTo(timeToLive) >= 0)) {
+                throw new IllegalArgumentException("refreshAhead must be less than timeToLive: %s, %s".formatted(refreshAhead, timeToLive));
+            }
+            return new FileCache(this);
+        }
+
+        private static int requirePositive(int value, String name) {
+            if (value < 1) {
+                throw new IllegalArgumentException("%s must be positive: %d".formatted(name, value));
+            }
+            return value;
+        }
+
+        private static long requirePositive(long value, String name) {
+            if (value < 1L) {
+                throw new IllegalArgumentException("%s must be positive: %d".formatted(name, value));
+            }
+            return value;
         }
-        return false;
     }
 }
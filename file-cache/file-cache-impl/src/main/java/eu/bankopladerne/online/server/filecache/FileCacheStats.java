@@ -0,0 +1,276 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Statistics of a FileCache: requests, productions, evictions and time spent waiting for locks. The counters are
+ * LongAdders updated without allocating on the hot path, the getters sum them up when read.
+ */
+public final class FileCacheStats {
+    /**
+     * Upper bounds of the buckets of the produce time histogram, the last bucket counts everything slower
+     */
+    private static final long[] PRODUCE_TIME_BUCKET_NANOS = Arrays.stream(new long[]{1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000})
+            .map(TimeUnit.MILLISECONDS::toNanos)
+            .toArray();
+
+    /**
+     * Why a file was evicted from the FileCache
+     */
+    public enum EvictionCause {
+        /**
+         * Max number of files cached reached, or not admitted by the eviction policy
+         */
+        SIZE,
+        /**
+         * Max number of bytes cached reached
+         */
+        BYTES,
+        /**
+         * Running out of free space in the temporary file system
+         */
+        FREE_SPACE,
+        /**
+         * Missing, truncated or corrupted as found by the scrubber
+         */
+        CORRUPT
+    }
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder productions = new LongAdder();
+    private final LongAdder productionFailures = new LongAdder();
+    private final LongAdder productionsRejected = new LongAdder();
+    private final LongAdder filesScrubbed = new LongAdder();
+    private final LongAdder orphansReclaimed = new LongAdder();
+    private final LongAdder orphanBytesReclaimed = new LongAdder();
+    private final LongAdder producing = new LongAdder();
+    private final LongAdder produceNanos = new LongAdder();
+    private final LongAdder[] produceTimeHistogram = newLongAdders(PRODUCE_TIME_BUCKET_NANOS.length + 1);
+    private final LongAdder[] evictions = newLongAdders(EvictionCause.values().length);
+    private final LongAdder lockWaitNanos = new LongAdder();
+    private final LongSupplier bytesCached;
+    private final LongSupplier filesCached;
+    private final LongSupplier cacheLockWaitNanos;
+
+    /**
+     * Create statistics of a FileCache
+     *
+     * @param bytesCached        Number of bytes cached
+     * @param filesCached        Number of files cached
+     * @param cacheLockWaitNanos Time waited for the locks of the internal caches
+     */
+    FileCacheStats(LongSupplier bytesCached, LongSupplier filesCached, LongSupplier cacheLockWaitNanos) {
+        this.bytesCached = bytesCached;
+        this.filesCached = filesCached;
+        this.cacheLockWaitNanos = cacheLockWaitNanos;
+    }
+
+    void hit() {
+        hits.increment();
+    }
+
+    void miss() {
+        misses.increment();
+    }
+
+    /**
+     * Record the start of a production
+     *
+     * @return Start time in nanoseconds, passed on to {@link #produced(long, boolean)}
+     */
+    long startProducing() {
+        producing.increment();
+        return System.nanoTime();
+    }
+
+    /**
+     * Record the end of a production
+     *
+     * @param startNanos Start time as returned by {@link #startProducing()}
+     * @param succeeded  true if the object was produced, false if the producer failed
+     */
+    void produced(long startNanos, boolean succeeded) {
+        final long nanos = System.nanoTime() - startNanos;
+        producing.decrement();
+        if (!succeeded) {
+            productionFailures.increment();
+            return;
+        }
+        productions.increment();
+        produceNanos.add(nanos);
+        int bucket = 0;
+        while (bucket < PRODUCE_TIME_BUCKET_NANOS.length && nanos > PRODUCE_TIME_BUCKET_NANOS[bucket]) {
+            bucket++;
+        }
+        produceTimeHistogram[bucket].increment();
+    }
+
+    void rejected() {
+        productionsRejected.increment();
+    }
+
+    void scrubbed() {
+        filesScrubbed.increment();
+    }
+
+    void reclaimed(long bytes) {
+        orphansReclaimed.increment();
+        orphanBytesReclaimed.add(bytes);
+    }
+
+    void evicted(EvictionCause cause) {
+        evictions[cause.ordinal()].increment();
+    }
+
+    void lockWaited(long nanos) {
+        lockWaitNanos.add(nanos);
+    }
+
+    /**
+     * @return Number of requests served by objects cached
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return Number of requests for objects not cached, produced or joining a production in flight
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return Number of objects produced
+     */
+    public long productions() {
+        return productions.sum();
+    }
+
+    /**
+     * @return Number of productions failed
+     */
+    public long productionFailures() {
+        return productionFailures.sum();
+    }
+
+    /**
+     * @return Number of productions rejected by admission control
+     */
+    public long productionsRejected() {
+        return productionsRejected.sum();
+    }
+
+    /**
+     * @return Number of files verified by the scrubber
+     */
+    public long filesScrubbed() {
+        return filesScrubbed.sum();
+    }
+
+    /**
+     * @return Number of orphan files reclaimed by the reconciler
+     */
+    public long orphansReclaimed() {
+        return orphansReclaimed.sum();
+    }
+
+    /**
+     * @return Number of bytes of orphan files reclaimed by the reconciler
+     */
+    public long orphanBytesReclaimed() {
+        return orphanBytesReclaimed.sum();
+    }
+
+    /**
+     * @return Number of objects being produced right now
+     */
+    public long producing() {
+        return producing.sum();
+    }
+
+    /**
+     * @return Total time spent producing objects
+     */
+    public Duration produceTime() {
+        return Duration.ofNanos(produceNanos.sum());
+    }
+
+    /**
+     * Upper bounds of the buckets of the {@link #produceTimeHistogram()}, the histogram has one more bucket counting
+     * everything slower
+     *
+     * @return Upper bounds of the buckets
+     */
+    public static List<Duration> produceTimeBuckets() {
+        return Arrays.stream(PRODUCE_TIME_BUCKET_NANOS).mapToObj(Duration::ofNanos).toList();
+    }
+
+    /**
+     * Number of objects produced within each of the {@link #produceTimeBuckets()}, not cumulative
+     *
+     * @return Count per bucket, the last bucket counting everything slower than the last bound
+     */
+    public long[] produceTimeHistogram() {
+        return Arrays.stream(produceTimeHistogram).mapToLong(LongAdder::sum).toArray();
+    }
+
+    /**
+     * @param cause Cause of eviction
+     * @return Number of files evicted for the cause given
+     */
+    public long evictions(EvictionCause cause) {
+        return evictions[cause.ordinal()].sum();
+    }
+
+    /**
+     * @return Number of bytes cached
+     */
+    public long bytesCached() {
+        return bytesCached.getAsLong();
+    }
+
+    /**
+     * @return Number of files cached
+     */
+    public long filesCached() {
+        return filesCached.getAsLong();
+    }
+
+    /**
+     * Time spent waiting for locks on objects being produced and for the locks of the internal caches, only measured
+     * when contended
+     *
+     * @return Total time waited for locks
+     */
+    public Duration lockWaitTime() {
+        return Duration.ofNanos(lockWaitNanos.sum() + cacheLockWaitNanos.getAsLong());
+    }
+
+    private static LongAdder[] newLongAdders(int size) {
+        final var adders = new LongAdder[size];
+        Arrays.setAll(adders, i -> new LongAdder());
+        return adders;
+    }
+}
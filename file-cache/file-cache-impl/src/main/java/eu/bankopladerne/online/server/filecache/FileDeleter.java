@@ -0,0 +1,143 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Deletes files evicted from the FileCache, either synchronously or queued for a background (virtual) thread
+ * deleting them in batches. The backlog of the queue is bounded; when it is full the file is deleted by the caller.
+ * Closing the FileDeleter deletes the files still queued before returning.
+ */
+class FileDeleter implements AutoCloseable {
+    private final Consumer<Path> deleter;
+    private final BlockingQueue<Path> queue;
+    private final int batchSize;
+    private final Runnable afterBatch;
+    private final Thread worker;
+    private volatile boolean closed;
+
+    private FileDeleter(Consumer<Path> deleter, int maxBacklog, int batchSize, Runnable afterBatch) {
+        this.deleter = Objects.requireNonNull(deleter, "deleter");
+        this.batchSize = batchSize;
+        this.afterBatch = afterBatch;
+        if (maxBacklog > 0) {
+            this.queue = new ArrayBlockingQueue<>(maxBacklog);
+            this.worker = Thread.ofVirtual().name("file-deleter").start(this::deleteQueued);
+        } else {
+            this.queue = null;
+            this.worker = null;
+        }
+    }
+
+    /**
+     * Create FileDeleter deleting files immediately by the calling thread
+     *
+     * @param deleter Deletes a file
+     * @return New FileDeleter
+     */
+    static FileDeleter synchronous(Consumer<Path> deleter) {
+        return new FileDeleter(deleter, 0, 1, () -> {
+        });
+    }
+
+    /**
+     * Create FileDeleter deleting files in the background
+     *
+     * @param deleter    Deletes a file
+     * @param maxBacklog Max number of files queued for deletion, further files are deleted by the caller
+     * @param batchSize  Max number of files deleted in one batch
+     * @param afterBatch Invoked after a batch of files is deleted
+     * @return New FileDeleter
+     */
+    static FileDeleter background(Consumer<Path> deleter, int maxBacklog, int batchSize, Runnable afterBatch) {
+        if (maxBacklog < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("maxBacklog and batchSize must be positive: %d, %d".formatted(maxBacklog, batchSize));
+        }
+        return new FileDeleter(deleter, maxBacklog, batchSize, afterBatch);
+    }
+
+    /**
+     * Delete the file, queue it if running in the background
+     *
+     * @param path File to delete
+     */
+    void delete(Path path) {
+        if (queue == null || closed || !queue.offer(path)) {
+            deleter.accept(path);
+            return;
+        }
+        // closed after we looked, either the final drain picked it up or we take it back and delete it ourselves
+        if (closed && queue.remove(path)) {
+            deleter.accept(path);
+        }
+    }
+
+    /**
+     * Returns the number of files waiting to be deleted
+     *
+     * @return Number of files queued
+     */
+    int backlog() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * Stops the background thread and deletes the files still queued. Files deleted after closing are deleted by the
+     * caller. If interrupted while waiting for the background thread to stop, the interrupt status is restored.
+     */
+    @Override
+    public void close() {
+        if (queue == null || closed) {
+            return;
+        }
+        closed = true;
+        worker.interrupt();
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        final var remaining = new ArrayList<Path>();
+        queue.drainTo(remaining);
+        remaining.forEach(deleter);
+    }
+
+    private void deleteQueued() {
+        final var batch = new ArrayList<Path>(batchSize);
+        while (!closed) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, batchSize - 1);
+            batch.forEach(deleter);
+            batch.clear();
+            try {
+                afterBatch.run();
+            } catch (RuntimeException ignored) {
+                // whatever happens after a batch must not stop the deletion of files
+            }
+        }
+    }
+}
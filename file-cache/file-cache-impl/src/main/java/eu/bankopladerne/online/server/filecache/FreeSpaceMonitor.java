@@ -0,0 +1,142 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileStore;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the percentage of free space in a FileStore without querying the FileStore on every check.
+ * <p>
+ * The free space is sampled in the background at a fixed interval and read as a volatile value. As the free space
+ * might change significantly in between, it is also sampled immediately when a number of bytes have been written
+ * since the last sample. If the interval is zero the FileStore is queried on every check.
+ */
+public final class FreeSpaceMonitor implements AutoCloseable {
+    private final FileStore fileStore;
+    private final long resampleAfterBytes;
+    private final AtomicLong bytesWrittenSinceSample = new AtomicLong();
+    private final ScheduledExecutorService sampler;
+    private volatile double freeSpacePercent;
+
+    private FreeSpaceMonitor(FileStore fileStore, boolean sampled, long resampleAfterBytes) {
+        this.fileStore = Objects.requireNonNull(fileStore, "fileStore");
+        this.resampleAfterBytes = resampleAfterBytes;
+        if (sampled) {
+            this.freeSpacePercent = sample();
+            this.sampler = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("free-space-monitor").factory());
+        } else {
+            this.sampler = null;
+        }
+    }
+
+    /**
+     * Create FreeSpaceMonitor sampling the free space in the background
+     *
+     * @param fileStore          FileStore to monitor
+     * @param interval           Interval between background samples, zero to sample on every check
+     * @param resampleAfterBytes Sample immediately when this number of bytes have been written since the last sample
+     * @return New FreeSpaceMonitor
+     */
+    public static FreeSpaceMonitor sampled(FileStore fileStore, Duration interval, long resampleAfterBytes) {
+        if (interval.isNegative()) {
+            throw new IllegalArgumentException("interval cannot be negative: %s".formatted(interval));
+        }
+        if (interval.isZero()) {
+            return direct(fileStore);
+        }
+        final var monitor = new FreeSpaceMonitor(fileStore, true, resampleAfterBytes);
+        // started once fully constructed
+        monitor.sampler.scheduleWithFixedDelay(monitor::resampleSilently, interval.toNanos(), interval.toNanos(), TimeUnit.NANOSECONDS);
+        return monitor;
+    }
+
+    /**
+     * Create FreeSpaceMonitor querying the FileStore on every check
+     *
+     * @param fileStore FileStore to monitor
+     * @return New FreeSpaceMonitor
+     */
+    public static FreeSpaceMonitor direct(FileStore fileStore) {
+        return new FreeSpaceMonitor(fileStore, false, Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns the percentage of free space (0..100) as of the latest sample
+     *
+     * @return percentage of free space (0..100)
+     */
+    public double freeSpacePercent() {
+        return sampler == null ? sample() : freeSpacePercent;
+    }
+
+    /**
+     * Register bytes written to the FileStore, sampling immediately if enough bytes have been written since the
+     * last sample. Must not be called while holding locks other threads might be waiting for.
+     *
+     * @param bytes Number of bytes written
+     */
+    public void written(long bytes) {
+        if (sampler != null && bytesWrittenSinceSample.addAndGet(bytes) >= resampleAfterBytes) {
+            resample();
+        }
+    }
+
+    /**
+     * Sample the free space now
+     */
+    public void resample() {
+        bytesWrittenSinceSample.set(0L);
+        freeSpacePercent = sample();
+    }
+
+    @Override
+    public void close() {
+        if (sampler != null) {
+            sampler.shutdownNow();
+        }
+    }
+
+    private void resampleSilently() {
+        try {
+            resample();
+        } catch (UncheckedIOException ignored) {
+            // keep the previous sample, the next might succeed
+        }
+    }
+
+    /**
+     * Calculate the amount of free space, in percentage (0..100).
+     *
+     * @return percentage of free space (0..100)
+     */
+    private double sample() {
+        try {
+            final long totalSpace = fileStore.getTotalSpace();
+            final long usableSpace = fileStore.getUsableSpace();
+            return 100.0 * usableSpace / totalSpace;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A file being produced by a {@link StreamingFileProducer}, read by any number of readers while it grows.
+ * <p>
+ * The producer writes through a channel counting the bytes written; readers tail the file up to the bytes written,
+ * waiting for more until the file is completed (end of stream) or aborted (failing the read). Once completed the
+ * file might have been moved to its final name, readers opening the file after that read the final file.
+ */
+class GrowingFile {
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Signalled when bytes are written, the file is completed or aborted
+     */
+    private final Condition changed = lock.newCondition();
+    /**
+     * The file written, then the final file when completed, guarded by lock
+     */
+    private Path file;
+    /**
+     * Number of bytes written, the size of the final file when completed, guarded by lock
+     */
+    private long written;
+    /**
+     * Guarded by lock
+     */
+    private boolean completed;
+    /**
+     * Guarded by lock
+     */
+    private Throwable failure;
+
+    /**
+     * Open the channel for the producer writing the file
+     *
+     * @param tempFile The file to write, already created
+     * @return Channel writing the file, signalling the readers on every write
+     * @throws IOException If the file can not be opened
+     */
+    WritableByteChannel writeTo(Path tempFile) throws IOException {
+        final var channel = Files.newByteChannel(tempFile, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        lock.lock();
+        try {
+            this.file = tempFile;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                final int n = channel.write(src);
+                if (n > 0) {
+                    lock.lock();
+                    try {
+                        written += n;
+                        changed.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * The file is produced and cached, readers read it to the end
+     *
+     * @param cachedFile The final file, might be another than the one written
+     * @throws IOException If the size of the file can not be read
+     */
+    void complete(Path cachedFile) throws IOException {
+        final long size = Files.size(cachedFile);
+        lock.lock();
+        try {
+            this.file = cachedFile;
+            this.written = size;
+            this.completed = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The production failed, readers fail
+     *
+     * @param cause Why
+     */
+    void abort(Throwable cause) {
+        lock.lock();
+        try {
+            this.failure = cause;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Open a reader of the file from the beginning, which must be closed
+     *
+     * @return Channel reading the file as it grows
+     */
+    ReadableByteChannel newReader() {
+        return new Reader();
+    }
+
+    private final class Reader implements ReadableByteChannel {
+        private SeekableByteChannel channel;
+        private boolean closed;
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            final long available = awaitAvailable();
+            if (available < 0L) {
+                return -1;
+            }
+            final int limit = dst.limit();
+            dst.limit(dst.position() + (int) Math.min(dst.remaining(), available));
+            try {
+                return channel.read(dst);
+            } finally {
+                dst.limit(limit);
+            }
+        }
+
+        /**
+         * Wait until there are bytes to read, opening the file once there is one
+         *
+         * @return Number of bytes available, -1 at the end of the completed file
+         */
+        private long awaitAvailable() throws IOException {
+            lock.lock();
+            try {
+                while (true) {
+                    if (failure != null) {
+                        throw new IOException("Production of the file was aborted", failure);
+                    }
+                    if (channel == null && file != null) {
+                        channel = open(file, completed);
+                    }
+                    if (channel != null) {
+                        final long available = written - channel.position();
+                        if (available > 0L) {
+                            return available;
+                        }
+                        if (completed) {
+                            return -1L;
+                        }
+                    }
+                    changed.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the file to be produced");
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Open the file, null if it was moved to its final name after being written but before completed
+         */
+        private static SeekableByteChannel open(Path file, boolean completed) throws IOException {
+            try {
+                return Files.newByteChannel(file);
+            } catch (NoSuchFileException e) {
+                if (completed) {
+                    throw e;
+                }
+                return null;
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Memory tier in front of the files cached, holding the content of small, frequently requested files in direct
+ * ByteBuffers. A file is promoted when it has been requested promoteAfterHits times (as estimated by a
+ * {@link FrequencySketch}) and is evicted when the tier holds more than maxBytes; the file itself stays cached on disk.
+ * <p>
+ * The buffers are never released explicitly as readers might still hold them, the memory is reclaimed by the garbage
+ * collector once the buffers are no longer referenced.
+ */
+class MemoryTier {
+    private final Cache<String, Held> buffers;
+    private final FrequencySketch<String> sketch;
+    private final long maxBytes;
+    private final int maxFileSize;
+    private final int promoteAfterHits;
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * Create memory tier
+     *
+     * @param maxBytes         Max number of bytes held in memory
+     * @param maxFileSize      Max size of files held in memory
+     * @param promoteAfterHits Number of times a file is requested before it is held in memory (1..15)
+     * @param maxElements      Max number of files held in memory, the number of files cached on disk
+     * @param cacheFactory     Creates the cache holding the buffers
+     */
+    MemoryTier(long maxBytes, int maxFileSize, int promoteAfterHits, int maxElements, CacheFactory cacheFactory) {
+        this.maxBytes = maxBytes;
+        this.maxFileSize = maxFileSize;
+        this.promoteAfterHits = Math.min(promoteAfterHits, FrequencySketch.MAX_FREQUENCY);
+        this.sketch = new FrequencySketch<>(maxElements);
+        this.buffers = cacheFactory.create(maxElements, e -> false, e -> bytes.addAndGet(-e.getValue().buffer().capacity()));
+    }
+
+    /**
+     * Returns the content of the object if held in memory and loaded from the file given, null if not
+     *
+     * @param objectName Name of the object
+     * @param file       File cached for the object
+     * @return Read-only buffer with the content of the object or null
+     */
+    ByteBuffer get(String objectName, CachedFile file) {
+        final var held = buffers.get(objectName);
+        return held == null || held.file() != file ? null : held.buffer().duplicate();
+    }
+
+    /**
+     * Record a request for the object cached on disk, promoting it if it is small and requested often enough. The
+     * object might be produced again or evicted while the file is loaded, dropping it from memory before the content
+     * loaded is held, so whether the file is still cached is checked once held: outdated content is dropped again.
+     *
+     * @param objectName Name of the object
+     * @param file       File cached
+     * @param current    Whether the file is still the one cached for the object
+     * @return Read-only buffer with the content of the object if promoted, null if not or the file is gone
+     */
+    ByteBuffer hit(String objectName, CachedFile file, BooleanSupplier current) {
+        final long size = file.size();
+        final int frequency;
+        synchronized (sketch) {
+            sketch.increment(objectName);
+            frequency = sketch.frequency(objectName);
+        }
+        if (size > maxFileSize || size > maxBytes || frequency < promoteAfterHits) {
+            return null;
+        }
+
+        final var buffer = load(file.path(), (int) size);
+        if (buffer == null) {
+            return null;
+        }
+        final var previous = buffers.put(objectName, new Held(file, buffer));
+        bytes.addAndGet(previous == null ? buffer.capacity() : buffer.capacity() - previous.buffer().capacity());
+        if (!current.getAsBoolean()) {
+            // replaced or evicted meanwhile, the content of a newer file promoted concurrently might be dropped too
+            remove(objectName);
+            return null;
+        }
+        // evict until the buffers held fit into memory
+        while (bytes.get() > maxBytes && buffers.evict()) {
+            // evicting...
+        }
+        return buffer.duplicate();
+    }
+
+    /**
+     * Drop the object from memory, eg when the file is no longer cached
+     *
+     * @param objectName Name of the object
+     */
+    void remove(String objectName) {
+        final var removed = buffers.remove(objectName);
+        if (removed != null) {
+            bytes.addAndGet(-removed.buffer().capacity());
+        }
+    }
+
+    /**
+     * Returns the number of bytes held in memory
+     *
+     * @return Number of bytes held in memory
+     */
+    long bytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Load the content of the file, null if the file is gone (eg evicted meanwhile)
+     */
+    private static ByteBuffer load(Path file, int size) {
+        try (final var channel = Files.newByteChannel(file)) {
+            final var buffer = ByteBuffer.allocateDirect(size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // reading...
+            }
+            return buffer.flip().asReadOnlyBuffer();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Content held in memory and the file it was loaded from
+     */
+    private record Held(CachedFile file, ByteBuffer buffer) {
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
+
+/**
+ * Admission control of productions: at most maxConcurrent objects are produced at the same time, further productions
+ * wait in a bounded queue for at most maxWait. Productions are rejected when the queue is full or the wait times
+ * out, so a storm of misses degrades gracefully rather than saturating the CPU.
+ * <p>
+ * Queued productions are admitted in order of arrival or, when prioritizing, the production with most requests
+ * waiting for it first.
+ */
+class ProducerAdmission {
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Productions waiting to be admitted in order of arrival, guarded by lock
+     */
+    private final List<Ticket> queue = new ArrayList<>();
+    private final int maxQueued;
+    private final long maxWaitNanos;
+    private final boolean prioritizeWaitedOn;
+    /**
+     * Number of productions that may be admitted without waiting, guarded by lock
+     */
+    private int available;
+
+    /**
+     * A production waiting to be admitted
+     */
+    private static final class Ticket {
+        private final IntSupplier waiters;
+        private final Condition admitted;
+        private boolean granted;
+
+        private Ticket(IntSupplier waiters, Condition admitted) {
+            this.waiters = waiters;
+            this.admitted = admitted;
+        }
+    }
+
+    /**
+     * Create admission control
+     *
+     * @param maxConcurrent      Max number of objects produced at the same time
+     * @param maxQueued          Max number of productions waiting to be admitted
+     * @param maxWait            Max time a production waits to be admitted
+     * @param prioritizeWaitedOn Admit the production with most requests waiting for it first
+     */
+    ProducerAdmission(int maxConcurrent, int maxQueued, Duration maxWait, boolean prioritizeWaitedOn) {
+        this.available = maxConcurrent;
+        this.maxQueued = maxQueued;
+        this.maxWaitNanos = maxWait.toNanos();
+        this.prioritizeWaitedOn = prioritizeWaitedOn;
+    }
+
+    /**
+     * Wait for the production to be admitted, {@link #release()} must be called when done producing
+     *
+     * @param waiters Number of requests waiting for the production
+     * @throws RejectedExecutionException If the queue is full, the wait times out or the thread is interrupted
+     */
+    void acquire(IntSupplier waiters) {
+        lock.lock();
+        try {
+            if (available > 0 && queue.isEmpty()) {
+                available--;
+                return;
+            }
+            if (queue.size() >= maxQueued) {
+                throw new RejectedExecutionException("Too many productions waiting: " + queue.size());
+            }
+            final var ticket = new Ticket(waiters, lock.newCondition());
+            queue.add(ticket);
+            long nanos = maxWaitNanos;
+            try {
+                while (!ticket.granted) {
+                    if (nanos <= 0L) {
+                        queue.remove(ticket);
+                        throw new RejectedExecutionException("Timed out waiting to produce");
+                    }
+                    nanos = ticket.admitted.awaitNanos(nanos);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (ticket.granted) {
+                    // admitted while being interrupted, pass it on
+                    releaseLocked();
+                } else {
+                    queue.remove(ticket);
+                }
+                throw new RejectedExecutionException("Interrupted waiting to produce", e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Done producing, admit the next production waiting if any
+     */
+    void release() {
+        lock.lock();
+        try {
+            releaseLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of productions waiting to be admitted
+     *
+     * @return Number of productions waiting
+     */
+    int queued() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Guarded by lock
+     */
+    private void releaseLocked() {
+        if (queue.isEmpty()) {
+            available++;
+            return;
+        }
+        final var next = prioritizeWaitedOn ? mostWaitedOn() : queue.getFirst();
+        queue.remove(next);
+        next.granted = true;
+        next.admitted.signal();
+    }
+
+    /**
+     * Guarded by lock, the earliest of the productions with most requests waiting
+     */
+    private Ticket mostWaitedOn() {
+        Ticket mostWaitedOn = null;
+        int most = -1;
+        for (var ticket : queue) {
+            final int waiters = ticket.waiters.getAsInt();
+            if (waiters > most) {
+                mostWaitedOn = ticket;
+                most = waiters;
+            }
+        }
+        return mostWaitedOn;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import java.io.Serial;
+import java.time.Instant;
+
+/**
+ * Thrown by the FileCache instead of producing an object whose production failed recently, until the backoff period
+ * has passed. The cause is the failure of the last production.
+ */
+public class ProductionFailedException extends RuntimeException {
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    private final String objectName;
+    private final transient Instant retryAt;
+
+    public ProductionFailedException(String objectName, Instant retryAt, Throwable cause) {
+        super("Production of %s failed, retrying after %s".formatted(objectName, retryAt), cause);
+        this.objectName = objectName;
+        this.retryAt = retryAt;
+    }
+
+    /**
+     * @return Name of the object that failed
+     */
+    public String getObjectName() {
+        return objectName;
+    }
+
+    /**
+     * @return When the object is produced again at the earliest
+     */
+    public Instant getRetryAt() {
+        return retryAt;
+    }
+}
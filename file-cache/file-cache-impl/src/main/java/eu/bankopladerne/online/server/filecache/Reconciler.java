@@ -0,0 +1,146 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Reclaims the space of orphan files in the cache directories: files the cache does not know, eg temporary files left
+ * by a producer returning another file or by a crash while producing, silently eating the space guarded by the free
+ * space check.
+ * <p>
+ * Every interval the cache directories are walked, one entry at a time rather than listing them up front, so
+ * directories with millions of entries are reconciled in constant memory (besides the files known to the cache). Files
+ * not known to the cache when the walk started and last modified more than a grace period before are deleted; the
+ * grace period protects files being produced, not known to the cache until produced.
+ */
+class Reconciler implements AutoCloseable {
+    private final List<Path> directories;
+    private final Duration gracePeriod;
+    private final Supplier<Set<Path>> knownFiles;
+    private final Consumer<Path> deleter;
+    private final ObjLongConsumer<Path> reclaimed;
+    private final Duration interval;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Create Reconciler
+     *
+     * @param interval    Interval between walks once {@link #start() started}, zero to only reconcile when {@link #reconcile()} is invoked
+     * @param gracePeriod Min age of orphan files deleted
+     * @param directories The cache directories
+     * @param knownFiles  Snapshot of the files known to the cache
+     * @param deleter     Deletes orphan files
+     * @param reclaimed   Invoked with each orphan file deleted and its size
+     */
+    Reconciler(Duration interval, Duration gracePeriod, List<Path> directories, Supplier<Set<Path>> knownFiles,
+               Consumer<Path> deleter, ObjLongConsumer<Path> reclaimed) {
+        if (interval.isNegative() || gracePeriod.isNegative()) {
+            throw new IllegalArgumentException("interval and gracePeriod cannot be negative: %s, %s".formatted(interval, gracePeriod));
+        }
+        this.directories = List.copyOf(directories);
+        this.gracePeriod = gracePeriod;
+        this.knownFiles = knownFiles;
+        this.deleter = deleter;
+        this.reclaimed = reclaimed;
+        this.interval = interval;
+        if (interval.isZero()) {
+            this.scheduler = null;
+        } else {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("file-cache-reconciler").factory());
+        }
+    }
+
+    /**
+     * Start reconciling every interval, once the files cached are known
+     */
+    void start() {
+        if (scheduler != null) {
+            scheduler.scheduleWithFixedDelay(this::reconcileSilently, interval.toNanos(), interval.toNanos(), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Walk the cache directories, deleting the orphan files older than the grace period
+     *
+     * @return Number of bytes reclaimed
+     */
+    synchronized long reconcile() {
+        // files cached after the snapshot are younger than the cutoff: produced after it, or touched when adopted
+        final var known = knownFiles.get();
+        final var cutoff = Instant.now().minus(gracePeriod);
+        final long[] bytes = {0L};
+        final var visitor = new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()
+                        && !known.contains(file)
+                        && attrs.lastModifiedTime().toInstant().isBefore(cutoff)
+                        && !file.getFileName().toString().startsWith(CacheIndex.FILE_NAME)) {
+                    deleter.accept(file);
+                    reclaimed.accept(file, attrs.size());
+                    bytes[0] += attrs.size();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                // deleted while walking
+                return FileVisitResult.CONTINUE;
+            }
+        };
+        for (var directory : directories) {
+            try {
+                Files.walkFileTree(directory, visitor);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return bytes[0];
+    }
+
+    private void reconcileSilently() {
+        try {
+            reconcile();
+        } catch (RuntimeException ignored) {
+            // the next walk might succeed
+        }
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Verifies the files cached in the background at a bounded rate, reporting files missing, truncated or corrupted (eg
+ * by a crash while being written, or by other infrastructure) so they can be evicted and produced again.
+ * <p>
+ * Every interval the next batch of files is verified: the file must exist with the size recorded and, if recorded,
+ * the CRC32C checksum of its content. When all files have been verified a new pass over the files cached starts.
+ */
+class Scrubber implements AutoCloseable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int filesPerInterval;
+    private final Consumer<BiConsumer<String, CachedFile>> filesCached;
+    private final BiConsumer<String, CachedFile> corrupted;
+    private final Runnable scrubbed;
+    /**
+     * Files left to verify in the current pass, only accessed while scrubbing
+     */
+    private final Queue<Map.Entry<String, CachedFile>> pending = new ArrayDeque<>();
+    private final Duration interval;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Create Scrubber
+     *
+     * @param interval         Interval between batches once {@link #start() started}, zero to only scrub when {@link #scrub()} is invoked
+     * @param filesPerInterval Max number of files verified per interval
+     * @param filesCached      Performs the action for each file cached, starting a new pass
+     * @param corrupted        Invoked with the files failing verification
+     * @param scrubbed         Invoked for each file verified
+     */
+    Scrubber(Duration interval, int filesPerInterval, Consumer<BiConsumer<String, CachedFile>> filesCached,
+             BiConsumer<String, CachedFile> corrupted, Runnable scrubbed) {
+        if (interval.isNegative()) {
+            throw new IllegalArgumentException("interval cannot be negative: %s".formatted(interval));
+        }
+        this.filesPerInterval = filesPerInterval;
+        this.filesCached = filesCached;
+        this.corrupted = corrupted;
+        this.scrubbed = scrubbed;
+        this.interval = interval;
+        if (interval.isZero()) {
+            this.scheduler = null;
+        } else {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("file-cache-scrubber").factory());
+        }
+    }
+
+    /**
+     * Start scrubbing every interval, once the files cached are known
+     */
+    void start() {
+        if (scheduler != null) {
+            scheduler.scheduleWithFixedDelay(this::scrubSilently, interval.toNanos(), interval.toNanos(), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Verify the next batch of files
+     *
+     * @return Number of files failing verification
+     */
+    synchronized int scrub() {
+        if (pending.isEmpty()) {
+            filesCached.accept((objectName, file) -> pending.add(Map.entry(objectName, file)));
+        }
+        int failed = 0;
+        for (int i = 0; i < filesPerInterval && !pending.isEmpty(); i++) {
+            final var entry = pending.poll();
+            scrubbed.run();
+            if (!intact(entry.getValue())) {
+                failed++;
+                corrupted.accept(entry.getKey(), entry.getValue());
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Whether the file exists with the size and checksum recorded
+     *
+     * @param file File cached
+     * @return true if intact
+     */
+    static boolean intact(CachedFile file) {
+        try {
+            if (Files.size(file.path()) != file.size()) {
+                return false;
+            }
+            return file.checksum() == CachedFile.NO_CHECKSUM || checksum(file) == file.checksum();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * CRC32C checksum of the content of the file
+     */
+    private static long checksum(CachedFile file) throws IOException {
+        final var crc = new CRC32C();
+        try (InputStream in = Files.newInputStream(file.path())) {
+            final var buffer = new byte[BUFFER_SIZE];
+            for (int n; (n = in.read(buffer)) > 0; ) {
+                crc.update(buffer, 0, n);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private void scrubSilently() {
+        try {
+            scrub();
+        } catch (RuntimeException ignored) {
+            // the next batch might succeed
+        }
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Thread-safe LRU cache split into a number of segments, each segment being a SimplestCache with its own lock. The
+ * segment is selected by the hash of the key, so threads accessing different keys rarely contend on the same lock.
+ * <p>
+ * The maxElements bound is divided evenly between the segments, hence LRU order and the bound are only maintained
+ * per segment and approximated for the cache as a whole. The cleanPredicate and cleaner is invoked by each segment
+ * for its own eldest element.
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public class SegmentedCache<K, V> implements Cache<K, V> {
+    private final SimplestCache<K, V>[] segments;
+    private final int mask;
+    private final AtomicInteger nextToEvict = new AtomicInteger();
+
+    /**
+     * Create segmented thread-safe LRU cache containing approximately at most maxElements elements or whatever the
+     * cleanPredicate dictates.
+     *
+     * @param segments       Number of segments, rounded up to the nearest power of two
+     * @param maxElements    Max number elements to cache, divided evenly between segments
+     * @param cleanPredicate Alternative predicate - return true if oldest element in a segment is to be evicted even
+     *                       if maxElements is not reached
+     * @param cleaner        Reference to a cleaning method doing cleanup of external resources when oldest element is
+     *                       evicted.
+     */
+    public SegmentedCache(int segments, int maxElements, Predicate<Map.Entry<K, V>> cleanPredicate, Consumer<Map.Entry<K, V>> cleaner) {
+        if (segments < 1) {
+            throw new IllegalArgumentException("segments must be positive: %d".formatted(segments));
+        }
+        final var count = Integer.highestOneBit(segments) == segments ? segments : Integer.highestOneBit(segments) << 1;
+        final var maxElementsPerSegment = Math.max(1, (maxElements + count - 1) / count);
+
+        this.segments = newSegments(count);
+        for (int i = 0; i < count; i++) {
+            this.segments[i] = new SimplestCache<>(maxElementsPerSegment, cleanPredicate, cleaner);
+        }
+        this.mask = count - 1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> SimplestCache<K, V>[] newSegments(int count) {
+        return (SimplestCache<K, V>[]) new SimplestCache<?, ?>[count];
+    }
+
+    /**
+     * Create segmented thread-safe LRU cache containing approximately at most maxElements elements.
+     *
+     * @param segments    Number of segments, rounded up to the nearest power of two
+     * @param maxElements Max number elements to cache, divided evenly between segments
+     */
+    public SegmentedCache(int segments, int maxElements) {
+        this(segments, maxElements, e -> false, e -> {
+        });
+    }
+
+    @Override
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        return segmentFor(key).computeIfAbsent(key, mappingFunction);
+    }
+
+    @Override
+    public V get(K key) {
+        return segmentFor(key).get(key);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        return segmentFor(key).put(key, value);
+    }
+
+    @Override
+    public V remove(K key) {
+        return segmentFor(key).remove(key);
+    }
+
+    /**
+     * Evict the eldest element of a segment, the segments taking turns
+     *
+     * @return true if an element was evicted, false if the cache is empty
+     */
+    @Override
+    public boolean evict() {
+        final var start = nextToEvict.getAndIncrement();
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[(start + i) & mask].evict()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Evict the eldest element of a segment matching the condition, the segments taking turns
+     *
+     * @param condition Whether the eldest element of a segment is to be evicted
+     * @param cleaner   Invoked for the element evicted instead of the cleaner of the cache
+     * @return true if an element was evicted, false if the cache is empty or no eldest element matches
+     */
+    @Override
+    public boolean evict(Predicate<Map.Entry<K, V>> condition, Consumer<Map.Entry<K, V>> cleaner) {
+        final var start = nextToEvict.getAndIncrement();
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[(start + i) & mask].evict(condition, cleaner)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Performs the action for each element cached, segment by segment
+     *
+     * @param action Action performed for each key and value
+     */
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        for (var segment : segments) {
+            segment.forEach(action);
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (var segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    @Override
+    public long lockWaitNanos() {
+        long lockWaitNanos = 0L;
+        for (var segment : segments) {
+            lockWaitNanos += segment.lockWaitNanos();
+        }
+        return lockWaitNanos;
+    }
+
+    /**
+     * Returns the number of segments actually used
+     *
+     * @return Number of segments
+     */
+    public int segments() {
+        return segments.length;
+    }
+
+    private SimplestCache<K, V> segmentFor(K key) {
+        final int h = key.hashCode();
+        // spread higher bits downwards as HashMap does, the segment is selected by the lower bits
+        return segments[(h ^ (h >>> 16)) & mask];
+    }
+}
@@ -15,17 +15,22 @@
  */
 package eu.bankopladerne.online.server.filecache;
 
+import java.util.AbstractMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 
-public class SimplestCache<K, V> {
+public class SimplestCache<K, V> implements Cache<K, V> {
     private final Map<K, V> cache;
     private final Semaphore sync;
+    private final Consumer<Map.Entry<K, V>> cleaner;
+    private final LongAdder lockWait = new LongAdder();
 
     /**
      * CTOR exposing internals for testing purposes only...
@@ -42,6 +47,7 @@ public class SimplestCache<K, V> {
             }
         };
         this.sync = sync;
+        this.cleaner = cleaner;
     }
 
     /**
@@ -104,6 +110,61 @@ public class SimplestCache<K, V> {
         return acquireSemaphoreThen(() -> cache.put(key, value));
     }
 
+    /**
+     * Remove the element cached for the key given without invoking the cleaner, returns the value removed or null
+     *
+     * @param key Key
+     * @return Removed value or null
+     * @see Map#remove(Object)
+     */
+    public V remove(K key) {
+        return acquireSemaphoreThen(() -> cache.remove(key));
+    }
+
+    /**
+     * Evict the eldest element, invoking the cleaner
+     *
+     * @return true if an element was evicted, false if the cache is empty
+     */
+    public boolean evict() {
+        return evict(e -> true, cleaner);
+    }
+
+    /**
+     * Evict the eldest element if it matches the condition, invoking the cleaner given
+     *
+     * @param condition Whether the eldest element is to be evicted
+     * @param cleaner   Invoked for the element evicted instead of the cleaner of the cache
+     * @return true if an element was evicted, false if the cache is empty or the eldest element does not match
+     */
+    public boolean evict(Predicate<Map.Entry<K, V>> condition, Consumer<Map.Entry<K, V>> cleaner) {
+        return Boolean.TRUE.equals(acquireSemaphoreThen(() -> {
+            final var iterator = cache.entrySet().iterator();
+            if (!iterator.hasNext()) {
+                return false;
+            }
+            final var eldest = new AbstractMap.SimpleImmutableEntry<>(iterator.next());
+            if (!condition.test(eldest)) {
+                return false;
+            }
+            iterator.remove();
+            cleaner.accept(eldest);
+            return true;
+        }));
+    }
+
+    /**
+     * Performs the action for each element cached, least recently used first
+     *
+     * @param action Action performed for each key and value
+     */
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        acquireSemaphoreThen(() -> {
+            cache.forEach(action);
+            return null;
+        });
+    }
+
     /**
      * Returns number of elements currently cached
      *
@@ -113,9 +174,22 @@ public class SimplestCache<K, V> {
         return cache.size();
     }
 
-    private V acquireSemaphoreThen(Supplier<V> action) {
+    /**
+     * Returns the total time threads have waited for the semaphore, only measured when contended
+     *
+     * @return Nanoseconds waited for the semaphore
+     */
+    public long lockWaitNanos() {
+        return lockWait.sum();
+    }
+
+    private <T> T acquireSemaphoreThen(Supplier<T> action) {
         try {
-            sync.acquire();
+            if (!sync.tryAcquire()) {
+                final long start = System.nanoTime();
+                sync.acquire();
+                lockWait.add(System.nanoTime() - start);
+            }
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             return null;
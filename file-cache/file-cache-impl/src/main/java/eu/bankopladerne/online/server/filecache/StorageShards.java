@@ -0,0 +1,210 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * The directories holding the files cached, possibly on different FileStores (volumes). New files are placed by
+ * consistent hashing of the object name, so adding or removing a directory only moves the placement of about 1/n of
+ * the objects; files already cached stay where they are until evicted or produced again. The free space is tracked per
+ * FileStore, and a directory on a FileStore low on free space is skipped in favour of the next one on the ring.
+ */
+final class StorageShards implements AutoCloseable {
+    /**
+     * Number of points on the ring per directory, spreading the objects evenly
+     */
+    static final int VIRTUAL_NODES = 64;
+
+    /**
+     * A directory holding files cached
+     *
+     * @param directory        The directory
+     * @param freeSpaceMonitor Free space of the FileStore of the directory, shared by directories on the same FileStore
+     */
+    record Shard(Path directory, FreeSpaceMonitor freeSpaceMonitor) {
+    }
+
+    private final List<Shard> shards;
+    private final List<FreeSpaceMonitor> freeSpaceMonitors;
+    private final NavigableMap<Long, Shard> ring = new TreeMap<>();
+
+    /**
+     * Create StorageShards
+     *
+     * @param directories             The directories, at least one
+     * @param freeSpaceSampleInterval Interval between background samples of the free space, zero to sample on every check
+     * @param resampleAfterBytes      Sample immediately when this number of bytes have been written to a FileStore
+     */
+    StorageShards(List<Path> directories, Duration freeSpaceSampleInterval, long resampleAfterBytes) {
+        if (directories.isEmpty()) {
+            throw new IllegalArgumentException("At least one directory is required");
+        }
+        final Map<FileStore, FreeSpaceMonitor> monitors = new HashMap<>();
+        this.shards = directories.stream()
+                .map(directory -> new Shard(directory, monitors.computeIfAbsent(fileStoreOf(directory),
+                        fileStore -> FreeSpaceMonitor.sampled(fileStore, freeSpaceSampleInterval, resampleAfterBytes))))
+                .toList();
+        this.freeSpaceMonitors = List.copyOf(monitors.values());
+        for (var shard : shards) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(shard.directory() + "#" + i), shard);
+            }
+        }
+    }
+
+    /**
+     * Returns all the directories
+     *
+     * @return The shards in the order given
+     */
+    List<Shard> shards() {
+        return shards;
+    }
+
+    /**
+     * Returns the directory to place a new file of the object in: the directory the object name hashes to on the ring,
+     * or the next one with enough free space
+     *
+     * @param objectName          Name of the object
+     * @param minFreeSpacePercent Minimum percentage of free space of the FileStore, 0.0 to ignore the free space
+     * @return Directory to place the file in
+     */
+    Shard shardOf(String objectName, double minFreeSpacePercent) {
+        if (shards.size() == 1) {
+            return shards.getFirst();
+        }
+        final long hash = hash(objectName);
+        final var hashed = shardAt(hash);
+        if (minFreeSpacePercent <= 0.0 || hashed.freeSpaceMonitor().freeSpacePercent() >= minFreeSpacePercent) {
+            return hashed;
+        }
+        // walk the ring for the next directory with enough free space
+        var point = ring.higherKey(hash);
+        for (int i = 0; i < ring.size(); i++) {
+            point = point == null ? ring.firstKey() : point;
+            final var shard = ring.get(point);
+            if (shard.freeSpaceMonitor().freeSpacePercent() >= minFreeSpacePercent) {
+                return shard;
+            }
+            point = ring.higherKey(point);
+        }
+        return hashed;
+    }
+
+    /**
+     * Returns the directory holding the file
+     *
+     * @param file File cached
+     * @return The shard, null if the file is not in any of the directories, eg put elsewhere by the producer
+     */
+    Shard shardContaining(Path file) {
+        for (var shard : shards) {
+            if (file.startsWith(shard.directory())) {
+                return shard;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the lowest percentage of free space of the FileStores
+     *
+     * @return percentage of free space (0..100)
+     */
+    double freeSpacePercent() {
+        double lowest = 100.0;
+        for (var freeSpaceMonitor : freeSpaceMonitors) {
+            lowest = Math.min(lowest, freeSpaceMonitor.freeSpacePercent());
+        }
+        return lowest;
+    }
+
+    /**
+     * Returns the percentage of free space of the FileStore holding the file
+     *
+     * @param file File cached
+     * @return percentage of free space (0..100), the lowest of the FileStores if the file is not in any of the
+     * directories
+     */
+    double freeSpacePercent(Path file) {
+        final var shard = shardContaining(file);
+        return shard == null ? freeSpacePercent() : shard.freeSpaceMonitor().freeSpacePercent();
+    }
+
+    /**
+     * Register bytes written to the FileStore of the file
+     *
+     * @param file  File written
+     * @param bytes Number of bytes written
+     */
+    void written(Path file, long bytes) {
+        final var shard = shardContaining(file);
+        if (shard != null) {
+            shard.freeSpaceMonitor().written(bytes);
+        }
+    }
+
+    /**
+     * Sample the free space of all FileStores now
+     */
+    void resample() {
+        freeSpaceMonitors.forEach(FreeSpaceMonitor::resample);
+    }
+
+    @Override
+    public void close() {
+        freeSpaceMonitors.forEach(FreeSpaceMonitor::close);
+    }
+
+    private Shard shardAt(long hash) {
+        final var entry = ring.ceilingEntry(hash);
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    private static FileStore fileStoreOf(Path directory) {
+        try {
+            return Files.getFileStore(Objects.requireNonNull(directory, "directory"));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long hash(String key) {
+        try {
+            final var digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support MD5
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+@FunctionalInterface
+public interface StreamingFileProducer {
+    /**
+     * Produces the content of the object given the object name by writing it to the channel. The channel writes to a
+     * temporary file in the temporary file-system which is read by requests for the object while being produced, and
+     * cached when the producer returns. Throwing aborts the production, failing the requests reading it.
+     *
+     * @param objectName Name of object/file being created
+     * @param channel    Channel to write the content to, closed by the FileCache
+     * @throws IOException If producing fails
+     */
+    void produceToChannel(String objectName, WritableByteChannel channel) throws IOException;
+}
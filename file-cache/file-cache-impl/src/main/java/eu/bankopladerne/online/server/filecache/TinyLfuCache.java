@@ -0,0 +1,268 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import java.util.AbstractMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Thread-safe cache using the W-TinyLFU policy: new elements enter a small LRU window (1% of maxElements). When the
+ * window overflows, its eldest element is a candidate for the main cache and is only admitted if it is estimated to
+ * be more popular than the main cache's victim, according to a {@link FrequencySketch} of recent accesses. This
+ * prevents elements accessed only once from pushing out popular elements.
+ * <p>
+ * The main cache is a segmented LRU: elements are admitted to the probation segment and promoted to the protected
+ * segment (80% of the main cache) when accessed again.
+ * <p>
+ * The cleaner is invoked for the element rejected or evicted, whether that is the candidate or the victim. The
+ * cleanPredicate is tested on the victim of the main cache after each insertion. Everything runs while a lock is held
+ * on the cache so the cleaner should be short/fast and not lock on other elements.
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public class TinyLfuCache<K, V> implements Cache<K, V> {
+    private static final double WINDOW_PERCENT = 1.0;
+    private static final double PROTECTED_PERCENT = 80.0;
+
+    private final LinkedHashMap<K, V> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, V> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, V> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch<K> sketch;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LongAdder lockWait = new LongAdder();
+    private final int windowCapacity;
+    private final int mainCapacity;
+    private final int protectedCapacity;
+    private final Predicate<Map.Entry<K, V>> cleanPredicate;
+    private final Consumer<Map.Entry<K, V>> cleaner;
+
+    /**
+     * Create thread-safe W-TinyLFU cache containing at most maxElements elements or whatever the cleanPredicate
+     * dictates. Also supports a cleaning operation which is invoked when elements are evicted from the cache.
+     *
+     * @param maxElements    Max number elements to cache
+     * @param cleanPredicate Alternative predicate - return true if the victim is to be evicted even if maxElements
+     *                       is not reached
+     * @param cleaner        Reference to a cleaning method doing cleanup of external resources when an element is
+     *                       evicted.
+     */
+    public TinyLfuCache(int maxElements, Predicate<Map.Entry<K, V>> cleanPredicate, Consumer<Map.Entry<K, V>> cleaner) {
+        this.windowCapacity = Math.max(1, (int) (maxElements * WINDOW_PERCENT / 100.0));
+        this.mainCapacity = Math.max(0, maxElements - windowCapacity);
+        this.protectedCapacity = (int) (mainCapacity * PROTECTED_PERCENT / 100.0);
+        this.sketch = new FrequencySketch<>(maxElements);
+        this.cleanPredicate = cleanPredicate;
+        this.cleaner = cleaner;
+    }
+
+    /**
+     * Create a thread-safe W-TinyLFU cache containing at most maxElements elements.
+     *
+     * @param maxElements Max number elements to cache
+     */
+    public TinyLfuCache(int maxElements) {
+        this(maxElements, e -> false, e -> {
+        });
+    }
+
+    @Override
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        return locked(() -> {
+            final var existing = access(key);
+            if (existing != null) {
+                return existing;
+            }
+            final V value = mappingFunction.apply(key);
+            if (value != null) {
+                insert(key, value);
+            }
+            return value;
+        });
+    }
+
+    @Override
+    public V get(K key) {
+        return locked(() -> access(key));
+    }
+
+    @Override
+    public V put(K key, V value) {
+        return locked(() -> {
+            final var existing = access(key);
+            if (existing != null) {
+                segmentOf(key).put(key, value);
+                return existing;
+            }
+            insert(key, value);
+            return null;
+        });
+    }
+
+    @Override
+    public V remove(K key) {
+        return locked(() -> segmentOf(key).remove(key));
+    }
+
+    @Override
+    public boolean evict() {
+        return evict(e -> true, cleaner);
+    }
+
+    @Override
+    public boolean evict(Predicate<Map.Entry<K, V>> condition, Consumer<Map.Entry<K, V>> cleaner) {
+        return locked(() -> {
+            final var victim = victim();
+            if (victim == null || !condition.test(victim)) {
+                return false;
+            }
+            segmentOf(victim.getKey()).remove(victim.getKey());
+            cleaner.accept(victim);
+            return true;
+        });
+    }
+
+    /**
+     * Performs the action for each element cached, in order of eviction: probation, protected and then the window
+     *
+     * @param action Action performed for each key and value
+     */
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        locked(() -> {
+            probation.forEach(action);
+            protectedSegment.forEach(action);
+            window.forEach(action);
+            return null;
+        });
+    }
+
+    @Override
+    public int size() {
+        return locked(() -> window.size() + probation.size() + protectedSegment.size());
+    }
+
+    @Override
+    public long lockWaitNanos() {
+        return lockWait.sum();
+    }
+
+    /**
+     * Record the access and return the value, promoting elements in probation to the protected segment
+     */
+    private V access(K key) {
+        sketch.increment(key);
+        final var inWindow = window.get(key);
+        if (inWindow != null) {
+            return inWindow;
+        }
+        final var isProtected = protectedSegment.get(key);
+        if (isProtected != null) {
+            return isProtected;
+        }
+        final var onProbation = probation.remove(key);
+        if (onProbation != null) {
+            protectedSegment.put(key, onProbation);
+            if (protectedSegment.size() > protectedCapacity) {
+                final var demoted = eldest(protectedSegment);
+                protectedSegment.remove(demoted.getKey());
+                probation.put(demoted.getKey(), demoted.getValue());
+            }
+        }
+        return onProbation;
+    }
+
+    private void insert(K key, V value) {
+        window.put(key, value);
+        if (window.size() > windowCapacity) {
+            final var candidate = eldest(window);
+            window.remove(candidate.getKey());
+            admit(candidate);
+        }
+        final var victim = victim();
+        if (victim != null && cleanPredicate.test(victim)) {
+            evict(victim);
+        }
+    }
+
+    /**
+     * Move the candidate from the window to the main cache if there is room or it is more popular than the victim
+     */
+    private void admit(Map.Entry<K, V> candidate) {
+        if (probation.size() + protectedSegment.size() < mainCapacity) {
+            probation.put(candidate.getKey(), candidate.getValue());
+            return;
+        }
+        final var victim = victim();
+        if (victim != null && sketch.frequency(candidate.getKey()) > sketch.frequency(victim.getKey())) {
+            evict(victim);
+            probation.put(candidate.getKey(), candidate.getValue());
+        } else {
+            cleaner.accept(candidate);
+        }
+    }
+
+    /**
+     * The element to evict next: eldest on probation, eldest protected or eldest in the window
+     */
+    private Map.Entry<K, V> victim() {
+        if (!probation.isEmpty()) {
+            return eldest(probation);
+        }
+        if (!protectedSegment.isEmpty()) {
+            return eldest(protectedSegment);
+        }
+        return window.isEmpty() ? null : eldest(window);
+    }
+
+    private void evict(Map.Entry<K, V> victim) {
+        segmentOf(victim.getKey()).remove(victim.getKey());
+        cleaner.accept(victim);
+    }
+
+    private LinkedHashMap<K, V> segmentOf(K key) {
+        if (window.containsKey(key)) {
+            return window;
+        }
+        return protectedSegment.containsKey(key) ? protectedSegment : probation;
+    }
+
+    private <T> T locked(Supplier<T> action) {
+        if (!lock.tryLock()) {
+            final long start = System.nanoTime();
+            lock.lock();
+            lockWait.add(System.nanoTime() - start);
+        }
+        try {
+            return action.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static <K, V> Map.Entry<K, V> eldest(LinkedHashMap<K, V> segment) {
+        final var eldest = segment.entrySet().iterator().next();
+        return new AbstractMap.SimpleImmutableEntry<>(eldest);
+    }
+}
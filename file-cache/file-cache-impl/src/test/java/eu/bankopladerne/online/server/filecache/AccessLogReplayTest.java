@@ -0,0 +1,91 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AccessLogReplayTest {
+    private FileSystem fileSystem;
+
+    @BeforeEach
+    void setUp() {
+        this.fileSystem = Jimfs.newFileSystem("test", Configuration.unix());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        fileSystem.close();
+    }
+
+    @Test
+    void hotSet_objectNames_mostFrequentFirst() throws IOException {
+        // Given
+        final var accessLog = accessLog("A", "B", "C", "B", "", "C", "B", "D");
+
+        // When
+        final var hotSet = AccessLogReplay.hotSet(accessLog, 10);
+
+        // Then
+        assertThat(hotSet).containsExactly("B", "C", "A", "D");
+    }
+
+    @Test
+    void hotSet_maxObjects_limitsObjects() throws IOException {
+        // Given
+        final var accessLog = accessLog("A", "B", "B", "C", "C", "C");
+
+        // When
+        final var hotSet = AccessLogReplay.hotSet(accessLog, 2);
+
+        // Then
+        assertThat(hotSet).containsExactly("C", "B");
+    }
+
+    @Test
+    void hotSet_objectNameOf_skipsOtherLines() throws IOException {
+        // Given
+        final var accessLog = accessLog(
+                "GET /api/images/numbers/7 200",
+                "GET /index.html 200",
+                "GET /api/images/numbers/42 200",
+                "GET /api/images/numbers/42 200");
+
+        // When
+        final var hotSet = AccessLogReplay.hotSet(accessLog, line -> {
+            final var parts = line.split(" ");
+            return parts[1].startsWith("/api/images/numbers/") ? parts[1].substring(parts[1].lastIndexOf('/') + 1) : null;
+        }, 10);
+
+        // Then
+        assertThat(hotSet).containsExactly("42", "7");
+    }
+
+    private Path accessLog(String... lines) throws IOException {
+        return Files.write(fileSystem.getPath("/access.log"), List.of(lines));
+    }
+}
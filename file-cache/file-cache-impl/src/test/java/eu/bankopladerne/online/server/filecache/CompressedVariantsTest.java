@@ -0,0 +1,123 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CompressedVariantsTest {
+    private final AtomicLong bytes = new AtomicLong();
+    private FileSystem fileSystem;
+    private CompressedVariants compressedVariants;
+
+    @BeforeEach
+    void setUp() {
+        this.fileSystem = Jimfs.newFileSystem("test", Configuration.unix());
+        this.compressedVariants = new CompressedVariants(name -> true, CompressedVariantsTest::delete,
+                (compressed, size) -> bytes.addAndGet(size));
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        fileSystem.close();
+    }
+
+    @Test
+    void compress_compressible_recordsVariant() throws IOException {
+        // Given
+        final var primary = primary("A", new byte[1000]);
+        final var target = fileSystem.getPath("/A.gz");
+
+        // When
+        compressedVariants.compress("A", primary, target, file -> true);
+
+        // Then
+        assertThat(compressedVariants.get("A", primary)).isEqualTo(target);
+        assertThat(bytes.get()).isEqualTo(Files.size(target)).isLessThan(1000L);
+    }
+
+    @Test
+    void compress_notCompressible_deletesTarget() throws IOException {
+        // Given
+        final var content = new byte[1000];
+        new Random(42).nextBytes(content);
+        final var primary = primary("A", content);
+        final var target = fileSystem.getPath("/A.gz");
+
+        // When
+        compressedVariants.compress("A", primary, target, file -> true);
+
+        // Then
+        assertThat(compressedVariants.get("A", primary)).isNull();
+        assertThat(target).doesNotExist();
+        assertThat(bytes.get()).isZero();
+    }
+
+    @Test
+    void compress_replacedMeanwhile_dropsVariant() throws IOException {
+        // Given
+        final var primary = primary("A", new byte[1000]);
+        final var target = fileSystem.getPath("/A.gz");
+
+        // When
+        compressedVariants.compress("A", primary, target, file -> false);
+
+        // Then
+        assertThat(compressedVariants.get("A", primary)).isNull();
+        assertThat(target).doesNotExist();
+        assertThat(bytes.get()).isZero();
+    }
+
+    @Test
+    void get_otherFileOfObject_returnsNull() throws IOException {
+        // Given
+        final var primary = primary("A", new byte[1000]);
+        compressedVariants.compress("A", primary, fileSystem.getPath("/A.gz"), file -> true);
+
+        // When
+        final var compressed = compressedVariants.get("A", new CachedFile(primary.path(), 1000, Instant.EPOCH, null));
+
+        // Then
+        assertThat(compressed).isNull();
+    }
+
+    private CachedFile primary(String name, byte[] content) throws IOException {
+        final var path = Files.write(fileSystem.getPath("/" + name), content);
+        return new CachedFile(path, content.length, Instant.EPOCH, null);
+    }
+
+    private static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
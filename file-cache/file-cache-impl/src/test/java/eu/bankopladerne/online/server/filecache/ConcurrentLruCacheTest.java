@@ -0,0 +1,285 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ConcurrentLruCacheTest {
+
+    @Test
+    void computeIfAbsent_didNotExist_invokesMappingFunction() {
+        // Given
+        final var cache = new ConcurrentLruCache<String, String>(1);
+
+        // When
+        final var computed = cache.computeIfAbsent("A", k -> "1");
+
+        // Then
+        assertThat(computed).isEqualTo("1");
+        assertThat(cache.get("A")).isEqualTo("1");
+    }
+
+    @Test
+    void computeIfAbsent_didExist_returnsExisting() {
+        // Given
+        final var cache = new ConcurrentLruCache<String, String>(1);
+
+        cache.put("A", "1");
+
+        // When
+        final var computed = cache.computeIfAbsent("A", k -> "x");
+
+        // Then
+        assertThat(computed).isEqualTo("1");
+    }
+
+    @Test
+    void computeIfAbsent_mappingFunctionReturnsNull_notCached() {
+        // Given
+        final var cache = new ConcurrentLruCache<String, String>(1);
+
+        // When
+        final var computed = cache.computeIfAbsent("A", k -> null);
+
+        // Then
+        assertThat(computed).isNull();
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    void put_exists_returnsPrevious() {
+        // Given
+        final var cache = new ConcurrentLruCache<String, String>(1);
+
+        cache.put("A", "1");
+
+        // When
+        final var previous = cache.put("A", "2");
+
+        // Then
+        assertThat(previous).isEqualTo("1");
+        assertThat(cache.get("A")).isEqualTo("2");
+    }
+
+    @Test
+    void put_tooMany_retainsLatestAccessed() {
+        // Given
+        final var cache = new ConcurrentLruCache<String, String>(2);
+
+        cache.put("C", "3");
+        cache.put("A", "1");
+        cache.get("C");
+        cache.put("B", "2");
+
+        // When
+        final var first = cache.get("A");
+        final var last = cache.get("B");
+        final var accessed = cache.get("C");
+
+        // Then
+        assertThat(first).isNull();
+        assertThat(last).isEqualTo("2");
+        assertThat(accessed).isEqualTo("3");
+    }
+
+    @Test
+    void get_manyReads_readBufferIsDrained() {
+        // Given
+        final var cache = new ConcurrentLruCache<Integer, Integer>(10);
+
+        IntStream.range(0, 10).forEach(i -> cache.put(i, i));
+
+        // When - reading more than the read buffer holds, 0 is the latest accessed
+        IntStream.rangeClosed(1, ConcurrentLruCache.READ_BUFFER_SIZE * 10).forEach(i -> cache.get(i % 10));
+        cache.put(10, 10);
+
+        // Then
+        assertThat(cache.get(0)).isEqualTo(0);
+        assertThat(cache.get(1)).isNull();
+    }
+
+    @Test
+    void get_readsOnOtherThreads_allReadBuffersDrained() throws Exception {
+        // Given
+        final var cache = new ConcurrentLruCache<Integer, Integer>(10);
+
+        IntStream.range(0, 10).forEach(i -> cache.put(i, i));
+
+        // When - each of 0..4 read on its own thread, likely recorded in different read buffers
+        for (int i = 0; i < 5; i++) {
+            final int key = i;
+            final var reader = Thread.ofPlatform().start(() -> cache.get(key));
+            reader.join();
+        }
+        IntStream.range(10, 15).forEach(i -> cache.put(i, i));
+
+        // Then - 5..9 are evicted as the least recently used
+        IntStream.range(0, 5).forEach(i -> assertThat(cache.get(i)).isEqualTo(i));
+        IntStream.range(5, 10).forEach(i -> assertThat(cache.get(i)).isNull());
+    }
+
+    @Test
+    void evict_elementsCached_evictsEldestAndCleans() {
+        // Given
+        final var cleaned = new ArrayList<String>();
+        final var cache = new ConcurrentLruCache<String, String>(3, e -> false, e -> cleaned.add(e.getKey()));
+
+        cache.put("A", "1");
+        cache.put("B", "2");
+        cache.get("A");
+
+        // When
+        final var first = cache.evict();
+        final var second = cache.evict();
+        final var third = cache.evict();
+
+        // Then
+        assertThat(first).isTrue();
+        assertThat(second).isTrue();
+        assertThat(third).isFalse();
+        assertThat(cleaned).containsExactly("B", "A");
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    void evictWithCondition_eldestMatches_evictsToCleanerGiven() {
+        // Given
+        final var cleaned = new ArrayList<String>();
+        final var evictedBy = new ArrayList<String>();
+        final var cache = new ConcurrentLruCache<String, String>(3, e -> false, e -> cleaned.add(e.getKey()));
+
+        cache.put("A", "1");
+        cache.put("B", "2");
+
+        // When
+        final var notMatching = cache.evict(e -> e.getKey().equals("B"), e -> evictedBy.add(e.getKey()));
+        final var matching = cache.evict(e -> e.getKey().equals("A"), e -> evictedBy.add(e.getKey()));
+
+        // Then
+        assertThat(notMatching).isFalse();
+        assertThat(matching).isTrue();
+        assertThat(evictedBy).containsExactly("A");
+        assertThat(cleaned).isEmpty();
+        assertThat(cache.size()).isOne();
+    }
+
+    @Test
+    void remove_exists_returnsRemovedWithoutCleaning() {
+        // Given
+        final var cleaned = new ArrayList<String>();
+        final var cache = new ConcurrentLruCache<String, String>(3, e -> false, e -> cleaned.add(e.getKey()));
+
+        cache.put("A", "1");
+        cache.put("B", "2");
+
+        // When
+        final var removed = cache.remove("A");
+
+        // Then
+        assertThat(removed).isEqualTo("1");
+        assertThat(cache.get("A")).isNull();
+        assertThat(cache.size()).isOne();
+        assertThat(cleaned).isEmpty();
+    }
+
+    @Test
+    void forEach_elementsCached_eldestFirst() {
+        // Given
+        final var cache = new ConcurrentLruCache<String, String>(3);
+
+        cache.put("A", "1");
+        cache.put("B", "2");
+        cache.put("C", "3");
+        cache.get("A");
+
+        // When
+        final var keys = new ArrayList<String>();
+        cache.forEach((k, v) -> keys.add(k));
+
+        // Then
+        assertThat(keys).containsExactly("B", "C", "A");
+    }
+
+    @Test
+    void ctor_withCleaner_succeeds() {
+        // Given...
+        // Flag for cleaner called
+        final var cleaned = new AtomicBoolean();
+        // We do not like "A"
+        final var cache = new ConcurrentLruCache<String, String>(2, e -> "A".equals(e.getKey()), e -> cleaned.set(true));
+
+        // When
+        cache.put("A", "A");
+        cache.computeIfAbsent("B", k -> k);
+
+        // Then
+        assertThat(cache.size()).isOne();
+        assertThat(cache.get("B")).isEqualTo("B");
+        assertThat(cleaned).isTrue();
+    }
+
+    @Test
+    void concurrentAccess_manyThreads_boundedAndCleaned() throws Exception {
+        // Given
+        final var maxElements = 100;
+        final var evicted = new AtomicInteger();
+        final var cache = new ConcurrentLruCache<Integer, Integer>(maxElements, e -> false, e -> evicted.incrementAndGet());
+        final var threads = 16;
+        final var operations = 10_000;
+        final var start = new CountDownLatch(1);
+
+        // When
+        try (final var executor = Executors.newFixedThreadPool(threads)) {
+            final var futures = new ArrayList<Future<?>>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    final var random = ThreadLocalRandom.current();
+                    for (int i = 0; i < operations; i++) {
+                        final var key = random.nextInt(maxElements * 2);
+                        if (cache.get(key) == null) {
+                            cache.computeIfAbsent(key, k -> k);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (var future : futures) {
+                future.get();
+            }
+        }
+
+        // Then - every element added is either cached or evicted and cleaned
+        assertThat(cache.size()).isEqualTo(maxElements);
+        final var added = IntStream.range(0, maxElements * 2)
+                .filter(i -> cache.get(i) != null)
+                .count();
+        assertThat(added).isEqualTo(maxElements);
+        assertThat(evicted.get()).isPositive();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class FailureBackoffTest {
+    private final AtomicReference<Instant> now = new AtomicReference<>(Instant.EPOCH);
+
+    @Test
+    void beforeProducing_neverFailed_producesFirstTime() {
+        // Given
+        final var failureBackoff = failureBackoff(1);
+
+        // When
+        final var retry = failureBackoff.beforeProducing("A");
+
+        // Then
+        assertThat(retry).isFalse();
+    }
+
+    @Test
+    void beforeProducing_failedRecently_throwsWithCause() {
+        // Given
+        final var failureBackoff = failureBackoff(1);
+        final var failure = new IllegalStateException("failed");
+        failureBackoff.completed("A", false, failure);
+
+        // When/Then
+        assertThatThrownBy(() -> failureBackoff.beforeProducing("A"))
+                .isInstanceOf(ProductionFailedException.class)
+                .hasCause(failure)
+                .extracting("retryAt").isEqualTo(Instant.EPOCH.plusSeconds(1));
+    }
+
+    @Test
+    void completed_consecutiveFailures_doublesBackoffUpToMax() {
+        // Given
+        final var failureBackoff = failureBackoff(1);
+        failureBackoff.completed("A", false, new IllegalStateException());
+
+        // When
+        final var retryAts = new Instant[4];
+        for (int i = 0; i < retryAts.length; i++) {
+            now.set(retryAtOf(failureBackoff, "A"));
+            assertThat(failureBackoff.beforeProducing("A")).isTrue();
+            failureBackoff.completed("A", true, new IllegalStateException());
+            retryAts[i] = retryAtOf(failureBackoff, "A");
+        }
+
+        // Then - 1s, 2s, 4s, 8s capped at 5s
+        assertThat(retryAts).containsExactly(
+                Instant.EPOCH.plusSeconds(1 + 2),
+                Instant.EPOCH.plusSeconds(1 + 2 + 4),
+                Instant.EPOCH.plusSeconds(1 + 2 + 4 + 5),
+                Instant.EPOCH.plusSeconds(1 + 2 + 4 + 5 + 5));
+    }
+
+    @Test
+    void completed_retrySucceeded_forgetsFailure() {
+        // Given
+        final var failureBackoff = failureBackoff(1);
+        failureBackoff.completed("A", false, new IllegalStateException());
+        now.set(Instant.EPOCH.plusSeconds(1));
+        final var retry = failureBackoff.beforeProducing("A");
+
+        // When
+        failureBackoff.completed("A", retry, null);
+
+        // Then
+        assertThat(failureBackoff.beforeProducing("A")).isFalse();
+    }
+
+    @Test
+    void beforeProducing_tooManyRetries_throws() {
+        // Given
+        final var failureBackoff = failureBackoff(1);
+        failureBackoff.completed("A", false, new IllegalStateException());
+        failureBackoff.completed("B", false, new IllegalStateException());
+        now.set(Instant.EPOCH.plusSeconds(1));
+        final var retry = failureBackoff.beforeProducing("A");
+
+        // When/Then
+        assertThatThrownBy(() -> failureBackoff.beforeProducing("B")).isInstanceOf(ProductionFailedException.class);
+        failureBackoff.completed("A", retry, null);
+        assertThat(failureBackoff.beforeProducing("B")).isTrue();
+    }
+
+    private FailureBackoff failureBackoff(int maxConcurrentRetries) {
+        return new FailureBackoff(Duration.ofSeconds(1), Duration.ofSeconds(5), maxConcurrentRetries, 10,
+                CacheFactory.simplest(), now::get);
+    }
+
+    private static Instant retryAtOf(FailureBackoff failureBackoff, String objectName) {
+        try {
+            failureBackoff.beforeProducing(objectName);
+        } catch (ProductionFailedException e) {
+            return e.getRetryAt();
+        }
+        throw new AssertionError("Not backing off " + objectName);
+    }
+}
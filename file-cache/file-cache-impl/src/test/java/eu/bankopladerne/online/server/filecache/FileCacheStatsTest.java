@@ -0,0 +1,84 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import eu.bankopladerne.online.server.filecache.FileCacheStats.EvictionCause;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FileCacheStatsTest {
+
+    @Test
+    void produced_variousDurations_countedInBuckets() {
+        // Given
+        final var stats = new FileCacheStats(() -> 0L, () -> 0L, () -> 0L);
+        final long now = System.nanoTime();
+
+        // When
+        stats.startProducing();
+        stats.produced(now, true);
+        stats.startProducing();
+        stats.produced(now - TimeUnit.MILLISECONDS.toNanos(30), true);
+        stats.startProducing();
+        stats.produced(now - TimeUnit.SECONDS.toNanos(10), true);
+        stats.startProducing();
+        stats.produced(now, false);
+
+        // Then
+        final var histogram = stats.produceTimeHistogram();
+        final var buckets = FileCacheStats.produceTimeBuckets();
+        assertThat(histogram).hasSize(buckets.size() + 1);
+        assertThat(histogram[0]).isOne();
+        assertThat(histogram[buckets.indexOf(Duration.ofMillis(50))]).isOne();
+        assertThat(histogram[buckets.size()]).isOne();
+        assertThat(stats.productions()).isEqualTo(3);
+        assertThat(stats.productionFailures()).isOne();
+        assertThat(stats.producing()).isZero();
+        assertThat(stats.produceTime()).isGreaterThan(Duration.ofSeconds(10));
+    }
+
+    @Test
+    void evicted_causes_countedSeparately() {
+        // Given
+        final var stats = new FileCacheStats(() -> 0L, () -> 0L, () -> 0L);
+
+        // When
+        stats.evicted(EvictionCause.SIZE);
+        stats.evicted(EvictionCause.FREE_SPACE);
+        stats.evicted(EvictionCause.FREE_SPACE);
+
+        // Then
+        assertThat(stats.evictions(EvictionCause.SIZE)).isOne();
+        assertThat(stats.evictions(EvictionCause.BYTES)).isZero();
+        assertThat(stats.evictions(EvictionCause.FREE_SPACE)).isEqualTo(2);
+    }
+
+    @Test
+    void lockWaitTime_cacheLocksWaited_includesBoth() {
+        // Given
+        final var stats = new FileCacheStats(() -> 0L, () -> 0L, () -> 1_000L);
+
+        // When
+        stats.lockWaited(500L);
+
+        // Then
+        assertThat(stats.lockWaitTime()).isEqualTo(Duration.ofNanos(1_500L));
+    }
+}
@@ -24,15 +24,39 @@ import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.catchThrowable;
 
 /**
  * Testing the FileCache, using the Jimfs library
@@ -111,6 +135,59 @@ class FileCacheTest {
         assertThat(countFilesInFileSystem(tmp)).isEqualTo(3);
     }
 
+    @Test
+    void produceAndCache_tinyLfu_retainsPopularFiles() {
+        // Given
+        final var tmp = tempDirectory();
+        final var fileCache = new FileCache(tmp, 3, 10, 1, CacheFactory.tinyLfu());
+
+        final var counter = counter();
+        final var producer = countingProducer(counter);
+
+        fileCache.produceAndCache("A", producer);
+        fileCache.produceAndCache("B", producer);
+        fileCache.produceAndCache("C", producer);
+        fileCache.produceAndCache("A", producer);
+        fileCache.produceAndCache("A", producer);
+
+        // When - files only requested once
+        fileCache.produceAndCache("D", producer);
+        fileCache.produceAndCache("E", producer);
+        fileCache.produceAndCache("A", producer);
+
+        // Then: A is produced once, 3 files retained
+        assertThat(counter.get()).isEqualTo(5);
+        assertThat(countFilesInFileSystem(tmp)).isEqualTo(3);
+    }
+
+    @Test
+    void produceAndCache_asyncDeletion_deletesEvictedFilesInBackground() throws Exception {
+        // Given
+        final var tmp = tempDirectory();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .maxFilesToCache(3)
+                .minFreeSpacePercent(10)
+                .asyncDeletion(10, 2)
+                .build();
+
+        final var counter = counter();
+        final var producer = countingProducer(counter);
+
+        // When
+        IntStream.range(0, 6).forEach(i -> fileCache.produceAndCache(Integer.toString(i), producer));
+
+        // Then: eventually 3 files retained
+        final var deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (countFilesInFileSystem(tmp) > 3 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(countFilesInFileSystem(tmp)).isEqualTo(3);
+
+        fileCache.close();
+        assertThat(Files.exists(tmp)).isFalse();
+    }
+
     @Test
     void produceAndCache_producingFiles_doesNotUseAllSpace() {
         // Given - use space up to 90%
@@ -133,6 +210,79 @@ class FileCacheTest {
                 .count()).isOne();
     }
 
+    @Test
+    void produceAndCache_maxBytesToCache_evictsUntilWithinBudget() {
+        // Given
+        final var tmp = tempDirectory();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .maxBytesToCache(250)
+                .minFreeSpacePercent(0.0)
+                .build();
+
+        final var counter = counter();
+        fileCache.produceAndCache("A", countingProducer(counter, 100));
+        fileCache.produceAndCache("B", countingProducer(counter, 100));
+
+        // When
+        fileCache.produceAndCache("C", countingProducer(counter, 200));
+
+        // Then: both A and B are evicted to make room for C
+        assertThat(fileCache.bytesCached()).isEqualTo(200);
+        assertThat(countFilesInFileSystem(tmp)).isOne();
+    }
+
+    @Test
+    void bytesCached_filesProducedAndEvicted_tracksTotal() {
+        // Given
+        final var tmp = tempDirectory();
+        final var fileCache = new FileCache(tmp, 2, 10, 1);
+
+        final var counter = counter();
+
+        // When
+        fileCache.produceAndCache("A", countingProducer(counter, 10));
+        fileCache.produceAndCache("B", countingProducer(counter, 20));
+        fileCache.produceAndCache("C", countingProducer(counter, 40));
+
+        // Then: A is evicted
+        assertThat(fileCache.bytesCached()).isEqualTo(60);
+    }
+
+    @Test
+    void builder_invalidSettings_throwsIllegalArgument() {
+        assertThatThrownBy(() -> FileCache.builder().maxFilesToCache(0))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> FileCache.builder().minFreeSpacePercent(101.0))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> FileCache.builder().maxBytesToCache(0L))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void produceAndCache_freeSpaceSampled_doesNotUseAllSpace() {
+        // Given - sampling rarely, but immediately when 100 bytes are cached
+        final var tmp = tempDirectory();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .maxFilesToCache(100)
+                .minFreeSpacePercent(10)
+                .freeSpaceSampling(Duration.ofHours(1), 100)
+                .build();
+
+        final var producing100Bytes = countingProducer(counter(), 100);
+
+        IntStream.range(0, 9).forEach(i -> {
+            fileCache.produceAndCache(Integer.toString(i), producing100Bytes);
+        });
+
+        // When
+        fileCache.produceAndCache("A", producing100Bytes);
+
+        // Then
+        assertThat(countFilesInFileSystem(tmp)).isEqualTo(9);
+    }
+
     @Test
     void produceAndCache_fileIsGone_producesAgain() {
         // Given
@@ -159,6 +309,113 @@ class FileCacheTest {
         assertThat(usableSpace(tmp)).isEqualTo(FILE_SYSTEM_MAX_SIZE - 1);
     }
 
+    @Test
+    void produceAndCache_scrubbingFileIsGone_servedUntilScrubbed() throws IOException {
+        // Given
+        final var tmp = tempDirectory();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .scrubbing(Duration.ofHours(1), 10)
+                .build();
+        final var counter = counter();
+        final var produced = fileCache.produceAndCache("A", countingProducer(counter));
+        Files.delete(produced);
+
+        // When - hits trust the file produced, the scrubber finds it gone
+        final var trusted = fileCache.produceAndCache("A", countingProducer(counter));
+        final var corrupted = fileCache.scrub();
+        fileCache.produceAndCache("A", countingProducer(counter));
+
+        // Then
+        assertThat(trusted).isEqualTo(produced);
+        assertThat(corrupted).isOne();
+        assertThat(counter.get()).isEqualTo(2);
+        assertThat(fileCache.stats().evictions(FileCacheStats.EvictionCause.CORRUPT)).isOne();
+        assertThat(fileCache.stats().filesScrubbed()).isOne();
+    }
+
+    @Test
+    void scrub_corruptedFile_evictsAndDeletes() throws IOException {
+        // Given
+        final var tmp = tempDirectory();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .scrubbing(Duration.ofHours(1), 10)
+                .build();
+        final var intact = fileCache.produceAndCache("A", countingProducer(counter(), 3));
+        final var corrupt = fileCache.produceAndCache("B", countingProducer(counter(), 3));
+        Files.write(corrupt, new byte[]{1, 2, 3});
+
+        // When
+        final var corrupted = fileCache.scrub();
+
+        // Then
+        assertThat(corrupted).isOne();
+        assertThat(Files.exists(intact)).isTrue();
+        assertThat(Files.exists(corrupt)).isFalse();
+        assertThat(fileCache.bytesCached()).isEqualTo(3);
+    }
+
+    @Test
+    void reconcile_producerReturnedOtherFile_reclaimsOrphans() throws IOException {
+        // Given - a producer leaving a file behind, and a crash leaving a temporary file
+        final var tmp = tempDirectory();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .reconciling(Duration.ofHours(1), Duration.ZERO)
+                .build();
+        final var leftBehind = new AtomicReference<Path>();
+        final var produced = fileCache.produceAndCache("A", (o, p) -> {
+            try {
+                leftBehind.set(Files.write(p.resolveSibling("left-behind"), new byte[7]));
+                return Files.write(p.resolveSibling("other"), new byte[3]);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        final var crashed = Files.write(tmp.resolve("B123456.tmp"), new byte[5]);
+        Files.setLastModifiedTime(crashed, FileTime.from(Instant.now().minusSeconds(60)));
+        Files.setLastModifiedTime(leftBehind.get(), FileTime.from(Instant.now().minusSeconds(60)));
+
+        // When
+        final var reclaimed = fileCache.reconcile();
+
+        // Then
+        assertThat(reclaimed).isEqualTo(12);
+        assertThat(Files.exists(produced)).isTrue();
+        assertThat(Files.exists(leftBehind.get())).isFalse();
+        assertThat(Files.exists(crashed)).isFalse();
+        assertThat(fileCache.stats().orphansReclaimed()).isEqualTo(2);
+        assertThat(fileCache.stats().orphanBytesReclaimed()).isEqualTo(12);
+    }
+
+    @Test
+    void scrub_persistentRestarted_verifiesRecordedChecksums() throws IOException {
+        // Given - corrupted while the FileCache was down
+        final var tmp = tempDirectory().resolve("persistent");
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .persistent(true)
+                .scrubbing(Duration.ofHours(1), 10)
+                .build();
+        final var produced = fileCache.produceAndCache("A", countingProducer(counter(), 3));
+        fileCache.close();
+        Files.write(produced, new byte[]{1, 2, 3});
+
+        // When
+        try (final var restarted = FileCache.builder()
+                .tempPath(tmp)
+                .persistent(true)
+                .scrubbing(Duration.ofHours(1), 10)
+                .build()) {
+            final var corrupted = restarted.scrub();
+
+            // Then
+            assertThat(corrupted).isOne();
+            assertThat(restarted.bytesCached()).isZero();
+        }
+    }
+
     @Test
     void produceAndCache_producingFails_tempFileIsRemoved() {
         // Given
@@ -197,52 +454,1438 @@ class FileCacheTest {
     }
 
     @Test
-    void close_filesProduced_doesCleanUp() {
-        // Given
+    void produceAndCache_singleFlight_producesOnceForConcurrentRequests() throws Exception {
+        // Given - far more concurrent requests than maxConcurrency
         final var tmp = tempDirectory();
-        final var fileCache = new FileCache(tmp, 100, 10, 1);
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .maxConcurrency(1)
+                .singleFlight(true)
+                .build();
 
         final var counter = counter();
-        final var producer = countingProducer(counter, 100);
+        final var producing = new CountDownLatch(1);
+        final var release = new CountDownLatch(1);
+        final FileProducer slowProducer = (o, p) -> {
+            producing.countDown();
+            await(release);
+            return countingProducer(counter).produceToCache(o, p);
+        };
 
-        IntStream.range(0, 9).forEach(i -> {
-            fileCache.produceAndCache(Integer.toString(i), producer);
-        });
+        // When
+        try (final var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            final var leader = executor.submit(() -> fileCache.produceAndCache("A", slowProducer));
+            assertThat(producing.await(5, TimeUnit.SECONDS)).isTrue();
+
+            final var followers = IntStream.range(0, 16)
+                    .mapToObj(i -> executor.submit(() -> fileCache.produceAndCache("A", slowProducer)))
+                    .toList();
+            awaitJoining(fileCache, "A", followers.size());
+            release.countDown();
+
+            // Then
+            final var produced = leader.get();
+            for (var follower : followers) {
+                assertThat(follower.get()).isEqualTo(produced);
+            }
+        }
+        assertThat(counter.get()).isOne();
+    }
+
+    @Test
+    void produceAndCache_singleFlightMoreNamesThanMaxConcurrency_producesOnce() throws Exception {
+        // Given - the lock of A is evicted by other objects while A is being produced
+        final var tmp = tempDirectory();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .maxConcurrency(1)
+                .singleFlight(true)
+                .build();
+
+        final var productionsOfA = counter();
+        final var producing = new CountDownLatch(1);
+        final var release = new CountDownLatch(1);
+        final var others = countingProducer(counter());
+        final FileProducer slowProducerOfA = (o, p) -> {
+            productionsOfA.incrementAndGet();
+            producing.countDown();
+            await(release);
+            return others.produceToCache(o, p);
+        };
 
         // When
-        try {
-            fileCache.close();
-        } catch (IOException e) {
-            throw new AssertionError("Failed... " + e);
+        try (final var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            final var leader = executor.submit(() -> fileCache.produceAndCache("A", slowProducerOfA));
+            assertThat(producing.await(5, TimeUnit.SECONDS)).isTrue();
+            IntStream.range(0, 8).forEach(i -> fileCache.produceAndCache("B" + i, others));
+
+            final var followers = IntStream.range(0, 4)
+                    .mapToObj(i -> executor.submit(() -> fileCache.produceAndCache("A", slowProducerOfA)))
+                    .toList();
+            awaitJoining(fileCache, "A", followers.size());
+            release.countDown();
+
+            // Then
+            final var produced = leader.get();
+            for (var follower : followers) {
+                assertThat(follower.get()).isEqualTo(produced);
+            }
+        }
+        assertThat(productionsOfA.get()).isOne();
+    }
+
+    @Test
+    void produceAndCache_singleFlightProducingFails_allRequestsFail() throws Exception {
+        // Given
+        final var tmp = tempDirectory();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .singleFlight(true)
+                .build();
+
+        final var producing = new CountDownLatch(1);
+        final var release = new CountDownLatch(1);
+        final FileProducer failingProducer = (o, p) -> {
+            producing.countDown();
+            await(release);
+            throw new IllegalStateException("failed");
+        };
+
+        // When
+        try (final var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            final var leader = executor.submit(() -> fileCache.produceAndCache("A", failingProducer));
+            assertThat(producing.await(5, TimeUnit.SECONDS)).isTrue();
+            final var follower = executor.submit(() -> fileCache.produceAndCache("A", failingProducer));
+            awaitJoining(fileCache, "A", 1);
+            release.countDown();
+
+            // Then
+            assertThatThrownBy(leader::get).hasCauseInstanceOf(IllegalStateException.class);
+            assertThatThrownBy(follower::get).hasCauseInstanceOf(IllegalStateException.class);
         }
+        assertThat(countFilesInFileSystem(tmp)).isZero();
+    }
+
+    @Test
+    void produceAndCacheAsync_cached_completesImmediately() {
+        // Given
+        final var tmp = tempDirectory();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .build();
+        final var counter = counter();
+        final var produced = fileCache.produceAndCache("A", countingProducer(counter));
+
+        // When
+        final var future = fileCache.produceAndCacheAsync("A", countingProducer(counter));
 
         // Then
-        assertThat(Files.exists(tmp)).isFalse();
-        assertThat(usableSpace(tmp)).isEqualTo(FILE_SYSTEM_MAX_SIZE);
+        assertThat(future).isCompletedWithValue(produced);
+        assertThat(counter.get()).isOne();
     }
 
     @Test
-    void ensureOnlyValidFSCharacters_sunshine_succeeds() {
+    void produceAndCacheAsync_notCached_producesOnExecutor() {
         // Given
-        final var objectName = "file/\\:*?\"<>|.txt";
+        final var tmp = tempDirectory();
+        final var executed = counter();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .executor(command -> {
+                    executed.incrementAndGet();
+                    command.run();
+                })
+                .build();
+        final var counter = counter();
 
         // When
-        final var ensureOnlyValidFSCharacters = FileCache.ensureOnlyValidFSCharacters(objectName);
+        final var produced = fileCache.produceAndCacheAsync("A", countingProducer(counter)).join();
 
         // Then
-        assertThat(ensureOnlyValidFSCharacters).isEqualTo("file~~~~~~~~~.txt");
+        assertThat(executed.get()).isOne();
+        assertThat(counter.get()).isOne();
+        assertThat(fileCache.produceAndCache("A", countingProducer(counter))).isEqualTo(produced);
+        assertThat(counter.get()).isOne();
     }
 
-    private Path tempDirectory() {
-        return fileSystem.getPath(JIMFS_WORKING_DIR);
+    @Test
+    void produceAsync_inFlight_joinsProductionInFlight() {
+        // Given
+        final var tmp = tempDirectory();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .build();
+        final var counter = counter();
+        final var production = new CompletableFuture<Path>();
+        final AsyncFileProducer asyncProducer = (o, p) -> {
+            counter.incrementAndGet();
+            return production.thenApply(ignored -> {
+                try {
+                    return Files.write(p, new byte[1]);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        };
+
+        // When
+        final var first = fileCache.produceAsync("A", asyncProducer);
+        final var second = fileCache.produceAsync("A", asyncProducer);
+        assertThat(first).isNotDone();
+        assertThat(second).isNotDone();
+        production.complete(null);
+
+        // Then
+        assertThat(first.join()).isEqualTo(second.join());
+        assertThat(counter.get()).isOne();
+        assertThat(fileCache.produceAsync("A", asyncProducer)).isCompletedWithValue(first.join());
+        assertThat(fileCache.bytesCached()).isOne();
     }
 
-    private static Stream<Path> listOfFilesIn(Path tmp) {
-        try {
-            return Files.list(tmp);
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+    @Test
+    void produceAsync_producerFails_tempFileIsRemoved() {
+        // Given
+        final var tmp = tempDirectory();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .build();
+
+        // When
+        final var future = fileCache.produceAsync("A",
+                (o, p) -> CompletableFuture.failedFuture(new IllegalStateException("failed")));
+
+        // Then
+        assertThatThrownBy(future::join).hasCauseInstanceOf(IllegalStateException.class);
+        assertThat(countFilesInFileSystem(tmp)).isZero();
+    }
+
+    @Test
+    void produceAndStream_beingProduced_readersTailTheFile() throws Exception {
+        // Given
+        final var tmp = tempDirectory();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .build();
+        final var counter = counter();
+        final var halfWay = new CountDownLatch(1);
+        final StreamingFileProducer producer = (o, channel) -> {
+            counter.incrementAndGet();
+            channel.write(ByteBuffer.wrap("first".getBytes(StandardCharsets.US_ASCII)));
+            await(halfWay);
+            channel.write(ByteBuffer.wrap("-last".getBytes(StandardCharsets.US_ASCII)));
+        };
+
+        // When
+        try (final var first = fileCache.produceAndStream("A", producer);
+             final var second = fileCache.produceAndStream("A", producer)) {
+
+            // Then - the first bytes are read while still producing
+            assertThat(read(first, 5)).isEqualTo("first");
+            assertThat(read(second, 5)).isEqualTo("first");
+            halfWay.countDown();
+            assertThat(readAll(first)).isEqualTo("-last");
+            assertThat(readAll(second)).isEqualTo("-last");
+        }
+        assertThat(counter.get()).isOne();
+        assertThat(Files.readString(fileCache.produceAndCache("A", countingProducer(counter)))).isEqualTo("first-last");
+        assertThat(counter.get()).isOne();
+    }
+
+    @Test
+    void produceAndStream_cached_readsCachedFile() throws IOException {
+        // Given
+        final var tmp = tempDirectory();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .build();
+        final var counter = counter();
+        fileCache.produceAndCache("A", countingProducer(counter, 3));
+
+        // When
+        try (final var channel = fileCache.produceAndStream("A", (o, c) -> counter.incrementAndGet())) {
+
+            // Then
+            assertThat(readAll(channel)).hasSize(3);
+            assertThat(counter.get()).isOne();
+            assertThat(fileCache.stats().hits()).isOne();
+        }
+    }
+
+    @Test
+    void produceAndStream_producerFails_readersFail() throws IOException {
+        // Given
+        final var tmp = tempDirectory();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .build();
+
+        // When
+        try (final var channel = fileCache.produceAndStream("A", (o, c) -> {
+            c.write(ByteBuffer.wrap(new byte[3]));
+            throw new IOException("failed");
+        })) {
+
+            // Then
+            assertThatThrownBy(() -> readAll(channel))
+                    .isInstanceOf(IOException.class)
+                    .hasRootCauseMessage("failed");
+        }
+        assertThat(fileCache.bytesCached()).isZero();
+        assertThat(countFilesInFileSystem(tmp)).isZero();
+    }
+
+    @Test
+    void produceAndCache_persistentRestarted_doesNotProduceAgain() throws IOException {
+        // Given
+        final var tmp = tempDirectory().resolve("persistent");
+        final var counter = counter();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .minFreeSpacePercent(0.0)
+                .persistent(true)
+                .build();
+        final var produced = Stream.of("A", "B", "C")
+                .map(name -> fileCache.produceAndCache(name, countingProducer(counter, 10)))
+                .toList();
+        fileCache.close();
+
+        // When
+        try (final var restarted = FileCache.builder()
+                .tempPath(tmp)
+                .minFreeSpacePercent(0.0)
+                .persistent(true)
+                .build()) {
+
+            // Then
+            assertThat(restarted.bytesCached()).isEqualTo(30);
+            assertThat(Stream.of("A", "B", "C").map(name -> restarted.produceAndCache(name, countingProducer(counter, 10))))
+                    .containsExactlyElementsOf(produced);
+            assertThat(counter.get()).isEqualTo(3);
+        }
+    }
+
+    @Test
+    void close_persistentProductionInFlight_indexesFileProduced() throws Exception {
+        // Given - a production in flight on the executor owned by the FileCache
+        final var tmp = tempDirectory().resolve("persistent");
+        final var counter = counter();
+        final var producing = new CountDownLatch(1);
+        final var release = new CountDownLatch(1);
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .minFreeSpacePercent(0.0)
+                .persistent(true)
+                .build();
+        final var production = fileCache.produceAndCacheAsync("A", (name, tempFile) -> {
+            producing.countDown();
+            await(release);
+            return countingProducer(counter, 10).produceToCache(name, tempFile);
+        });
+        assertThat(producing.await(5, TimeUnit.SECONDS)).isTrue();
+
+        // When - closing while producing
+        final var closer = Thread.ofPlatform().start(() -> {
+            try {
+                fileCache.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        final var deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (closer.getState() != Thread.State.TIMED_WAITING && closer.isAlive() && System.nanoTime() < deadline) {
+            Thread.onSpinWait();
+        }
+        release.countDown();
+        closer.join();
+
+        // Then
+        assertThat(production.get(5, TimeUnit.SECONDS)).exists();
+        try (final var restarted = FileCache.builder()
+                .tempPath(tmp)
+                .minFreeSpacePercent(0.0)
+                .persistent(true)
+                .build()) {
+            assertThat(restarted.bytesCached()).isEqualTo(10);
+            restarted.produceAndCache("A", countingProducer(counter, 10));
+            assertThat(counter.get()).isOne();
+        }
+    }
+
+    @Test
+    void produceAndCache_persistentRestartedFileIsGone_producesAgain() throws IOException {
+        // Given
+        final var tmp = tempDirectory().resolve("persistent");
+        final var counter = counter();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .persistent(true)
+                .build();
+        final var produced = fileCache.produceAndCache("A", countingProducer(counter));
+        fileCache.close();
+        Files.delete(produced);
+
+        // When
+        try (final var restarted = FileCache.builder()
+                .tempPath(tmp)
+                .persistent(true)
+                .build()) {
+            restarted.produceAndCache("A", countingProducer(counter));
+
+            // Then
+            assertThat(counter.get()).isEqualTo(2);
+            assertThat(restarted.bytesCached()).isOne();
+        }
+    }
+
+    @Test
+    void produceAndCache_persistentRestartedFileTruncated_producesAgain() throws IOException {
+        // Given - truncated while the FileCache was down
+        final var tmp = tempDirectory().resolve("persistent");
+        final var counter = counter();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .persistent(true)
+                .build();
+        final var produced = fileCache.produceAndCache("A", countingProducer(counter, 3));
+        fileCache.close();
+        Files.write(produced, new byte[1]);
+
+        // When
+        try (final var restarted = FileCache.builder()
+                .tempPath(tmp)
+                .persistent(true)
+                .build()) {
+            final var bytesRestored = restarted.bytesCached();
+            restarted.produceAndCache("A", countingProducer(counter, 3));
+
+            // Then
+            assertThat(bytesRestored).isZero();
+            assertThat(counter.get()).isEqualTo(2);
+            assertThat(restarted.bytesCached()).isEqualTo(3);
+        }
+    }
+
+    @Test
+    void builder_persistentWithoutIndex_deletesUnknownFiles() throws IOException {
+        // Given - files left by a crashed FileCache
+        final var tmp = Files.createDirectories(tempDirectory().resolve("persistent"));
+        Files.write(tmp.resolve("A123"), new byte[10]);
+        Files.write(tmp.resolve("B456"), new byte[10]);
+
+        // When
+        try (final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .persistent(true)
+                .build()) {
+
+            // Then
+            assertThat(countFilesInFileSystem(tmp)).isZero();
+            assertThat(fileCache.bytesCached()).isZero();
+        }
+    }
+
+    @Test
+    void builder_persistentWithoutTempPath_throwsIllegalArgument() {
+        assertThatThrownBy(() -> FileCache.builder().persistent(true).build())
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void produceAndCache_hashedFileNames_namesFileByHash() {
+        // Given
+        final var tmp = tempDirectory();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .hashedFileNames(true)
+                .build();
+
+        // When
+        final var produced = fileCache.produceAndCache("A", countingProducer(counter()));
+
+        // Then
+        assertThat(produced).isEqualTo(tmp.resolve("7f").resolve("7fc56270e7a70fa81a5935b72eacbe29"));
+        assertThat(countFilesInFileSystem(produced.getParent())).isOne();
+    }
+
+    @Test
+    void produceAndCache_hashedFileNamesEvicted_keepsProducedAgain() {
+        // Given
+        final var tmp = tempDirectory();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .maxFilesToCache(1)
+                .minFreeSpacePercent(0.0)
+                .asyncDeletion(10, 1)
+                .hashedFileNames(true)
+                .build();
+        final var counter = counter();
+        final var first = fileCache.produceAndCache("A", countingProducer(counter));
+
+        // When - A is evicted and produced again while its file might still be queued for deletion
+        fileCache.produceAndCache("B", countingProducer(counter));
+        final var produced = fileCache.produceAndCache("A", countingProducer(counter));
+
+        // Then
+        assertThat(produced).isEqualTo(first);
+        assertThat(fileCache.produceAndCache("A", countingProducer(counter))).isEqualTo(produced);
+        assertThat(Files.isReadable(produced)).isTrue();
+        assertThat(counter.get()).isEqualTo(3);
+    }
+
+    @Test
+    void produceAndCache_hashedFileReplacedBeforeEvicted_keepsReplacement() throws IOException {
+        // Given
+        final var tmp = tempDirectory();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .maxFilesToCache(1)
+                .minFreeSpacePercent(0.0)
+                .hashedFileNames(true)
+                .build();
+        final var first = fileCache.produceAndCache("A", countingProducer(counter()));
+
+        // When - A is produced again into its place, as by a concurrent production not cached yet, before evicted
+        final var replacement = Files.write(tmp.resolve("replacement"), new byte[2]);
+        Files.move(replacement, first, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        fileCache.produceAndCache("B", countingProducer(counter()));
+
+        // Then
+        assertThat(first).exists();
+        assertThat(Files.size(first)).isEqualTo(2);
+    }
+
+    @Test
+    void produceAndCache_persistentHashedFileNamesWithoutIndex_adoptsFilesLeft() throws IOException {
+        // Given - files left by a crashed FileCache, without an index
+        final var tmp = tempDirectory().resolve("persistent");
+        final var counter = counter();
+        final var crashed = FileCache.builder()
+                .tempPath(tmp)
+                .persistent(true)
+                .hashedFileNames(true)
+                .build();
+        final var produced = crashed.produceAndCache("A", countingProducer(counter));
+        crashed.close();
+        Files.delete(tmp.resolve(CacheIndex.FILE_NAME));
+        final var partial = Files.write(produced.resolveSibling(produced.getFileName() + ".tmp1"), new byte[1]);
+
+        // When
+        try (final var restarted = FileCache.builder()
+                .tempPath(tmp)
+                .persistent(true)
+                .hashedFileNames(true)
+                .build()) {
+
+            // Then
+            assertThat(partial).doesNotExist();
+            assertThat(restarted.bytesCached()).isZero();
+            assertThat(restarted.produceAndCache("A", countingProducer(counter))).isEqualTo(produced);
+            assertThat(restarted.bytesCached()).isOne();
+            assertThat(counter.get()).isOne();
+        }
+    }
+
+    @Test
+    void reconcile_adoptedWhileReconciling_keepsFileAdopted() throws IOException {
+        // Given - a file left by a crashed FileCache long ago
+        final var tmp = tempDirectory().resolve("persistent");
+        final var counter = counter();
+        final var crashed = FileCache.builder()
+                .tempPath(tmp)
+                .persistent(true)
+                .hashedFileNames(true)
+                .build();
+        final var produced = crashed.produceAndCache("A", countingProducer(counter));
+        crashed.close();
+        Files.delete(tmp.resolve(CacheIndex.FILE_NAME));
+        Files.setLastModifiedTime(produced, FileTime.from(Instant.now().minus(Duration.ofDays(1))));
+        try (final var restarted = FileCache.builder()
+                .tempPath(tmp)
+                .persistent(true)
+                .hashedFileNames(true)
+                .build();
+             final var reconciler = new Reconciler(Duration.ZERO, Duration.ofHours(1), List.of(tmp), Set::of,
+                     FileCacheTest::delete, (file, bytes) -> {
+             })) {
+
+            // When - adopted after the reconciler took its snapshot of the files known
+            final var adopted = restarted.produceAndCache("A", countingProducer(counter));
+            reconciler.reconcile();
+
+            // Then
+            assertThat(adopted).isEqualTo(produced).exists();
+            assertThat(counter.get()).isOne();
+        }
+    }
+
+    @Test
+    void produceAndCache_persistentHashedFileNamesRestarted_doesNotProduceAgain() throws IOException {
+        // Given
+        final var tmp = tempDirectory().resolve("persistent");
+        final var counter = counter();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .persistent(true)
+                .hashedFileNames(true)
+                .build();
+        final var produced = fileCache.produceAndCache("A", countingProducer(counter));
+        fileCache.close();
+
+        // When
+        try (final var restarted = FileCache.builder()
+                .tempPath(tmp)
+                .persistent(true)
+                .hashedFileNames(true)
+                .build()) {
+
+            // Then
+            assertThat(restarted.produceAndCache("A", countingProducer(counter))).isEqualTo(produced);
+            assertThat(counter.get()).isOne();
+        }
+    }
+
+    @Test
+    void produceAndCache_tempPaths_spreadsFilesAcrossDirectories() throws IOException {
+        // Given
+        final var shards = List.of(Files.createDirectories(tempDirectory().resolve("a")),
+                Files.createDirectories(tempDirectory().resolve("b")));
+        final var names = IntStream.range(0, 20).mapToObj(Integer::toString).toList();
+        try (final var fileCache = FileCache.builder()
+                .tempPaths(shards)
+                .maxFilesToCache(100)
+                .minFreeSpacePercent(0.0)
+                .build()) {
+
+            // When
+            final var produced = names.stream()
+                    .map(name -> fileCache.produceAndCache(name, countingProducer(counter())))
+                    .toList();
+
+            // Then
+            assertThat(produced).allMatch(path -> path.startsWith(shards.get(0)) || path.startsWith(shards.get(1)));
+            assertThat(produced).anyMatch(path -> path.startsWith(shards.get(0)));
+            assertThat(produced).anyMatch(path -> path.startsWith(shards.get(1)));
+            assertThat(fileCache.bytesCached()).isEqualTo(20);
+        }
+    }
+
+    @Test
+    void produceAndCache_otherTempPathLowOnFreeSpace_keepsFilesOnHealthyTempPath() throws IOException {
+        // Given - the second directory is on a FileStore low on free space
+        try (final var other = Jimfs.newFileSystem("other", JIMFS_CONFIGURATION)) {
+            final var shards = List.of(Files.createDirectories(tempDirectory().resolve("a")),
+                    Files.createDirectories(other.getPath(JIMFS_WORKING_DIR, "b")));
+            Files.write(other.getPath(JIMFS_WORKING_DIR, "filler"), new byte[FILE_SYSTEM_MAX_SIZE * 9 / 10]);
+            final var names = IntStream.range(0, 5).mapToObj(Integer::toString).toList();
+            final var counter = counter();
+            try (final var fileCache = FileCache.builder()
+                    .tempPaths(shards)
+                    .maxFilesToCache(100)
+                    .minFreeSpacePercent(20.0)
+                    .build()) {
+
+                // When
+                final var produced = names.stream()
+                        .map(name -> fileCache.produceAndCache(name, countingProducer(counter)))
+                        .toList();
+                names.forEach(name -> fileCache.produceAndCache(name, countingProducer(counter)));
+
+                // Then - placed on the healthy directory, evicting them would not free space on the other FileStore
+                assertThat(produced).allMatch(path -> path.startsWith(shards.get(0)));
+                assertThat(counter.get()).isEqualTo(5);
+                assertThat(fileCache.bytesCached()).isEqualTo(5);
+            }
+        }
+    }
+
+    @Test
+    void produceAndCache_hashedTempPathLowOnFreeSpaceWhileProducing_movedNextToTemporaryFile() throws IOException {
+        // Given - an object placed on the second directory, whose FileStore gets low on free space while producing
+        try (final var other = Jimfs.newFileSystem("other", JIMFS_CONFIGURATION)) {
+            final var shards = List.of(Files.createDirectories(tempDirectory().resolve("a")),
+                    Files.createDirectories(other.getPath(JIMFS_WORKING_DIR, "b")));
+            final String objectName;
+            try (final var storage = new StorageShards(shards, Duration.ZERO, 0L)) {
+                objectName = IntStream.range(0, 100).mapToObj(Integer::toString)
+                        .filter(name -> storage.shardOf(name, 0.0).directory().equals(shards.get(1)))
+                        .findFirst()
+                        .orElseThrow();
+            }
+            final FileProducer fillingUp = (name, tempFile) -> {
+                try {
+                    Files.write(tempFile, new byte[10]);
+                    Files.write(other.getPath(JIMFS_WORKING_DIR, "filler"), new byte[FILE_SYSTEM_MAX_SIZE * 9 / 10]);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return tempFile;
+            };
+            try (final var fileCache = FileCache.builder()
+                    .tempPaths(shards)
+                    .hashedFileNames(true)
+                    .minFreeSpacePercent(20.0)
+                    .build()) {
+
+                // When
+                final var produced = fileCache.produceAndCache(objectName, fillingUp);
+
+                // Then - moved into place on the directory produced on, then evicted as it is low on free space
+                assertThat(produced.startsWith(shards.get(1))).isTrue();
+                assertThat(produced.getFileName()).hasToString(FileCache.hashedFileName(objectName));
+                assertThat(fileCache.stats().evictions(FileCacheStats.EvictionCause.FREE_SPACE)).isOne();
+            }
+        }
+    }
+
+    @Test
+    void produceAndCache_persistentTempPathsRestarted_doesNotProduceAgain() throws IOException {
+        // Given
+        final var shards = List.of(tempDirectory().resolve("a"), tempDirectory().resolve("b"));
+        final var names = IntStream.range(0, 10).mapToObj(Integer::toString).toList();
+        final var counter = counter();
+        final var fileCache = FileCache.builder()
+                .tempPaths(shards)
+                .minFreeSpacePercent(0.0)
+                .persistent(true)
+                .build();
+        final var produced = names.stream()
+                .map(name -> fileCache.produceAndCache(name, countingProducer(counter)))
+                .toList();
+        fileCache.close();
+
+        // When
+        try (final var restarted = FileCache.builder()
+                .tempPaths(shards)
+                .minFreeSpacePercent(0.0)
+                .persistent(true)
+                .build()) {
+
+            // Then
+            assertThat(names.stream().map(name -> restarted.produceAndCache(name, countingProducer(counter))))
+                    .containsExactlyElementsOf(produced);
+            assertThat(counter.get()).isEqualTo(10);
+        }
+    }
+
+    @Test
+    void produceAndCache_persistentTempPathRemoved_producesItsObjectsAgain() throws IOException {
+        // Given
+        final var shards = List.of(tempDirectory().resolve("a"), tempDirectory().resolve("b"));
+        final var names = IntStream.range(0, 6).mapToObj(Integer::toString).toList();
+        final var counter = counter();
+        final var fileCache = FileCache.builder()
+                .tempPaths(shards)
+                .minFreeSpacePercent(0.0)
+                .persistent(true)
+                .build();
+        final var produced = names.stream()
+                .map(name -> fileCache.produceAndCache(name, countingProducer(counter)))
+                .toList();
+        fileCache.close();
+        final var inRemaining = produced.stream().filter(path -> path.startsWith(shards.get(0))).count();
+
+        // When
+        try (final var restarted = FileCache.builder()
+                .tempPaths(shards.subList(0, 1))
+                .minFreeSpacePercent(0.0)
+                .persistent(true)
+                .build()) {
+            names.forEach(name -> restarted.produceAndCache(name, countingProducer(counter)));
+
+            // Then - only the objects of the directory removed are produced again, into the remaining one
+            assertThat(counter.get()).isEqualTo(6 + 6 - inRemaining);
+            assertThat(restarted.bytesCached()).isEqualTo(6);
+        }
+    }
+
+    @Test
+    void produceAndCacheBytes_memoryTier_servesFromMemory() throws IOException {
+        // Given
+        final var tmp = tempDirectory();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .memoryTier(100, 10, 2)
+                .build();
+        final var counter = counter();
+        final var first = fileCache.produceAndCacheBytes("A", countingProducer(counter, 5));
+        final var promoted = fileCache.produceAndCacheBytes("A", countingProducer(counter, 5));
+
+        // When - the file is gone but the content is held in memory
+        try (final var list = Files.list(tmp)) {
+            list.forEach(path -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        final var fromMemory = fileCache.produceAndCacheBytes("A", countingProducer(counter, 5));
+
+        // Then
+        assertThat(first.isDirect()).isFalse();
+        assertThat(promoted.isDirect()).isTrue();
+        assertThat(fromMemory).isEqualTo(first);
+        assertThat(counter.get()).isOne();
+        assertThat(fileCache.bytesInMemory()).isEqualTo(5);
+    }
+
+    @Test
+    void produceAndCacheBytes_evictedFromDisk_droppedFromMemory() {
+        // Given
+        final var tmp = tempDirectory();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .maxFilesToCache(1)
+                .minFreeSpacePercent(0.0)
+                .memoryTier(100, 10, 1)
+                .build();
+        final var counter = counter();
+        fileCache.produceAndCacheBytes("A", countingProducer(counter, 5));
+
+        // When
+        fileCache.produceAndCacheBytes("B", countingProducer(counter, 5));
+        fileCache.produceAndCacheBytes("A", countingProducer(counter, 5));
+
+        // Then
+        assertThat(counter.get()).isEqualTo(3);
+        assertThat(fileCache.bytesInMemory()).isEqualTo(5);
+    }
+
+    @Test
+    void produceAndCache_expired_producesAgain() {
+        // Given
+        final var tmp = tempDirectory();
+        final var now = new AtomicReference<>(Instant.EPOCH);
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .timeToLive(Duration.ofSeconds(10))
+                .clock(now::get)
+                .build();
+        final var counter = counter();
+        final var produced = fileCache.produceAndCache("A", countingProducer(counter));
+
+        // When
+        now.set(Instant.EPOCH.plusSeconds(9));
+        final var beforeExpiry = fileCache.produceAndCache("A", countingProducer(counter));
+        now.set(Instant.EPOCH.plusSeconds(10));
+        final var afterExpiry = fileCache.produceAndCache("A", countingProducer(counter));
+
+        // Then
+        assertThat(beforeExpiry).isEqualTo(produced);
+        assertThat(afterExpiry).isNotEqualTo(produced);
+        assertThat(counter.get()).isEqualTo(2);
+        assertThat(countFilesInFileSystem(tmp)).isOne();
+        assertThat(fileCache.bytesCached()).isOne();
+    }
+
+    @Test
+    void produceAndCache_refreshAhead_servesCurrentWhileRefreshing() {
+        // Given
+        final var tmp = tempDirectory();
+        final var now = new AtomicReference<>(Instant.EPOCH);
+        final var refreshes = new ArrayList<Runnable>();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .timeToLive(Duration.ofSeconds(10))
+                .refreshAhead(Duration.ofSeconds(5))
+                .clock(now::get)
+                .executor(refreshes::add)
+                .build();
+        final var counter = counter();
+        final var produced = fileCache.produceAndCache("A", countingProducer(counter));
+
+        // When
+        now.set(Instant.EPOCH.plusSeconds(6));
+        final var whileRefreshing = fileCache.produceAndCache("A", countingProducer(counter));
+        fileCache.produceAndCache("A", countingProducer(counter));
+        refreshes.forEach(Runnable::run);
+        final var refreshed = fileCache.produceAndCache("A", countingProducer(counter));
+
+        // Then
+        assertThat(whileRefreshing).isEqualTo(produced);
+        assertThat(refreshes).hasSize(1);
+        assertThat(refreshed).isNotEqualTo(produced);
+        assertThat(counter.get()).isEqualTo(2);
+        assertThat(countFilesInFileSystem(tmp)).isOne();
+    }
+
+    @Test
+    void produceAndCache_expiredWhileRefreshing_joinsRefresh() throws Exception {
+        // Given
+        final var tmp = tempDirectory();
+        final var now = new AtomicReference<>(Instant.EPOCH);
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .timeToLive(Duration.ofSeconds(10))
+                .refreshAhead(Duration.ofSeconds(5))
+                .singleFlight(true)
+                .clock(now::get)
+                .build();
+        final var counter = counter();
+        fileCache.produceAndCache("A", countingProducer(counter));
+
+        final var refreshing = new CountDownLatch(1);
+        final var release = new CountDownLatch(1);
+        final FileProducer slowProducer = (o, p) -> {
+            refreshing.countDown();
+            await(release);
+            return countingProducer(counter).produceToCache(o, p);
+        };
+
+        // When - the refresh is still in flight when the object expires
+        now.set(Instant.EPOCH.plusSeconds(6));
+        fileCache.produceAndCache("A", slowProducer);
+        assertThat(refreshing.await(5, TimeUnit.SECONDS)).isTrue();
+        now.set(Instant.EPOCH.plusSeconds(11));
+        try (final var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            final var expired = executor.submit(() -> fileCache.produceAndCache("A", slowProducer));
+            awaitJoining(fileCache, "A", 1);
+            release.countDown();
+
+            // Then
+            assertThat(expired.get()).exists();
+        }
+        assertThat(counter.get()).isEqualTo(2);
+    }
+
+    @Test
+    void builder_refreshAheadNotLessThanTimeToLive_throwsIllegalArgument() {
+        assertThatThrownBy(() -> FileCache.builder().refreshAhead(Duration.ofSeconds(1)).build())
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> FileCache.builder()
+                .timeToLive(Duration.ofSeconds(1))
+                .refreshAhead(Duration.ofSeconds(1))
+                .build())
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void stats_requestsAndEvictions_areCounted() {
+        // Given
+        final var tmp = tempDirectory();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .maxFilesToCache(3)
+                .maxBytesToCache(25)
+                .minFreeSpacePercent(0.0)
+                .build();
+        final var counter = counter();
+
+        // When
+        fileCache.produceAndCache("A", countingProducer(counter, 10));
+        fileCache.produceAndCache("A", countingProducer(counter, 10));
+        fileCache.produceAndCache("B", countingProducer(counter, 10));
+        fileCache.produceAndCache("C", countingProducer(counter, 1));
+        fileCache.produceAndCache("D", countingProducer(counter, 20));
+
+        // Then
+        final var stats = fileCache.stats();
+        assertThat(stats.hits()).isOne();
+        assertThat(stats.misses()).isEqualTo(4);
+        assertThat(stats.productions()).isEqualTo(4);
+        assertThat(stats.evictions(FileCacheStats.EvictionCause.SIZE)).isOne();
+        assertThat(stats.evictions(FileCacheStats.EvictionCause.BYTES)).isOne();
+        assertThat(stats.evictions(FileCacheStats.EvictionCause.FREE_SPACE)).isZero();
+        assertThat(stats.filesCached()).isEqualTo(2);
+        assertThat(stats.bytesCached()).isEqualTo(21);
+    }
+
+    @Test
+    void stats_byteBudgetFindsNothingToEvict_laterEvictionCountedBySize() {
+        // Given - the files to evict for the byte budget are evicted by another thread first
+        final var tmp = tempDirectory();
+        final var evictedElsewhere = new AtomicBoolean(true);
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .maxFilesToCache(2)
+                .maxBytesToCache(15)
+                .minFreeSpacePercent(0.0)
+                .cacheFactory(new CacheFactory() {
+                    @Override
+                    public <K, V> Cache<K, V> create(int maxElements, Predicate<Map.Entry<K, V>> cleanPredicate, Consumer<Map.Entry<K, V>> cleaner) {
+                        return new SimplestCache<>(maxElements, cleanPredicate, cleaner) {
+                            @Override
+                            public boolean evict(Predicate<Map.Entry<K, V>> condition, Consumer<Map.Entry<K, V>> cleaner) {
+                                return !evictedElsewhere.getAndSet(false) && super.evict(condition, cleaner);
+                            }
+                        };
+                    }
+                })
+                .build();
+        final var counter = counter();
+        fileCache.produceAndCache("A", countingProducer(counter, 10));
+        fileCache.produceAndCache("B", countingProducer(counter, 10));
+
+        // When - too many files
+        fileCache.produceAndCache("C", countingProducer(counter, 1));
+
+        // Then
+        final var stats = fileCache.stats();
+        assertThat(stats.evictions(FileCacheStats.EvictionCause.SIZE)).isOne();
+        assertThat(stats.evictions(FileCacheStats.EvictionCause.BYTES)).isZero();
+    }
+
+    @Test
+    void produceAndCache_largerThanMaxBytesToCache_failsWithoutCaching() {
+        // Given
+        final var tmp = tempDirectory();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .maxBytesToCache(5)
+                .minFreeSpacePercent(0.0)
+                .build();
+
+        // When
+        final var thrown = catchThrowable(() -> fileCache.produceAndCache("A", countingProducer(counter(), 10)));
+
+        // Then - not returning a path about to be deleted
+        assertThat(thrown).isInstanceOf(UncheckedIOException.class).hasMessageContaining("maxBytesToCache");
+        assertThat(countFilesInFileSystem(tmp)).isZero();
+        assertThat(fileCache.bytesCached()).isZero();
+        assertThat(fileCache.stats().evictions(FileCacheStats.EvictionCause.BYTES)).isZero();
+    }
+
+    @Test
+    void produceAndCache_failureBackoff_failsFastUntilBackoffPassed() {
+        // Given
+        final var tmp = tempDirectory();
+        final var now = new AtomicReference<>(Instant.EPOCH);
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .failureBackoff(Duration.ofSeconds(1), Duration.ofMinutes(1), 1)
+                .clock(now::get)
+                .build();
+        final var attempts = counter();
+        final FileProducer failingProducer = (o, p) -> {
+            attempts.incrementAndGet();
+            throw new IllegalStateException("failed");
+        };
+        assertThatThrownBy(() -> fileCache.produceAndCache("A", failingProducer)).isInstanceOf(IllegalStateException.class);
+
+        // When
+        final var backingOff = catchThrowable(() -> fileCache.produceAndCache("A", failingProducer));
+        now.set(Instant.EPOCH.plusSeconds(1));
+        final var counter = counter();
+        final var produced = fileCache.produceAndCache("A", countingProducer(counter));
+
+        // Then
+        assertThat(backingOff).isInstanceOf(ProductionFailedException.class).hasCauseInstanceOf(IllegalStateException.class);
+        assertThat(attempts.get()).isOne();
+        assertThat(produced).exists();
+        assertThat(counter.get()).isOne();
+        assertThat(countFilesInFileSystem(tmp)).isOne();
+    }
+
+    @Test
+    void produceAsync_failureBackoff_failsFastUntilBackoffPassed() {
+        // Given
+        final var tmp = tempDirectory();
+        final var now = new AtomicReference<>(Instant.EPOCH);
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .failureBackoff(Duration.ofSeconds(10), Duration.ofMinutes(1), 1)
+                .clock(now::get)
+                .build();
+        final var attempts = counter();
+        final AsyncFileProducer failingProducer = (o, p) -> {
+            attempts.incrementAndGet();
+            return CompletableFuture.failedFuture(new IllegalStateException("failed"));
+        };
+        assertThat(fileCache.produceAsync("A", failingProducer)).isCompletedExceptionally();
+
+        // When - requested while backing off, the backoff is not extended
+        now.set(Instant.EPOCH.plusSeconds(5));
+        final var first = catchThrowable(() -> fileCache.produceAsync("A", failingProducer).join());
+        now.set(Instant.EPOCH.plusSeconds(9));
+        final var second = catchThrowable(() -> fileCache.produceAsync("A", failingProducer).join());
+        now.set(Instant.EPOCH.plusSeconds(10));
+        final var produced = fileCache.produceAsync("A", (o, p) -> {
+            try {
+                return CompletableFuture.completedFuture(Files.write(p, new byte[1]));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        // Then
+        for (var backingOff : List.of(first, second)) {
+            assertThat(backingOff).hasCauseInstanceOf(ProductionFailedException.class);
+            final var failed = (ProductionFailedException) backingOff.getCause();
+            assertThat(failed.getRetryAt()).isEqualTo(Instant.EPOCH.plusSeconds(10));
+            assertThat(failed).hasCauseInstanceOf(IllegalStateException.class);
+        }
+        assertThat(attempts.get()).isOne();
+        assertThat(produced.join()).exists();
+    }
+
+    @Test
+    void produceAndCache_maxConcurrentProductionsReached_rejectsOthers() throws Exception {
+        // Given
+        final var tmp = tempDirectory();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .maxConcurrentProductions(1, 0, Duration.ofSeconds(1), false)
+                .build();
+
+        final var counter = counter();
+        final var producing = new CountDownLatch(1);
+        final var release = new CountDownLatch(1);
+        final FileProducer slowProducer = (o, p) -> {
+            producing.countDown();
+            await(release);
+            return countingProducer(counter).produceToCache(o, p);
+        };
+
+        try (final var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            final var producingA = executor.submit(() -> fileCache.produceAndCache("A", slowProducer));
+            assertThat(producing.await(5, TimeUnit.SECONDS)).isTrue();
+
+            // When
+            final var rejected = catchThrowable(() -> fileCache.produceAndCache("B", countingProducer(counter)));
+            release.countDown();
+            producingA.get();
+            final var producedB = fileCache.produceAndCache("B", countingProducer(counter));
+
+            // Then
+            assertThat(rejected).isInstanceOf(RejectedExecutionException.class);
+            assertThat(producedB).exists();
+        }
+        assertThat(counter.get()).isEqualTo(2);
+        assertThat(fileCache.stats().productionsRejected()).isOne();
+    }
+
+    @Test
+    void warmUp_someCached_producesOthers() throws InterruptedException {
+        // Given
+        final var tmp = tempDirectory();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .build();
+        final var counter = counter();
+        fileCache.produceAndCache("0", countingProducer(counter));
+
+        // When
+        final var warmedUp = fileCache.warmUp(IntStream.range(0, 10).mapToObj(Integer::toString), countingProducer(counter), 3);
+
+        // Then
+        assertThat(warmedUp).isEqualTo(9);
+        assertThat(counter.get()).isEqualTo(10);
+        assertThat(countFilesInFileSystem(tmp)).isEqualTo(10);
+        assertThat(fileCache.stats().misses()).isOne();
+    }
+
+    @Test
+    void warmUp_producerFails_skipsObject() throws InterruptedException {
+        // Given
+        final var tmp = tempDirectory();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .singleFlight(true)
+                .build();
+        final var counter = counter();
+        final FileProducer producer = (o, p) -> {
+            if (o.equals("B")) {
+                throw new IllegalStateException("failed");
+            }
+            return countingProducer(counter).produceToCache(o, p);
+        };
+
+        // When
+        final var warmedUp = fileCache.warmUp(Stream.of("A", "B", "C"), producer, 1);
+
+        // Then
+        assertThat(warmedUp).isEqualTo(2);
+        assertThat(countFilesInFileSystem(tmp)).isEqualTo(2);
+    }
+
+    @Test
+    void validator_contentHashes_recordsHashOfContent() throws Exception {
+        // Given
+        final var tmp = tempDirectory();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .contentHashes(true)
+                .clock(() -> Instant.EPOCH)
+                .build();
+        fileCache.produceAndCache("A", countingProducer(counter(), 10));
+
+        // When
+        final var validator = fileCache.validator("A");
+
+        // Then
+        assertThat(validator.contentHash())
+                .isEqualTo(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(new byte[10])));
+        assertThat(validator.produced()).isEqualTo(Instant.EPOCH);
+        assertThat(fileCache.validator("B")).isNull();
+    }
+
+    @Test
+    void validator_noContentHashes_onlyProduced() {
+        // Given
+        final var tmp = tempDirectory();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .clock(() -> Instant.EPOCH)
+                .build();
+        fileCache.produceAndCache("A", countingProducer(counter()));
+
+        // When
+        final var validator = fileCache.validator("A");
+
+        // Then
+        assertThat(validator).isEqualTo(new ContentValidator(null, Instant.EPOCH));
+    }
+
+    @Test
+    void validator_persistentRestarted_keepsContentHash() throws IOException {
+        // Given
+        final var tmp = tempDirectory().resolve("persistent");
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .minFreeSpacePercent(0.0)
+                .persistent(true)
+                .contentHashes(true)
+                .clock(() -> Instant.EPOCH)
+                .build();
+        fileCache.produceAndCache("A", countingProducer(counter(), 10));
+        final var validator = fileCache.validator("A");
+        fileCache.close();
+
+        // When
+        try (final var restarted = FileCache.builder()
+                .tempPath(tmp)
+                .minFreeSpacePercent(0.0)
+                .persistent(true)
+                .contentHashes(true)
+                .clock(() -> Instant.EPOCH)
+                .build()) {
+
+            // Then
+            assertThat(restarted.validator("A")).isEqualTo(validator);
+        }
+    }
+
+    @Test
+    void produceAndCacheObject_contentHashes_validatorOfFileReturned() throws Exception {
+        // Given
+        final var tmp = tempDirectory();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .contentHashes(true)
+                .clock(() -> Instant.EPOCH)
+                .build();
+
+        // When
+        final var produced = fileCache.produceAndCacheObject("A", countingProducer(counter(), 10));
+        final var cached = fileCache.produceAndCacheObject("A", countingProducer(counter(), 10));
+
+        // Then
+        assertThat(produced.validator().contentHash())
+                .isEqualTo(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(produced.path()))));
+        assertThat(produced.validator().produced()).isEqualTo(Instant.EPOCH);
+        assertThat(cached).isEqualTo(produced);
+    }
+
+    @Test
+    void produceAndCacheContent_refreshedWhileServingFromMemory_validatorOfContentReturned() {
+        // Given
+        final var tmp = tempDirectory();
+        final var now = new AtomicReference<>(Instant.EPOCH);
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .timeToLive(Duration.ofSeconds(10))
+                .refreshAhead(Duration.ofSeconds(5))
+                .clock(now::get)
+                .executor(Runnable::run)
+                .memoryTier(100, 10, 1)
+                .build();
+        final var counter = counter();
+        fileCache.produceAndCacheContent("A", countingProducer(counter, 5));
+
+        // When - the content held in memory is refreshed by the request
+        now.set(Instant.EPOCH.plusSeconds(6));
+        final var served = fileCache.produceAndCacheContent("A", countingProducer(counter, 6));
+
+        // Then
+        assertThat(counter.get()).isEqualTo(2);
+        assertThat(served.validator().produced()).isEqualTo(served.content().remaining() == 5 ? Instant.EPOCH : now.get());
+    }
+
+    @Test
+    void compressedVariant_compressible_compressedAfterProduced() throws IOException {
+        // Given
+        final var tmp = tempDirectory();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .minFreeSpacePercent(0.0)
+                .executor(Runnable::run)
+                .compressedVariants(name -> name.endsWith(".svg"))
+                .build();
+
+        // When
+        final var produced = fileCache.produceAndCache("A.svg", countingProducer(counter(), 300));
+        final var notCompressible = fileCache.produceAndCache("B.png", countingProducer(counter(), 300));
+
+        // Then
+        final var compressed = fileCache.compressedVariant("A.svg");
+        assertThat(compressed).exists();
+        try (final var in = new GZIPInputStream(Files.newInputStream(compressed))) {
+            assertThat(in.readAllBytes()).isEqualTo(Files.readAllBytes(produced));
+        }
+        assertThat(fileCache.bytesCached()).isEqualTo(600 + Files.size(compressed));
+        assertThat(fileCache.compressedVariant("B.png")).isNull();
+        assertThat(notCompressible).exists();
+        assertThat(countFilesInFileSystem(tmp)).isEqualTo(3);
+    }
+
+    @Test
+    void compressedVariant_evicted_deletesVariant() {
+        // Given
+        final var tmp = tempDirectory();
+        final var fileCache = FileCache.builder()
+                .tempPath(tmp)
+                .maxFilesToCache(1)
+                .minFreeSpacePercent(0.0)
+                .executor(Runnable::run)
+                .compressedVariants(name -> true)
+                .build();
+        fileCache.produceAndCache("A", countingProducer(counter(), 300));
+        final var compressed = fileCache.compressedVariant("A");
+
+        // When
+        fileCache.produceAndCache("B", countingProducer(counter(), 300));
+
+        // Then
+        assertThat(compressed).doesNotExist();
+        assertThat(fileCache.compressedVariant("A")).isNull();
+        assertThat(fileCache.compressedVariant("B")).exists();
+        assertThat(countFilesInFileSystem(tmp)).isEqualTo(2);
+    }
+
+    @Test
+    void produceAndCacheObject_compressedVariants_returnsVariantOfFileReturned() {
+        // Given
+        final var fileCache = FileCache.builder()
+                .tempPath(tempDirectory())
+                .minFreeSpacePercent(0.0)
+                .executor(Runnable::run)
+                .compressedVariants(name -> name.endsWith(".svg"))
+                .build();
+        fileCache.produceAndCache("A.svg", countingProducer(counter(), 300));
+
+        // When
+        final var compressible = fileCache.produceAndCacheObject("A.svg", countingProducer(counter(), 300));
+        final var notCompressible = fileCache.produceAndCacheObject("B.png", countingProducer(counter(), 300));
+
+        // Then
+        assertThat(compressible.compressed()).exists().isEqualTo(fileCache.compressedVariant("A.svg"));
+        assertThat(notCompressible.compressed()).isNull();
+    }
+
+    @Test
+    void close_filesProduced_doesCleanUp() {
+        // Given
+        final var tmp = tempDirectory();
+        final var fileCache = new FileCache(tmp, 100, 10, 1);
+
+        final var counter = counter();
+        final var producer = countingProducer(counter, 100);
+
+        IntStream.range(0, 9).forEach(i -> {
+            fileCache.produceAndCache(Integer.toString(i), producer);
+        });
+
+        // When
+        try {
+            fileCache.close();
+        } catch (IOException e) {
+            throw new AssertionError("Failed... " + e);
+        }
+
+        // Then
+        assertThat(Files.exists(tmp)).isFalse();
+        assertThat(usableSpace(tmp)).isEqualTo(FILE_SYSTEM_MAX_SIZE);
+    }
+
+    @Test
+    void ensureOnlyValidFSCharacters_sunshine_succeeds() {
+        // Given
+        final var objectName = "file/\\:*?\"<>|.txt";
+
+        // When
+        final var ensureOnlyValidFSCharacters = FileCache.ensureOnlyValidFSCharacters(objectName);
+
+        // Then
+        assertThat(ensureOnlyValidFSCharacters).isEqualTo("file~~~~~~~~~.txt");
+    }
+
+    @Test
+    void hashedFileName_sunshine_succeeds() {
+        // When
+        final var hashedFileName = FileCache.hashedFileName("A");
+
+        // Then
+        assertThat(hashedFileName).isEqualTo("7fc56270e7a70fa81a5935b72eacbe29");
+    }
+
+    private Path tempDirectory() {
+        return fileSystem.getPath(JIMFS_WORKING_DIR);
+    }
+
+    private static Stream<Path> listOfFilesIn(Path tmp) {
+        try {
+            return Files.list(tmp);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.delete(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Wait for the number of requests to join the production of the object in flight, for at most 5 seconds
+     */
+    private static void awaitJoining(FileCache fileCache, String objectName, int requests) throws InterruptedException {
+        final var deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (fileCache.joining(objectName) < requests && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Read exactly length bytes from the channel
+     */
+    private static String read(ReadableByteChannel channel, int length) throws IOException {
+        final var buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            // keep reading
+        }
+        return new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII);
+    }
+
+    private static String readAll(ReadableByteChannel channel) throws IOException {
+        final var content = new StringBuilder();
+        final var buffer = ByteBuffer.allocate(16);
+        while (channel.read(buffer) >= 0) {
+            content.append(new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII));
+            buffer.clear();
         }
+        return content.toString();
     }
 
     private static AtomicInteger counter() {
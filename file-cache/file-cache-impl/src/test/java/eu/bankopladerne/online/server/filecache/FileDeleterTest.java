@@ -0,0 +1,197 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class FileDeleterTest {
+    private static final Path A = Path.of("A");
+    private static final Path B = Path.of("B");
+    private static final Path C = Path.of("C");
+
+    @Test
+    void delete_synchronous_deletesImmediately() throws Exception {
+        // Given
+        final var deleted = new CopyOnWriteArrayList<Path>();
+
+        try (final var fileDeleter = FileDeleter.synchronous(deleted::add)) {
+            // When
+            fileDeleter.delete(A);
+
+            // Then
+            assertThat(deleted).containsExactly(A);
+        }
+    }
+
+    @Test
+    void delete_background_deletesInBatches() throws Exception {
+        // Given
+        final var deleted = new CopyOnWriteArrayList<Path>();
+        final var batches = new AtomicInteger();
+        final var allDeleted = new CountDownLatch(3);
+
+        try (final var fileDeleter = FileDeleter.background(p -> {
+            deleted.add(p);
+            allDeleted.countDown();
+        }, 10, 10, batches::incrementAndGet)) {
+            // When
+            fileDeleter.delete(A);
+            fileDeleter.delete(B);
+            fileDeleter.delete(C);
+
+            // Then
+            assertThat(allDeleted.await(5, TimeUnit.SECONDS)).isTrue();
+            assertThat(deleted).containsExactlyInAnyOrder(A, B, C);
+        }
+        // the batch is completed once the background thread has stopped
+        assertThat(batches.get()).isBetween(1, 3);
+    }
+
+    @Test
+    void delete_backlogFull_deletedByCaller() throws Exception {
+        // Given - deleting A blocks the background thread
+        final var deletingA = new CountDownLatch(1);
+        final var releaseA = new CountDownLatch(1);
+        final var deletedBy = new CopyOnWriteArrayList<String>();
+
+        final var fileDeleter = FileDeleter.background(p -> {
+            if (p.equals(A)) {
+                deletingA.countDown();
+                await(releaseA);
+            }
+            deletedBy.add(p + ":" + Thread.currentThread().isVirtual());
+        }, 1, 1, () -> {
+        });
+
+        fileDeleter.delete(A);
+        assertThat(deletingA.await(5, TimeUnit.SECONDS)).isTrue();
+
+        // When - B fills the backlog, C has to be deleted by the caller
+        fileDeleter.delete(B);
+        fileDeleter.delete(C);
+
+        // Then
+        assertThat(deletedBy).containsExactly("C:false");
+        assertThat(fileDeleter.backlog()).isOne();
+
+        releaseA.countDown();
+        fileDeleter.close();
+        assertThat(deletedBy)
+                .hasSize(3)
+                .contains("A:true");
+    }
+
+    @Test
+    void close_filesQueued_deletesThem() throws Exception {
+        // Given - the background thread is blocked while deleting A
+        final var deletingA = new CountDownLatch(1);
+        final var deleted = new CopyOnWriteArrayList<Path>();
+
+        final var fileDeleter = FileDeleter.background(p -> {
+            if (p.equals(A) && deletingA.getCount() > 0) {
+                deletingA.countDown();
+                sleep();
+            }
+            deleted.add(p);
+        }, 10, 1, () -> {
+        });
+
+        fileDeleter.delete(A);
+        assertThat(deletingA.await(5, TimeUnit.SECONDS)).isTrue();
+        fileDeleter.delete(B);
+        fileDeleter.delete(C);
+
+        // When
+        fileDeleter.close();
+
+        // Then
+        assertThat(deleted).containsAll(List.of(B, C));
+        assertThat(fileDeleter.backlog()).isZero();
+    }
+
+    @Test
+    void delete_whileClosing_noFileLost() throws Exception {
+        // Given
+        final var deleted = ConcurrentHashMap.<Path>newKeySet();
+        final var fileDeleter = FileDeleter.background(deleted::add, 100_000, 10, () -> {
+        });
+        final var deleting = new CountDownLatch(1);
+        final var deleter = Thread.ofPlatform().start(() -> {
+            deleting.countDown();
+            for (int i = 0; i < 100_000; i++) {
+                fileDeleter.delete(Path.of("file" + i));
+            }
+        });
+        assertThat(deleting.await(5, TimeUnit.SECONDS)).isTrue();
+
+        // When
+        fileDeleter.close();
+        deleter.join();
+
+        // Then
+        assertThat(deleted).hasSize(100_000);
+        assertThat(fileDeleter.backlog()).isZero();
+    }
+
+    @Test
+    void delete_closed_deletedByCaller() {
+        // Given
+        final var deletedBy = new CopyOnWriteArrayList<String>();
+        final var fileDeleter = FileDeleter.background(p -> deletedBy.add(p + ":" + Thread.currentThread().isVirtual()), 10, 1, () -> {
+        });
+        fileDeleter.close();
+
+        // When
+        fileDeleter.delete(A);
+
+        // Then
+        assertThat(deletedBy).containsExactly("A:false");
+    }
+
+    @Test
+    void background_invalidSettings_throwsIllegalArgument() {
+        assertThatThrownBy(() -> FileDeleter.background(p -> {
+        }, 0, 1, () -> {
+        })).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(100);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import com.google.common.jimfs.PathType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class FreeSpaceMonitorTest {
+    private static final Configuration JIMFS_CONFIGURATION = Configuration.builder(PathType.unix())
+            .setAttributeViews("basic")
+            .setBlockSize(1)
+            .setMaxSize(1000)
+            .setRoots("/")
+            .setWorkingDirectory("/work")
+            .build();
+
+    private FileSystem fileSystem;
+
+    @BeforeEach
+    void setUp() {
+        this.fileSystem = Jimfs.newFileSystem("test", JIMFS_CONFIGURATION);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        fileSystem.close();
+    }
+
+    @Test
+    void freeSpacePercent_noInterval_queriesEveryTime() throws Exception {
+        // Given
+        final var freeSpaceMonitor = FreeSpaceMonitor.direct(fileStore());
+
+        // When
+        final var before = freeSpaceMonitor.freeSpacePercent();
+        write(500);
+        final var after = freeSpaceMonitor.freeSpacePercent();
+
+        // Then
+        assertThat(before).isEqualTo(100.0);
+        assertThat(after).isEqualTo(50.0);
+    }
+
+    @Test
+    void freeSpacePercent_sampled_returnsLatestSample() throws Exception {
+        // Given
+        try (final var freeSpaceMonitor = FreeSpaceMonitor.sampled(fileStore(), Duration.ofHours(1), 1000)) {
+            // When
+            write(500);
+            freeSpaceMonitor.written(500);
+
+            // Then - not enough bytes written to resample
+            assertThat(freeSpaceMonitor.freeSpacePercent()).isEqualTo(100.0);
+        }
+    }
+
+    @Test
+    void written_resampleAfterBytesReached_samplesImmediately() throws Exception {
+        // Given
+        try (final var freeSpaceMonitor = FreeSpaceMonitor.sampled(fileStore(), Duration.ofHours(1), 400)) {
+            // When
+            write(500);
+            freeSpaceMonitor.written(500);
+
+            // Then
+            assertThat(freeSpaceMonitor.freeSpacePercent()).isEqualTo(50.0);
+        }
+    }
+
+    @Test
+    void freeSpacePercent_intervalPassed_sampledInBackground() throws Exception {
+        // Given
+        try (final var freeSpaceMonitor = FreeSpaceMonitor.sampled(fileStore(), Duration.ofMillis(10), Long.MAX_VALUE)) {
+            // When
+            write(500);
+
+            // Then
+            final var deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+            while (freeSpaceMonitor.freeSpacePercent() > 50.0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(freeSpaceMonitor.freeSpacePercent()).isEqualTo(50.0);
+        }
+    }
+
+    @Test
+    void sampled_negativeInterval_throwsIllegalArgument() {
+        assertThatThrownBy(() -> FreeSpaceMonitor.sampled(fileStore(), Duration.ofMillis(-1), 1))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private FileStore fileStore() {
+        try {
+            return Files.getFileStore(fileSystem.getPath("/work"));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void write(int size) throws IOException {
+        Files.write(fileSystem.getPath("/work", "file-" + size), new byte[size]);
+    }
+}
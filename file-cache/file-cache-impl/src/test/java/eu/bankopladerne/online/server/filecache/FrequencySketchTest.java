@@ -0,0 +1,74 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FrequencySketchTest {
+
+    @Test
+    void frequency_neverIncremented_isZero() {
+        // Given
+        final var sketch = new FrequencySketch<String>(100);
+
+        // When - Then
+        assertThat(sketch.frequency("A")).isZero();
+    }
+
+    @Test
+    void increment_severalTimes_estimatesFrequency() {
+        // Given
+        final var sketch = new FrequencySketch<String>(100);
+
+        // When
+        IntStream.range(0, 5).forEach(i -> sketch.increment("A"));
+        sketch.increment("B");
+
+        // Then
+        assertThat(sketch.frequency("A")).isEqualTo(5);
+        assertThat(sketch.frequency("B")).isOne();
+    }
+
+    @Test
+    void increment_manyTimes_saturates() {
+        // Given
+        final var sketch = new FrequencySketch<String>(100);
+
+        // When
+        IntStream.range(0, 100).forEach(i -> sketch.increment("A"));
+
+        // Then
+        assertThat(sketch.frequency("A")).isEqualTo(FrequencySketch.MAX_FREQUENCY);
+    }
+
+    @Test
+    void increment_sampleSizeReached_halvesFrequencies() {
+        // Given
+        final var sketch = new FrequencySketch<Integer>(10);
+
+        IntStream.range(0, 8).forEach(i -> sketch.increment(-1));
+
+        // When - 10 x maximumSize increments triggers the reset
+        IntStream.range(0, 100).forEach(sketch::increment);
+
+        // Then
+        assertThat(sketch.frequency(-1)).isLessThanOrEqualTo(4);
+    }
+}
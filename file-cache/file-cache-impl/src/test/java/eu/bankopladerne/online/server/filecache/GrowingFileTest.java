@@ -0,0 +1,149 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import com.google.common.jimfs.PathType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class GrowingFileTest {
+    private FileSystem fileSystem;
+
+    @BeforeEach
+    void setUp() {
+        this.fileSystem = Jimfs.newFileSystem("test", Configuration.builder(PathType.unix())
+                .setAttributeViews("basic")
+                .setRoots("/")
+                .setWorkingDirectory("/work")
+                .build());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        fileSystem.close();
+    }
+
+    @Test
+    void read_nothingWrittenYet_waitsForBytes() throws Exception {
+        // Given
+        final var growingFile = new GrowingFile();
+        final var temp = Files.createFile(fileSystem.getPath("/work/temp"));
+        try (final var reader = growingFile.newReader()) {
+            final var read = CompletableFuture.supplyAsync(() -> read(reader, 2));
+
+            // When
+            try (final var writer = growingFile.writeTo(temp)) {
+                Thread.sleep(50);
+                assertThat(read).isNotDone();
+                writer.write(ByteBuffer.wrap(new byte[]{1, 2}));
+            }
+
+            // Then
+            assertThat(read.get(5, TimeUnit.SECONDS)).isEqualTo(2);
+        }
+    }
+
+    @Test
+    void read_completed_endOfStream() throws IOException {
+        // Given
+        final var growingFile = new GrowingFile();
+        final var temp = Files.createFile(fileSystem.getPath("/work/temp"));
+        try (final var writer = growingFile.writeTo(temp)) {
+            writer.write(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        }
+        growingFile.complete(temp);
+
+        // When
+        try (final var reader = growingFile.newReader()) {
+            final var buffer = ByteBuffer.allocate(10);
+
+            // Then
+            assertThat(reader.read(buffer)).isEqualTo(3);
+            assertThat(reader.read(buffer)).isEqualTo(-1);
+        }
+    }
+
+    @Test
+    void read_movedBeforeCompleted_readsFinalFile() throws Exception {
+        // Given - written and moved to its final name, but not completed yet
+        final var growingFile = new GrowingFile();
+        final var temp = Files.createFile(fileSystem.getPath("/work/temp"));
+        try (final var writer = growingFile.writeTo(temp)) {
+            writer.write(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        }
+        final var moved = Files.move(temp, fileSystem.getPath("/work/final"));
+
+        try (final var reader = growingFile.newReader()) {
+            final var read = CompletableFuture.supplyAsync(() -> read(reader, 10));
+
+            // When
+            growingFile.complete(moved);
+
+            // Then
+            assertThat(read.get(5, TimeUnit.SECONDS)).isEqualTo(3);
+        }
+    }
+
+    @Test
+    void read_aborted_throwsIOException() throws IOException {
+        // Given
+        final var growingFile = new GrowingFile();
+        final var temp = Files.createFile(fileSystem.getPath("/work/temp"));
+        try (final var writer = growingFile.writeTo(temp)) {
+            writer.write(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        }
+
+        // When
+        growingFile.abort(new IllegalStateException("failed"));
+
+        // Then
+        try (final var reader = growingFile.newReader()) {
+            assertThatThrownBy(() -> reader.read(ByteBuffer.allocate(10)))
+                    .isInstanceOf(IOException.class)
+                    .hasCauseInstanceOf(IllegalStateException.class);
+        }
+    }
+
+    /**
+     * Read until the end of stream or the buffer is full
+     */
+    private static int read(ReadableByteChannel reader, int capacity) {
+        final var buffer = ByteBuffer.allocate(capacity);
+        try {
+            while (buffer.hasRemaining() && reader.read(buffer) >= 0) {
+                // keep reading
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return buffer.position();
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import com.google.common.jimfs.PathType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.HashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MemoryTierTest {
+    private static final Configuration JIMFS_CONFIGURATION = Configuration.builder(PathType.unix())
+            .setAttributeViews("basic")
+            .setRoots("/")
+            .setWorkingDirectory("/work")
+            .build();
+
+    private FileSystem fileSystem;
+
+    @BeforeEach
+    void setUp() {
+        this.fileSystem = Jimfs.newFileSystem("test", JIMFS_CONFIGURATION);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        fileSystem.close();
+    }
+
+    @Test
+    void hit_requestedOftenEnough_promotes() throws IOException {
+        // Given
+        final var memoryTier = new MemoryTier(100, 10, 2, 10, CacheFactory.simplest());
+        final var file = write("A", 5);
+
+        // When
+        final var first = memoryTier.hit("A", file, () -> true);
+        final var second = memoryTier.hit("A", file, () -> true);
+
+        // Then
+        assertThat(first).isNull();
+        assertThat(second).isEqualTo(ByteBuffer.wrap(Files.readAllBytes(file.path())));
+        assertThat(second.isDirect()).isTrue();
+        assertThat(second.isReadOnly()).isTrue();
+        assertThat(memoryTier.get("A", file)).isEqualTo(second);
+        assertThat(memoryTier.bytes()).isEqualTo(5);
+    }
+
+    @Test
+    void hit_fileTooLarge_doesNotPromote() throws IOException {
+        // Given
+        final var memoryTier = new MemoryTier(100, 10, 1, 10, CacheFactory.simplest());
+        final var file = write("A", 11);
+
+        // When
+        final var promoted = memoryTier.hit("A", file, () -> true);
+
+        // Then
+        assertThat(promoted).isNull();
+        assertThat(memoryTier.get("A", file)).isNull();
+        assertThat(memoryTier.bytes()).isZero();
+    }
+
+    @Test
+    void hit_tooManyBytes_evictsLeastRecentlyUsed() throws IOException {
+        // Given
+        final var memoryTier = new MemoryTier(20, 10, 1, 10, CacheFactory.simplest());
+
+        final var files = new HashMap<String, CachedFile>();
+
+        // When
+        for (var name : new String[]{"A", "B", "C"}) {
+            files.put(name, write(name, 10));
+            memoryTier.hit(name, files.get(name), () -> true);
+        }
+
+        // Then
+        assertThat(memoryTier.get("A", files.get("A"))).isNull();
+        assertThat(memoryTier.get("B", files.get("B"))).isNotNull();
+        assertThat(memoryTier.get("C", files.get("C"))).isNotNull();
+        assertThat(memoryTier.bytes()).isEqualTo(20);
+    }
+
+    @Test
+    void hit_replacedWhileLoading_dropsOutdatedContent() throws IOException {
+        // Given
+        final var memoryTier = new MemoryTier(100, 10, 1, 10, CacheFactory.simplest());
+        final var file = write("A", 5);
+
+        // When
+        final var promoted = memoryTier.hit("A", file, () -> false);
+
+        // Then
+        assertThat(promoted).isNull();
+        assertThat(memoryTier.get("A", file)).isNull();
+        assertThat(memoryTier.bytes()).isZero();
+    }
+
+    @Test
+    void hit_fileGone_doesNotPromote() {
+        // Given
+        final var memoryTier = new MemoryTier(100, 10, 1, 10, CacheFactory.simplest());
+        final var file = new CachedFile(fileSystem.getPath("A"), 5, Instant.EPOCH, null);
+
+        // When
+        final var promoted = memoryTier.hit("A", file, () -> true);
+
+        // Then
+        assertThat(promoted).isNull();
+        assertThat(memoryTier.get("A", file)).isNull();
+        assertThat(memoryTier.bytes()).isZero();
+    }
+
+    @Test
+    void remove_promoted_dropsFromMemory() throws IOException {
+        // Given
+        final var memoryTier = new MemoryTier(100, 10, 1, 10, CacheFactory.simplest());
+        final var file = write("A", 5);
+        memoryTier.hit("A", file, () -> true);
+
+        // When
+        memoryTier.remove("A");
+
+        // Then
+        assertThat(memoryTier.get("A", file)).isNull();
+        assertThat(memoryTier.bytes()).isZero();
+    }
+
+    @Test
+    void get_readerConsumesBuffer_otherReadersUnaffected() throws IOException {
+        // Given
+        final var memoryTier = new MemoryTier(100, 10, 1, 10, CacheFactory.simplest());
+        final var file = write("A", 5);
+        memoryTier.hit("A", file, () -> true);
+
+        // When
+        final var consumed = memoryTier.get("A", file);
+        consumed.position(consumed.limit());
+
+        // Then
+        assertThat(memoryTier.get("A", file).remaining()).isEqualTo(5);
+    }
+
+    @Test
+    void get_producedAgain_doesNotReturnContentOfOtherFile() throws IOException {
+        // Given
+        final var memoryTier = new MemoryTier(100, 10, 1, 10, CacheFactory.simplest());
+        final var file = write("A", 5);
+        memoryTier.hit("A", file, () -> true);
+        final var producedAgain = new CachedFile(file.path(), 5, Instant.EPOCH, null);
+
+        // When
+        final var held = memoryTier.get("A", producedAgain);
+
+        // Then
+        assertThat(held).isNull();
+    }
+
+    private CachedFile write(String name, int size) throws IOException {
+        final var content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (name.charAt(0) + i);
+        }
+        return new CachedFile(Files.write(fileSystem.getPath(name), content), size, Instant.EPOCH, null);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ProducerAdmissionTest {
+
+    @Test
+    void acquire_permitAvailable_admitsImmediately() {
+        // Given
+        final var admission = new ProducerAdmission(2, 0, Duration.ZERO, false);
+
+        // When
+        admission.acquire(() -> 1);
+        admission.acquire(() -> 1);
+
+        // Then
+        assertThat(admission.queued()).isZero();
+    }
+
+    @Test
+    void acquire_queueFull_rejects() {
+        // Given
+        final var admission = new ProducerAdmission(1, 0, Duration.ofMinutes(1), false);
+        admission.acquire(() -> 1);
+
+        // When/Then
+        assertThatThrownBy(() -> admission.acquire(() -> 1)).isInstanceOf(RejectedExecutionException.class);
+    }
+
+    @Test
+    void acquire_waitTimesOut_rejects() {
+        // Given
+        final var admission = new ProducerAdmission(1, 1, Duration.ofMillis(10), false);
+        admission.acquire(() -> 1);
+
+        // When/Then
+        assertThatThrownBy(() -> admission.acquire(() -> 1)).isInstanceOf(RejectedExecutionException.class);
+        assertThat(admission.queued()).isZero();
+    }
+
+    @Test
+    void release_waiting_admitsLongestWaitingFirst() throws InterruptedException {
+        // Given
+        final var admission = new ProducerAdmission(1, 2, Duration.ofMinutes(1), false);
+        admission.acquire(() -> 1);
+        final var admitted = new CopyOnWriteArrayList<String>();
+        final var first = waitFor(admission, "first", 1, admitted);
+        final var second = waitFor(admission, "second", 5, admitted);
+
+        // When
+        admission.release();
+        first.join();
+        second.join();
+
+        // Then
+        assertThat(admitted).containsExactly("first", "second");
+    }
+
+    @Test
+    void release_prioritizingWaitedOn_admitsMostWaitedOnFirst() throws InterruptedException {
+        // Given
+        final var admission = new ProducerAdmission(1, 2, Duration.ofMinutes(1), true);
+        admission.acquire(() -> 1);
+        final var admitted = new CopyOnWriteArrayList<String>();
+        final var first = waitFor(admission, "first", 1, admitted);
+        final var second = waitFor(admission, "second", 5, admitted);
+
+        // When
+        admission.release();
+        first.join();
+        second.join();
+
+        // Then
+        assertThat(admitted).containsExactly("second", "first");
+    }
+
+    /**
+     * Start a thread waiting to be admitted, recording its admission and releasing again. Returns when it is queued.
+     */
+    private static Thread waitFor(ProducerAdmission admission, String name, int waiters, List<String> admitted) throws InterruptedException {
+        final int queued = admission.queued();
+        final var thread = Thread.ofVirtual().start(() -> {
+            admission.acquire(() -> waiters);
+            admitted.add(name);
+            admission.release();
+        });
+        while (admission.queued() == queued) {
+            Thread.sleep(1L);
+        }
+        return thread;
+    }
+}
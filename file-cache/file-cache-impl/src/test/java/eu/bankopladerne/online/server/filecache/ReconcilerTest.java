@@ -0,0 +1,140 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import com.google.common.jimfs.PathType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ReconcilerTest {
+    private static final Duration GRACE_PERIOD = Duration.ofMinutes(10);
+
+    private FileSystem fileSystem;
+    private Path directory;
+    private final Set<Path> known = new HashSet<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        this.fileSystem = Jimfs.newFileSystem("test", Configuration.builder(PathType.unix())
+                .setAttributeViews("basic")
+                .setRoots("/")
+                .setWorkingDirectory("/work")
+                .build());
+        this.directory = Files.createDirectories(fileSystem.getPath("/work/cache"));
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        fileSystem.close();
+    }
+
+    @Test
+    void reconcile_orphanOlderThanGracePeriod_deletesAndReportsBytes() throws IOException {
+        // Given
+        final var orphan = file("orphan", 10, Duration.ofHours(1));
+        final var nested = file("ab/orphan", 5, Duration.ofHours(1));
+        try (final var reconciler = reconciler()) {
+
+            // When
+            final var reclaimed = reconciler.reconcile();
+
+            // Then
+            assertThat(reclaimed).isEqualTo(15);
+            assertThat(Files.exists(orphan)).isFalse();
+            assertThat(Files.exists(nested)).isFalse();
+        }
+    }
+
+    @Test
+    void reconcile_knownOrYoung_keeps() throws IOException {
+        // Given
+        final var cached = file("cached", 10, Duration.ofHours(1));
+        known.add(cached);
+        final var beingProduced = file("producing", 10, Duration.ofMinutes(1));
+        final var index = file(CacheIndex.FILE_NAME, 10, Duration.ofHours(1));
+        try (final var reconciler = reconciler()) {
+
+            // When
+            final var reclaimed = reconciler.reconcile();
+
+            // Then
+            assertThat(reclaimed).isZero();
+            assertThat(List.of(cached, beingProduced, index)).allMatch(Files::exists);
+        }
+    }
+
+    @Test
+    void start_interval_reconcilesOnlyOnceStarted() throws Exception {
+        // Given
+        final var orphan = file("orphan", 10, Duration.ofHours(1));
+        try (final var reconciler = new Reconciler(Duration.ofMillis(10), GRACE_PERIOD, List.of(directory),
+                () -> Set.copyOf(known), ReconcilerTest::delete, (file, bytes) -> {
+        })) {
+            Thread.sleep(100);
+            final var existsBeforeStarted = Files.exists(orphan);
+
+            // When
+            reconciler.start();
+
+            // Then
+            final var deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+            while (Files.exists(orphan) && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(existsBeforeStarted).isTrue();
+            assertThat(Files.exists(orphan)).isFalse();
+        }
+    }
+
+    private Reconciler reconciler() {
+        return new Reconciler(Duration.ZERO, GRACE_PERIOD, List.of(directory), () -> Set.copyOf(known),
+                ReconcilerTest::delete, (file, bytes) -> {
+        });
+    }
+
+    private Path file(String name, int size, Duration age) throws IOException {
+        final var file = directory.resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.write(file, new byte[size]);
+        Files.setLastModifiedTime(file, FileTime.from(Instant.now().minus(age)));
+        return file;
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.delete(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import com.google.common.jimfs.PathType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ScrubberTest {
+    private FileSystem fileSystem;
+    private final Map<String, CachedFile> files = new LinkedHashMap<>();
+    private final List<String> corrupted = new ArrayList<>();
+    private final AtomicInteger scrubbed = new AtomicInteger();
+
+    @BeforeEach
+    void setUp() {
+        this.fileSystem = Jimfs.newFileSystem("test", Configuration.builder(PathType.unix())
+                .setAttributeViews("basic")
+                .setRoots("/")
+                .setWorkingDirectory("/work")
+                .build());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        fileSystem.close();
+    }
+
+    @Test
+    void intact_unchanged_isIntact() throws IOException {
+        // Given
+        final var file = cachedFile("A", new byte[]{1, 2, 3});
+
+        // When
+        final var intact = Scrubber.intact(file);
+
+        // Then
+        assertThat(intact).isTrue();
+    }
+
+    @Test
+    void intact_truncatedMissingOrCorrupted_isNotIntact() throws IOException {
+        // Given
+        final var truncated = cachedFile("A", new byte[]{1, 2, 3});
+        Files.write(truncated.path(), new byte[]{1, 2});
+        final var missing = cachedFile("B", new byte[]{1, 2, 3});
+        Files.delete(missing.path());
+        final var corrupt = cachedFile("C", new byte[]{1, 2, 3});
+        Files.write(corrupt.path(), new byte[]{1, 0, 3});
+
+        // When - Then
+        assertThat(Scrubber.intact(truncated)).isFalse();
+        assertThat(Scrubber.intact(missing)).isFalse();
+        assertThat(Scrubber.intact(corrupt)).isFalse();
+    }
+
+    @Test
+    void scrub_filesPerInterval_verifiesBatchesInTurn() throws IOException {
+        // Given
+        cachedFile("A", new byte[]{1});
+        Files.write(cachedFile("B", new byte[]{2}).path(), new byte[]{0});
+        cachedFile("C", new byte[]{3});
+        try (final var scrubber = scrubber(2)) {
+
+            // When
+            final var first = scrubber.scrub();
+            final var second = scrubber.scrub();
+
+            // Then
+            assertThat(first).isOne();
+            assertThat(second).isZero();
+            assertThat(corrupted).containsExactly("B");
+            assertThat(scrubbed.get()).isEqualTo(3);
+        }
+    }
+
+    @Test
+    void scrub_passCompleted_startsNewPass() throws IOException {
+        // Given
+        cachedFile("A", new byte[]{1});
+        try (final var scrubber = scrubber(10)) {
+            scrubber.scrub();
+
+            // When - corrupted after verified in the first pass
+            Files.write(files.get("A").path(), new byte[]{0});
+            final var failed = scrubber.scrub();
+
+            // Then
+            assertThat(failed).isOne();
+            assertThat(corrupted).containsExactly("A");
+        }
+    }
+
+    @Test
+    void start_interval_scrubsOnlyOnceStarted() throws Exception {
+        // Given
+        cachedFile("A", new byte[]{1});
+        try (final var scrubber = new Scrubber(Duration.ofMillis(10), 10, files::forEach,
+                (name, file) -> corrupted.add(name), scrubbed::incrementAndGet)) {
+            Thread.sleep(100);
+            final var scrubbedBeforeStarted = scrubbed.get();
+
+            // When
+            scrubber.start();
+
+            // Then
+            final var deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+            while (scrubbed.get() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(scrubbedBeforeStarted).isZero();
+            assertThat(scrubbed.get()).isPositive();
+        }
+    }
+
+    private Scrubber scrubber(int filesPerInterval) {
+        return new Scrubber(Duration.ZERO, filesPerInterval, files::forEach, (name, file) -> corrupted.add(name), scrubbed::incrementAndGet);
+    }
+
+    private CachedFile cachedFile(String name, byte[] content) throws IOException {
+        final var path = Files.write(fileSystem.getPath("/work", name), content);
+        final var crc = new CRC32C();
+        crc.update(content);
+        final var file = new CachedFile(path, content.length, Instant.EPOCH, null, crc.getValue());
+        files.put(name, file);
+        return file;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SegmentedCacheTest {
+
+    @Test
+    void ctor_segmentsNotPowerOfTwo_roundsUp() {
+        // Given - When
+        final var segmentedCache = new SegmentedCache<String, String>(5, 100);
+
+        // Then
+        assertThat(segmentedCache.segments()).isEqualTo(8);
+    }
+
+    @Test
+    void ctor_noSegments_throwsIllegalArgument() {
+        assertThatThrownBy(() -> new SegmentedCache<String, String>(0, 100))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void computeIfAbsent_didExist_returnsExisting() {
+        // Given
+        final var segmentedCache = new SegmentedCache<String, String>(4, 4);
+
+        segmentedCache.put("A", "1");
+
+        // When
+        final var computed = segmentedCache.computeIfAbsent("A", k -> "x");
+
+        // Then
+        assertThat(computed).isEqualTo("1");
+    }
+
+    @Test
+    void get_exists_returnsIt() {
+        // Given
+        final var segmentedCache = new SegmentedCache<String, String>(4, 4);
+
+        segmentedCache.put("A", "1");
+        segmentedCache.put("B", "2");
+
+        // When - Then
+        assertThat(segmentedCache.get("A")).isEqualTo("1");
+        assertThat(segmentedCache.get("B")).isEqualTo("2");
+        assertThat(segmentedCache.get("C")).isNull();
+    }
+
+    @Test
+    void put_tooMany_boundedPerSegment() {
+        // Given
+        final var evicted = new AtomicInteger();
+        final var segmentedCache = new SegmentedCache<Integer, Integer>(4, 40, e -> false, e -> evicted.incrementAndGet());
+
+        // When
+        IntStream.range(0, 1000).forEach(i -> segmentedCache.put(i, i));
+
+        // Then - consecutive integers are spread evenly, each segment holding 10 elements
+        assertThat(segmentedCache.size()).isEqualTo(40);
+        assertThat(evicted).hasValue(960);
+    }
+
+    @Test
+    void evict_elementsCached_evictsFromAllSegments() {
+        // Given
+        final var evicted = new AtomicInteger();
+        final var segmentedCache = new SegmentedCache<Integer, Integer>(4, 40, e -> false, e -> evicted.incrementAndGet());
+
+        IntStream.range(0, 10).forEach(i -> segmentedCache.put(i, i));
+
+        // When
+        IntStream.range(0, 10).forEach(i -> segmentedCache.evict());
+
+        // Then
+        assertThat(segmentedCache.size()).isZero();
+        assertThat(evicted).hasValue(10);
+        assertThat(segmentedCache.evict()).isFalse();
+    }
+
+    @Test
+    void evictWithCondition_eldestOfSomeSegmentMatches_evictsToCleanerGiven() {
+        // Given
+        final var cleaned = new AtomicInteger();
+        final var evictedBy = new AtomicInteger(-1);
+        final var segmentedCache = new SegmentedCache<Integer, Integer>(4, 40, e -> false, e -> cleaned.incrementAndGet());
+
+        IntStream.range(0, 10).forEach(i -> segmentedCache.put(i, i));
+
+        // When
+        final var notMatching = segmentedCache.evict(e -> e.getKey() > 10, e -> evictedBy.set(e.getKey()));
+        final var matching = segmentedCache.evict(e -> e.getKey() == 1, e -> evictedBy.set(e.getKey()));
+
+        // Then
+        assertThat(notMatching).isFalse();
+        assertThat(matching).isTrue();
+        assertThat(evictedBy).hasValue(1);
+        assertThat(cleaned).hasValue(0);
+        assertThat(segmentedCache.size()).isEqualTo(9);
+    }
+
+    @Test
+    void put_cleanPredicate_appliesToEachSegment() {
+        // Given - we do not like odd numbers
+        final var segmentedCache = new SegmentedCache<Integer, Integer>(2, 100, e -> e.getKey() % 2 == 1, e -> {
+        });
+
+        // When
+        IntStream.range(0, 10).forEach(i -> segmentedCache.put(i, i));
+
+        // Then - odd numbers live in their own segment and are all evicted, even numbers are retained
+        assertThat(segmentedCache.size()).isEqualTo(5);
+        assertThat(segmentedCache.get(9)).isNull();
+        assertThat(segmentedCache.get(8)).isEqualTo(8);
+    }
+}
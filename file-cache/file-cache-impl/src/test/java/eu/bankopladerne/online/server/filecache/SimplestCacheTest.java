@@ -17,6 +17,7 @@ package eu.bankopladerne.online.server.filecache;
 
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -53,6 +54,43 @@ class SimplestCacheTest {
         assertThat(computed).isEqualTo("1");
     }
 
+    @Test
+    void remove_exists_returnsRemovedWithoutCleaning() {
+        // Given
+        final var cleaned = new ArrayList<String>();
+        final var simplestCache = new SimplestCache<String, String>(3, e -> false, e -> cleaned.add(e.getKey()));
+
+        simplestCache.put("A", "1");
+        simplestCache.put("B", "2");
+
+        // When
+        final var removed = simplestCache.remove("A");
+
+        // Then
+        assertThat(removed).isEqualTo("1");
+        assertThat(simplestCache.get("A")).isNull();
+        assertThat(simplestCache.size()).isOne();
+        assertThat(cleaned).isEmpty();
+    }
+
+    @Test
+    void forEach_elementsCached_eldestFirst() {
+        // Given
+        final var simplestCache = new SimplestCache<String, String>(3);
+
+        simplestCache.put("A", "1");
+        simplestCache.put("B", "2");
+        simplestCache.put("C", "3");
+        simplestCache.get("A");
+
+        // When
+        final var keys = new ArrayList<String>();
+        simplestCache.forEach((k, v) -> keys.add(k));
+
+        // Then
+        assertThat(keys).containsExactly("B", "C", "A");
+    }
+
     @Test
     void get_doesNotExist_returnsNull() {
         // Given
@@ -131,6 +169,56 @@ class SimplestCacheTest {
         assertThat(cleaned).isTrue();
     }
 
+    @Test
+    void evict_elementsCached_evictsEldestAndCleans() {
+        // Given
+        final var cleaned = new AtomicReference<String>();
+        final var simplestCache = new SimplestCache<String, String>(2, e -> false, e -> cleaned.set(e.getKey()));
+
+        simplestCache.put("A", "1");
+        simplestCache.put("B", "2");
+        simplestCache.get("A");
+
+        // When
+        final var evicted = simplestCache.evict();
+
+        // Then
+        assertThat(evicted).isTrue();
+        assertThat(cleaned).hasValue("B");
+        assertThat(simplestCache.size()).isOne();
+    }
+
+    @Test
+    void evict_empty_returnsFalse() {
+        // Given
+        final var simplestCache = new SimplestCache<String, String>(2);
+
+        // When - Then
+        assertThat(simplestCache.evict()).isFalse();
+    }
+
+    @Test
+    void evictWithCondition_eldestMatches_evictsToCleanerGiven() {
+        // Given
+        final var cleaned = new AtomicReference<String>();
+        final var evictedBy = new AtomicReference<String>();
+        final var simplestCache = new SimplestCache<String, String>(2, e -> false, e -> cleaned.set(e.getKey()));
+
+        simplestCache.put("A", "1");
+        simplestCache.put("B", "2");
+
+        // When
+        final var notMatching = simplestCache.evict(e -> e.getKey().equals("B"), e -> evictedBy.set(e.getKey()));
+        final var matching = simplestCache.evict(e -> e.getKey().equals("A"), e -> evictedBy.set(e.getKey()));
+
+        // Then
+        assertThat(notMatching).isFalse();
+        assertThat(matching).isTrue();
+        assertThat(evictedBy).hasValue("A");
+        assertThat(cleaned).hasNullValue();
+        assertThat(simplestCache.size()).isOne();
+    }
+
     @Test
     void get_lockInterrupted_returnsNull() throws Exception {
         // Given
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import com.google.common.jimfs.PathType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class StorageShardsTest {
+    private static final Configuration JIMFS_CONFIGURATION = Configuration.builder(PathType.unix())
+            .setAttributeViews("basic")
+            .setBlockSize(1)
+            .setMaxSize(1000)
+            .setRoots("/")
+            .setWorkingDirectory("/work")
+            .build();
+    private static final int OBJECTS = 10_000;
+
+    private FileSystem fileSystem;
+
+    @BeforeEach
+    void setUp() {
+        this.fileSystem = Jimfs.newFileSystem("test", JIMFS_CONFIGURATION);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        fileSystem.close();
+    }
+
+    @Test
+    void shardOf_severalDirectories_spreadsObjectsEvenly() throws IOException {
+        // Given
+        try (final var storage = new StorageShards(directories("a", "b", "c", "d"), Duration.ZERO, 0L)) {
+
+            // When
+            final var counts = IntStream.range(0, OBJECTS)
+                    .mapToObj(i -> storage.shardOf("object-" + i, 0.0).directory())
+                    .collect(Collectors.groupingBy(directory -> directory, Collectors.counting()));
+
+            // Then - 2500 each, give or take
+            assertThat(counts).hasSize(4);
+            assertThat(counts.values()).allMatch(count -> count > 1500 && count < 3500);
+        }
+    }
+
+    @Test
+    void shardOf_directoryAdded_movesOnlyObjectsToNewDirectory() throws IOException {
+        // Given
+        final var directories = directories("a", "b", "c", "d");
+        try (final var before = new StorageShards(directories.subList(0, 3), Duration.ZERO, 0L);
+             final var after = new StorageShards(directories, Duration.ZERO, 0L)) {
+
+            // When
+            final var moved = IntStream.range(0, OBJECTS)
+                    .mapToObj(i -> "object-" + i)
+                    .filter(name -> before.shardOf(name, 0.0).directory() != after.shardOf(name, 0.0).directory())
+                    .toList();
+
+            // Then - about 1/4 moved, all of them to the new directory
+            assertThat(moved).hasSizeBetween(OBJECTS / 8, OBJECTS * 3 / 8);
+            assertThat(moved).allMatch(name -> after.shardOf(name, 0.0).directory().equals(directories.get(3)));
+        }
+    }
+
+    @Test
+    void shardOf_lowOnFreeSpace_skipsDirectory() throws IOException {
+        // Given - all directories share one FileStore, so the free space check applies to them all
+        try (final var storage = new StorageShards(directories("a", "b"), Duration.ZERO, 0L)) {
+            Files.write(fileSystem.getPath("/work/a/filler"), new byte[900]);
+
+            // When
+            final var shard = storage.shardOf("object", 20.0);
+
+            // Then - no directory has enough free space, falling back to the one hashed to
+            assertThat(storage.freeSpacePercent()).isEqualTo(10.0);
+            assertThat(shard).isEqualTo(storage.shardOf("object", 0.0));
+        }
+    }
+
+    @Test
+    void shardContaining_fileInDirectory_returnsShard() throws IOException {
+        // Given
+        final var directories = directories("a", "b");
+        try (final var storage = new StorageShards(directories, Duration.ZERO, 0L)) {
+
+            // When
+            final var shard = storage.shardContaining(directories.get(1).resolve("12").resolve("file"));
+            final var none = storage.shardContaining(fileSystem.getPath("/elsewhere/file"));
+
+            // Then
+            assertThat(shard.directory()).isEqualTo(directories.get(1));
+            assertThat(none).isNull();
+        }
+    }
+
+    @Test
+    void freeSpacePercent_fileOnOtherFileStore_freeSpaceOfItsFileStore() throws IOException {
+        // Given
+        try (final var other = Jimfs.newFileSystem("other", JIMFS_CONFIGURATION)) {
+            final var directories = List.of(Files.createDirectories(fileSystem.getPath("/work/a")),
+                    Files.createDirectories(other.getPath("/work/b")));
+            try (final var storage = new StorageShards(directories, Duration.ZERO, 0L)) {
+                Files.write(fileSystem.getPath("/work/a/filler"), new byte[900]);
+
+                // When
+                final var low = storage.freeSpacePercent(directories.get(0).resolve("file"));
+                final var healthy = storage.freeSpacePercent(directories.get(1).resolve("file"));
+                final var elsewhere = storage.freeSpacePercent(fileSystem.getPath("/elsewhere/file"));
+
+                // Then
+                assertThat(low).isEqualTo(10.0);
+                assertThat(healthy).isEqualTo(100.0);
+                assertThat(elsewhere).isEqualTo(10.0);
+            }
+        }
+    }
+
+    @Test
+    void constructor_noDirectories_throwsIllegalArgument() {
+        assertThatThrownBy(() -> new StorageShards(List.of(), Duration.ZERO, 0L))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private List<Path> directories(String... names) throws IOException {
+        final var directories = new ArrayList<Path>();
+        for (var name : names) {
+            directories.add(Files.createDirectories(fileSystem.getPath("/work", name)));
+        }
+        return directories;
+    }
+}
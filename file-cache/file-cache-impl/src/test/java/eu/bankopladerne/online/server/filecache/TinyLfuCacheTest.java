@@ -0,0 +1,199 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.filecache;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TinyLfuCacheTest {
+
+    @Test
+    void computeIfAbsent_didNotExist_invokesMappingFunction() {
+        // Given
+        final var cache = new TinyLfuCache<String, String>(10);
+
+        // When
+        final var computed = cache.computeIfAbsent("A", k -> "1");
+
+        // Then
+        assertThat(computed).isEqualTo("1");
+        assertThat(cache.get("A")).isEqualTo("1");
+    }
+
+    @Test
+    void computeIfAbsent_didExist_returnsExisting() {
+        // Given
+        final var cache = new TinyLfuCache<String, String>(10);
+
+        cache.put("A", "1");
+
+        // When
+        final var computed = cache.computeIfAbsent("A", k -> "x");
+
+        // Then
+        assertThat(computed).isEqualTo("1");
+    }
+
+    @Test
+    void put_exists_returnsPrevious() {
+        // Given
+        final var cache = new TinyLfuCache<String, String>(10);
+
+        cache.put("A", "1");
+
+        // When
+        final var previous = cache.put("A", "2");
+
+        // Then
+        assertThat(previous).isEqualTo("1");
+        assertThat(cache.get("A")).isEqualTo("2");
+    }
+
+    @Test
+    void put_tooMany_boundedAndCleaned() {
+        // Given
+        final var evicted = new AtomicInteger();
+        final var cache = new TinyLfuCache<Integer, Integer>(100, e -> false, e -> evicted.incrementAndGet());
+
+        // When
+        IntStream.range(0, 1000).forEach(i -> cache.put(i, i));
+
+        // Then
+        assertThat(cache.size()).isEqualTo(100);
+        assertThat(evicted).hasValue(900);
+    }
+
+    @Test
+    void put_oneHitWonders_doNotEvictPopular() {
+        // Given - a popular element in the main cache
+        final var cache = new TinyLfuCache<Integer, Integer>(100);
+
+        IntStream.range(0, 100).forEach(i -> cache.put(i, i));
+        IntStream.range(0, 5).forEach(i -> cache.get(0));
+
+        // When - lots of elements only seen once
+        IntStream.range(1000, 2000).forEach(i -> cache.put(i, i));
+
+        // Then
+        assertThat(cache.get(0)).isZero();
+    }
+
+    @Test
+    void evict_elementsCached_evictsAll() {
+        // Given
+        final var evicted = new AtomicInteger();
+        final var cache = new TinyLfuCache<Integer, Integer>(10, e -> false, e -> evicted.incrementAndGet());
+
+        IntStream.range(0, 5).forEach(i -> cache.put(i, i));
+
+        // When
+        IntStream.range(0, 5).forEach(i -> cache.evict());
+
+        // Then
+        assertThat(cache.size()).isZero();
+        assertThat(evicted).hasValue(5);
+        assertThat(cache.evict()).isFalse();
+    }
+
+    @Test
+    void evictWithCondition_victimMatches_evictsToCleanerGiven() {
+        // Given
+        final var cleaned = new AtomicInteger();
+        final var evictedBy = new AtomicInteger(-1);
+        final var cache = new TinyLfuCache<Integer, Integer>(10, e -> false, e -> cleaned.incrementAndGet());
+
+        cache.put(0, 0);
+
+        // When
+        final var notMatching = cache.evict(e -> e.getKey() != 0, e -> evictedBy.set(e.getKey()));
+        final var matching = cache.evict(e -> e.getKey() == 0, e -> evictedBy.set(e.getKey()));
+
+        // Then
+        assertThat(notMatching).isFalse();
+        assertThat(matching).isTrue();
+        assertThat(evictedBy).hasValue(0);
+        assertThat(cleaned).hasValue(0);
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    void put_cleanPredicate_evictsVictim() {
+        // Given - we do not like "A"
+        final var cleaned = new AtomicInteger();
+        final var cache = new TinyLfuCache<String, String>(10, e -> "A".equals(e.getKey()), e -> cleaned.incrementAndGet());
+
+        // When
+        cache.put("A", "A");
+        cache.put("B", "B");
+
+        // Then
+        assertThat(cache.get("A")).isNull();
+        assertThat(cache.get("B")).isEqualTo("B");
+        assertThat(cleaned).hasValue(1);
+    }
+
+    /**
+     * Trace-driven simulation comparing hit ratios of LRU and W-TinyLFU on a trace similar to k6/api-test.js: random
+     * numbers 0..9999 mixed with a hot set of popular numbers.
+     */
+    @Test
+    void simulation_hotSetMixedWithRandom_tinyLfuBeatsLru() {
+        // Given
+        final var maxElements = 1000;
+        final var trace = trace(new SplittableRandom(474), 500_000, 10_000, 2_000, 0.5);
+
+        // When
+        final var lru = hitRatio(new SimplestCache<>(maxElements), trace);
+        final var tinyLfu = hitRatio(new TinyLfuCache<>(maxElements), trace);
+
+        // Then
+        System.out.printf("Hit ratio, LRU: %.2f%%, W-TinyLFU: %.2f%%%n", lru * 100.0, tinyLfu * 100.0);
+        assertThat(tinyLfu).isGreaterThan(lru);
+    }
+
+    /**
+     * Trace of keys where hotPercent is drawn from a hot set of hotKeys keys, the rest uniformly from all keys.
+     * The hot set is skewed so the lowest keys are the most popular.
+     */
+    private static int[] trace(SplittableRandom random, int length, int keys, int hotKeys, double hotPercent) {
+        return IntStream.range(0, length)
+                .map(i -> {
+                    if (random.nextDouble() < hotPercent) {
+                        final var skewed = random.nextDouble() * random.nextDouble();
+                        return (int) (skewed * hotKeys);
+                    }
+                    return random.nextInt(keys);
+                })
+                .toArray();
+    }
+
+    private static double hitRatio(Cache<Integer, Integer> cache, int[] trace) {
+        int hits = 0;
+        for (var key : trace) {
+            if (cache.get(key) != null) {
+                hits++;
+            } else {
+                cache.put(key, key);
+            }
+        }
+        return (double) hits / trace.length;
+    }
+}
@@ -0,0 +1,31 @@
+// import necessary modules
+import { check } from 'k6';
+import http from 'k6/http';
+
+// define configuration
+export const options = {
+    // define thresholds
+    thresholds: {
+        http_req_failed: [{ threshold: 'rate<0.01' }], // http errors should be less than 1%
+    },
+    scenarios: {
+        cached: {
+            executor: 'constant-vus',
+            vus: 40,
+            duration: '60s',
+        },
+    },
+};
+
+export default function () {
+    // the first 100 numbers are cached after the first requests (or warmed up)
+    const url = 'http://localhost:8080/api/images/numbers/' + Math.floor(Math.random() * 100);
+
+    // send a GET request and save response as a variable
+    const res = http.get(url);
+
+    // check that response is 200
+    check(res, {
+        'response code was 200': (res) => res.status == 200,
+    });
+}
@@ -17,10 +17,13 @@ package eu.bankopladerne.online.server.test.filecache.api;
 
 import javax.imageio.ImageIO;
 import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UncheckedIOException;
 import java.nio.file.Path;
 
@@ -54,16 +57,31 @@ public class CenteredTextImagePng {
 
     public void writeTo(Path path) {
         try (final var fileImageOutputStream = new FileImageOutputStream(path.toFile())) {
-            final var writer = ImageIO.getImageWritersByFormatName("png")
-                    .next();
+            write(fileImageOutputStream);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-            writer.setOutput(fileImageOutputStream);
-            writer.write(img);
+    /**
+     * Write the PNG to the stream as it is encoded, the stream is not closed
+     */
+    public void writeTo(OutputStream out) {
+        try (final var imageOutputStream = new MemoryCacheImageOutputStream(out)) {
+            write(imageOutputStream);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
     }
 
+    private void write(ImageOutputStream imageOutputStream) throws IOException {
+        final var writer = ImageIO.getImageWritersByFormatName("png")
+                .next();
+
+        writer.setOutput(imageOutputStream);
+        writer.write(img);
+    }
+
     private Graphics2D prepareGraphics() {
         final var graphics = img.createGraphics();
 
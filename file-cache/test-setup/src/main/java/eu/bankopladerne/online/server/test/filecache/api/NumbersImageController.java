@@ -15,12 +15,33 @@
  */
 package eu.bankopladerne.online.server.test.filecache.api;
 
+import eu.bankopladerne.online.server.filecache.AccessLogReplay;
 import eu.bankopladerne.online.server.filecache.FileCache;
+import eu.bankopladerne.online.server.filecache.FileProducer;
+import eu.bankopladerne.online.server.filecache.ProductionFailedException;
+import eu.bankopladerne.online.server.test.filecache.configuration.FileCacheConfiguration.FileCacheConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 
+import java.io.OutputStream;
+import java.nio.channels.Channels;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 /**
  * Creates PNGs (900x200) with number specified drawn centered
@@ -28,23 +49,130 @@ import java.nio.file.Path;
 @RestApiController(NumbersImageController.BASE_PATH)
 public class NumbersImageController {
     public static final String BASE_PATH = "/api/images/numbers";
+    private static final Logger LOGGER = LoggerFactory.getLogger(NumbersImageController.class);
+    private static final String OBJECT_NAME_PREFIX = "numbers-";
+    private static final String OBJECT_NAME_SUFFIX = ".png";
 
     private final FileCache fileCache;
     private final Responses responses;
+    private final FileCacheConfig cacheConfig;
 
-    public NumbersImageController(FileCache fileCache, Responses responses) {
+    public NumbersImageController(FileCache fileCache, Responses responses, FileCacheConfig cacheConfig) {
         this.fileCache = fileCache;
         this.responses = responses;
+        this.cacheConfig = cacheConfig;
+    }
+
+    /**
+     * Produce the images known to be hot in the background when started: the first numbers shown by index.html and
+     * the most requested numbers of the access log (one object name per line), if configured
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        if (cacheConfig.warmUpNumbers() <= 0 && cacheConfig.warmUpAccessLog() == null) {
+            return;
+        }
+        Thread.ofVirtual().name("file-cache-warm-up").start(() -> {
+            final var logged = cacheConfig.warmUpAccessLog() != null
+                    ? AccessLogReplay.hotSet(cacheConfig.warmUpAccessLog(), cacheConfig.maxFilesToCache()).stream()
+                    : Stream.<String>empty();
+            final var objectNames = Stream.concat(
+                    IntStream.range(0, cacheConfig.warmUpNumbers()).mapToObj(NumbersImageController::objectName),
+                    logged.filter(NumbersImageController::isObjectName));
+            try {
+                final int warmedUp = fileCache.warmUp(objectNames, (objectName, tempFile) ->
+                        producePng(numberOf(objectName), tempFile), 2);
+                LOGGER.info("Warmed up {} images", warmedUp);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                LOGGER.warn("Warm-up failed", e);
+            }
+        });
     }
 
     @GetMapping(path = "{number}", produces = MediaType.IMAGE_PNG_VALUE)
     public void getPng(@PathVariable("number") int number) {
-        final var produced = fileCache.produceAndCache(
-                "numbers-%d.png".formatted(number),
-                (objectName, tempFile) -> producePng(number, tempFile)
-        );
+        final var objectName = objectName(number);
+        final FileProducer producer = (name, tempFile) -> producePng(number, tempFile);
+        if (fileCache.hasMemoryTier()) {
+            // popular images are served from memory
+            final var cached = fileCache.produceAndCacheContent(objectName, producer);
+            if (!responses.notModified(cached.validator())) {
+                responses.streamBytes(MediaType.IMAGE_PNG_VALUE, cached.content());
+            }
+            return;
+        }
+
+        // the file, its validators and compressed variant from the same lookup, so the ETag matches the content served
+        final var produced = fileCache.produceAndCacheObject(objectName, producer);
+        final var compressed = responses.acceptsCompressed(produced.compressed());
+
+        // repeat visitors revalidating the image get 304 Not Modified without reading the file
+        if (!responses.notModified(produced.validator(), compressed)) {
+            responses.streamFile(MediaType.IMAGE_PNG_VALUE, compressed ? produced.compressed() : produced.path(), compressed);
+        }
+    }
+
+    /**
+     * Same as {@link #getPng(int)} but producing asynchronously, not pinning a servlet thread while producing
+     */
+    @GetMapping(path = "async/{number}", produces = MediaType.IMAGE_PNG_VALUE)
+    public CompletableFuture<ResponseEntity<Resource>> getPngAsync(@PathVariable("number") int number) {
+        final var objectName = objectName(number);
+        return fileCache.produceAndCacheObjectAsync(objectName, (name, tempFile) -> producePng(number, tempFile))
+                .thenApply(produced -> responses.fileEntity(MediaType.IMAGE_PNG, produced.path(), produced.validator()));
+    }
+
+    /**
+     * Same as {@link #getPng(int)} but streaming the image while it is being produced, so the first bytes of an image
+     * not cached are sent before it is completely produced. Concurrent requests for the same image read it as it grows.
+     */
+    @GetMapping(path = "stream/{number}", produces = MediaType.IMAGE_PNG_VALUE)
+    public void getPngStreaming(@PathVariable("number") int number) {
+        final var channel = fileCache.produceAndStream(objectName(number),
+                (name, out) -> streamPng(number, Channels.newOutputStream(out)));
+        responses.streamChannel(MediaType.IMAGE_PNG_VALUE, channel);
+    }
+
+    /**
+     * Failed recently, tell the client when to try again
+     */
+    @ExceptionHandler(ProductionFailedException.class)
+    public ResponseEntity<Void> productionFailed(ProductionFailedException e) {
+        final var retryAfter = Duration.between(Instant.now(), e.getRetryAt()).toSeconds();
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, Long.toString(Math.max(1L, retryAfter)))
+                .build();
+    }
 
-        responses.streamFile(MediaType.IMAGE_PNG_VALUE, produced);
+    /**
+     * Too busy producing other images, tell the client to try again shortly
+     */
+    @ExceptionHandler(RejectedExecutionException.class)
+    public ResponseEntity<Void> productionRejected() {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, "1")
+                .build();
+    }
+
+    private static String objectName(int number) {
+        return OBJECT_NAME_PREFIX + number + OBJECT_NAME_SUFFIX;
+    }
+
+    private static boolean isObjectName(String objectName) {
+        return objectName.matches(OBJECT_NAME_PREFIX + "\\d+\\" + OBJECT_NAME_SUFFIX);
+    }
+
+    private static int numberOf(String objectName) {
+        return Integer.parseInt(objectName, OBJECT_NAME_PREFIX.length(), objectName.length() - OBJECT_NAME_SUFFIX.length(), 10);
+    }
+
+    private static void streamPng(int number, OutputStream out) {
+        final var imagePng = new CenteredTextImagePng(900, 200);
+
+        imagePng.drawCentered(Integer.toString(number), 120);
+        imagePng.writeTo(out);
     }
 
     private Path producePng(int number, Path tempFile) {
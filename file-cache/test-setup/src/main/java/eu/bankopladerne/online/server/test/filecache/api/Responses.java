@@ -15,34 +15,375 @@
  */
 package eu.bankopladerne.online.server.test.filecache.api;
 
+import eu.bankopladerne.online.server.filecache.ContentValidator;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.context.request.ServletWebRequest;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Helper component for interacting with the HttpServletResponse
  */
 @Component
 public class Responses {
+    /**
+     * Request attributes of Tomcat (org.apache.coyote.Constants) for serving a file using sendfile
+     */
+    static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+    static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+    /**
+     * Suffix of the ETag of the compressed variant, a representation of its own
+     */
+    static final String GZIP_ETAG_SUFFIX = "-gzip";
+    /**
+     * Size of the chunks streamed from a channel or copied from a file
+     */
+    private static final int STREAM_BUFFER_SIZE = 16 * 1024;
+
+    private final HttpServletRequest httpServletRequest;
     private final HttpServletResponse httpServletResponse;
+    private final long sendfileMinSize;
+    private final SendfileLinks sendfileLinks;
 
-    public Responses(HttpServletResponse httpServletResponse) {
+    public Responses(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse,
+                     @Value("${online.server.responses.sendfile-min-size:8KB}") DataSize sendfileMinSize,
+                     SendfileLinks sendfileLinks) {
+        this.httpServletRequest = httpServletRequest;
         this.httpServletResponse = httpServletResponse;
+        this.sendfileMinSize = sendfileMinSize.toBytes();
+        this.sendfileLinks = sendfileLinks;
+    }
+
+    /**
+     * Set the validators (ETag, Last-Modified) of the content served, answering 304 Not Modified if the conditional
+     * request matches them
+     *
+     * @param validator Validators of the content, null if not known
+     * @return true if not modified, no content must be served
+     */
+    public boolean notModified(final ContentValidator validator) {
+        return notModified(validator, false);
+    }
+
+    /**
+     * Set the validators (ETag, Last-Modified) of the content served, answering 304 Not Modified if the conditional
+     * request matches them
+     *
+     * @param validator  Validators of the content, null if not known
+     * @param compressed true if serving the compressed variant, which has an ETag of its own
+     * @return true if not modified, no content must be served
+     */
+    public boolean notModified(final ContentValidator validator, final boolean compressed) {
+        if (validator == null) {
+            return false;
+        }
+        // the clients must still revalidate every time, see streamFile
+        httpServletResponse.setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noCache().getHeaderValue());
+        final var etag = compressed && validator.contentHash() != null ? validator.contentHash() + GZIP_ETAG_SUFFIX : validator.contentHash();
+        return new ServletWebRequest(httpServletRequest, httpServletResponse)
+                .checkNotModified(etag, validator.produced().toEpochMilli());
+    }
+
+    /**
+     * Negotiate the encoding of the content served: the compressed variant is served if there is one and the client
+     * accepts gzip, unless requesting ranges which are only served of the content itself
+     *
+     * @param compressedVariant The gzip compressed variant of the content, null if none
+     * @return true if the compressed variant is to be served
+     */
+    public boolean acceptsCompressed(final Path compressedVariant) {
+        if (compressedVariant == null) {
+            return false;
+        }
+        // the response depends on the Accept-Encoding whether compressed or not
+        httpServletResponse.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        return httpServletRequest.getHeader(HttpHeaders.RANGE) == null
+                && acceptsGzip(httpServletRequest.getHeader(HttpHeaders.ACCEPT_ENCODING));
     }
 
+    /**
+     * Stream the file. Files of at least sendfile-min-size are handed to the container when it supports sendfile,
+     * transferring the file to the socket in the kernel after the handler returns, without copying it through the heap.
+     * The container opens the file by name then, so it is handed a hard link to the file, which stays valid when the
+     * file is evicted meanwhile (see {@link SendfileLinks}). Smaller files are copied through a heap buffer from a
+     * channel opened here: sendfile beats copying from about 8KB on (see FileServingBenchmark, eg the images of this
+     * setup of about 14KB), below that the copy is cheaper. Copying through the heap buffer is also cheaper than
+     * FileChannel.transferTo the response, which copies through a direct buffer and a byte array.
+     * <p>
+     * Range requests are answered with 206 Partial Content, one or more parts (multipart/byteranges) of the file
+     * transferred from their positions in the file, so resuming a download does not transfer the whole file again.
+     */
     public void streamFile(final String contentType, final Path fileToStream) {
+        streamFile(contentType, fileToStream, false);
+    }
+
+    /**
+     * Stream the file, possibly the gzip compressed variant of the content
+     *
+     * @see #streamFile(String, Path)
+     * @see #acceptsCompressed(Path)
+     */
+    public void streamFile(final String contentType, final Path fileToStream, final boolean compressed) {
+        httpServletResponse.setContentType(contentType);
+        if (compressed) {
+            httpServletResponse.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+        } else {
+            httpServletResponse.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        }
+
+        // Headers that help downstream clients to cache the content served are left out since we do not want the
+        // clients to cache anything in this setup, apart from revalidating using the validators, see notModified...
+
+        // the file stays readable while open, even when evicted meanwhile
+        try (final var file = FileChannel.open(fileToStream)) {
+            final long size = file.size();
+            final List<HttpRange> ranges = compressed ? List.of() : requestedRanges();
+            if (ranges.isEmpty()) {
+                httpServletResponse.setContentLengthLong(size);
+                if (!sendfile(fileToStream, 0L, size)) {
+                    transfer(file, 0L, size);
+                }
+                return;
+            }
+
+            final var regions = satisfiable(ranges, size);
+            if (regions.isEmpty()) {
+                httpServletResponse.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+                httpServletResponse.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+                httpServletResponse.setContentLength(0);
+                return;
+            }
+            if (regions.stream().mapToLong(region -> region[1] - region[0] + 1).sum() > size) {
+                // overlapping ranges, not worth serving more than the whole file
+                httpServletResponse.setContentLengthLong(size);
+                transfer(file, 0L, size);
+                return;
+            }
+            httpServletResponse.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+            if (regions.size() == 1) {
+                final long first = regions.getFirst()[0];
+                final long last = regions.getFirst()[1];
+                httpServletResponse.setHeader(HttpHeaders.CONTENT_RANGE, contentRange(first, last, size));
+                httpServletResponse.setContentLengthLong(last - first + 1);
+                if (!sendfile(fileToStream, first, last + 1)) {
+                    transfer(file, first, last - first + 1);
+                }
+                return;
+            }
+            transferParts(file, contentType, regions, size);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The byte ranges requested, empty if the whole file is requested, If-Range does not match the ETag or the Range
+     * header is invalid
+     */
+    private List<HttpRange> requestedRanges() {
+        final var range = httpServletRequest.getHeader(HttpHeaders.RANGE);
+        if (range == null || !HttpMethod.GET.matches(httpServletRequest.getMethod())) {
+            return List.of();
+        }
+        final var ifRange = httpServletRequest.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange != null && !ifRange.equals(httpServletResponse.getHeader(HttpHeaders.ETAG))) {
+            // changed since the client got the first part, or a date which is not a strong validator
+            return List.of();
+        }
+        try {
+            return HttpRange.parseRanges(range);
+        } catch (IllegalArgumentException e) {
+            // invalid or too many ranges, ignored
+            return List.of();
+        }
+    }
+
+    /**
+     * Whether the Accept-Encoding accepts gzip, ie gzip or * without q=0
+     */
+    static boolean acceptsGzip(final String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (var coding : acceptEncoding.split(",")) {
+            final var parameters = coding.split(";");
+            final var name = parameters[0].strip();
+            if (name.equalsIgnoreCase("gzip") || name.equals("*")) {
+                return parameters.length < 2 || qualityOf(parameters[1].strip()) > 0.0;
+            }
+        }
+        return false;
+    }
+
+    private static double qualityOf(final String parameter) {
+        if (!parameter.startsWith("q=")) {
+            return 1.0;
+        }
+        try {
+            return Double.parseDouble(parameter.substring(2));
+        } catch (NumberFormatException e) {
+            return 0.0;
+        }
+    }
+
+    /**
+     * The first and last positions of the ranges within the file
+     */
+    private static List<long[]> satisfiable(final List<HttpRange> ranges, final long size) {
+        final var regions = new ArrayList<long[]>(ranges.size());
+        for (var range : ranges) {
+            final long first = range.getRangeStart(size);
+            if (first < size) {
+                regions.add(new long[]{first, range.getRangeEnd(size)});
+            }
+        }
+        return regions;
+    }
+
+    /**
+     * Transfer the regions of the file as the parts of a multipart/byteranges body
+     */
+    private void transferParts(final FileChannel file, final String contentType, final List<long[]> regions, final long size) throws IOException {
+        final var boundary = MimeTypeUtils.generateMultipartBoundaryString();
+        httpServletResponse.setContentType("multipart/byteranges; boundary=" + boundary);
+        final var out = httpServletResponse.getOutputStream();
+        for (var region : regions) {
+            out.write(("\r\n--" + boundary + "\r\n"
+                    + HttpHeaders.CONTENT_TYPE + ": " + contentType + "\r\n"
+                    + HttpHeaders.CONTENT_RANGE + ": " + contentRange(region[0], region[1], size) + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            copy(file, region[0], region[1] - region[0] + 1, out);
+        }
+        out.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private void transfer(final FileChannel file, final long position, final long count) throws IOException {
+        copy(file, position, count, httpServletResponse.getOutputStream());
+    }
+
+    /**
+     * Copy count bytes from the position of the file through a heap buffer, the servlet output stream only takes byte
+     * arrays
+     */
+    private static void copy(final FileChannel file, final long position, final long count, final OutputStream out) throws IOException {
+        final var buffer = ByteBuffer.allocate((int) Math.min(count, STREAM_BUFFER_SIZE));
+        final long end = position + count;
+        for (long at = position; at < end; ) {
+            final int read = file.read(buffer.clear().limit((int) Math.min(buffer.capacity(), end - at)), at);
+            if (read <= 0) {
+                throw new IOException("File truncated while streaming");
+            }
+            out.write(buffer.array(), 0, read);
+            at += read;
+        }
+    }
+
+    private static String contentRange(final long first, final long last, final long size) {
+        return "bytes " + first + "-" + last + "/" + size;
+    }
+
+    /**
+     * Have the container send the bytes from start (inclusive) to end (exclusive) of the file if supported and large
+     * enough
+     */
+    private boolean sendfile(final Path fileToStream, final long start, final long end) {
+        if (end - start < sendfileMinSize
+                || !Boolean.TRUE.equals(httpServletRequest.getAttribute(SENDFILE_SUPPORTED))
+                || fileToStream.getFileSystem() != FileSystems.getDefault()) {
+            return false;
+        }
+        final Path link;
+        try {
+            link = sendfileLinks.link(fileToStream);
+        } catch (IOException | UnsupportedOperationException e) {
+            // evicted since opened, or no hard links: copied from the channel still open
+            return false;
+        }
+        httpServletRequest.setAttribute(SENDFILE_FILENAME, link.toAbsolutePath().toString());
+        httpServletRequest.setAttribute(SENDFILE_START, start);
+        httpServletRequest.setAttribute(SENDFILE_END, end);
+        return true;
+    }
+
+    public void streamBytes(final String contentType, final ByteBuffer bytesToStream) {
         httpServletResponse.setContentType(contentType);
 
-        // This is also the place to set up response headers that help downstream clients to cache the content being
-        // served. These are specifically left out since we do not want the clients to cache anything in this setup...
+        try (final var out = Channels.newChannel(httpServletResponse.getOutputStream())) {
+            httpServletResponse.setContentLength(bytesToStream.remaining());
+            while (bytesToStream.hasRemaining()) {
+                out.write(bytesToStream);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Stream the content as it is read from the channel, eg from a file still being produced, flushing what is read
+     * so the client gets the first bytes early. The length is not known up front, so the response is chunked and
+     * ranges are not supported. The channel is closed when done.
+     */
+    public void streamChannel(final String contentType, final ReadableByteChannel channelToStream) {
+        httpServletResponse.setContentType(contentType);
+
+        final var buffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+        try (channelToStream; final var out = httpServletResponse.getOutputStream()) {
+            while (channelToStream.read(buffer) >= 0) {
+                out.write(buffer.array(), 0, buffer.position());
+                out.flush();
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-        try (final var out = httpServletResponse.getOutputStream()) {
-            httpServletResponse.setContentLengthLong(Files.size(fileToStream));
-            Files.copy(fileToStream, out);
+    /**
+     * Response entity for the file, used by asynchronous handlers where the HttpServletResponse is not available
+     */
+    public ResponseEntity<Resource> fileEntity(final MediaType contentType, final Path file, final ContentValidator validator) {
+        try {
+            final var entity = ResponseEntity.ok();
+            if (validator != null) {
+                // conditional requests are answered with 304 Not Modified when returning the entity
+                entity.cacheControl(CacheControl.noCache()).lastModified(validator.produced());
+                if (validator.contentHash() != null) {
+                    entity.eTag(validator.contentHash());
+                }
+            }
+            return entity
+                    .contentType(contentType)
+                    .contentLength(Files.size(file))
+                    .body(new FileSystemResource(file));
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.test.filecache.api;
+
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hard links to the files handed to the container to send using sendfile. The container opens the file by name after
+ * the handler returns, when the file cached might already be evicted (renamed or deleted). The link is a handle of its
+ * own on the content, next to the file so on the same file system, kept until the container has surely opened it.
+ */
+@Component
+public class SendfileLinks implements AutoCloseable {
+    /**
+     * Time the links are kept, the container opens the file right after the handler returns
+     */
+    static final Duration LINK_TIME_TO_LIVE = Duration.ofSeconds(10);
+
+    private final AtomicLong linkSequence = new AtomicLong();
+    private final Set<Path> links = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("sendfile-links").factory());
+
+    /**
+     * Link the file, the link removed after {@link #LINK_TIME_TO_LIVE}
+     *
+     * @param file The file to send
+     * @return The link to hand to the container
+     * @throws IOException                   If the file is gone, eg evicted meanwhile
+     * @throws UnsupportedOperationException If the file system does not support hard links
+     */
+    Path link(final Path file) throws IOException {
+        final var link = Files.createLink(
+                file.resolveSibling(file.getFileName() + ".sendfile" + linkSequence.incrementAndGet()), file);
+        links.add(link);
+        scheduler.schedule(() -> delete(link), LINK_TIME_TO_LIVE.toNanos(), TimeUnit.NANOSECONDS);
+        return link;
+    }
+
+    private void delete(final Path link) {
+        links.remove(link);
+        try {
+            Files.deleteIfExists(link);
+        } catch (IOException ignored) {
+            // reclaimed with the cache directory
+        }
+    }
+
+    /**
+     * Remove the links left right away
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        links.forEach(this::delete);
+    }
+}
@@ -15,6 +15,7 @@
  */
 package eu.bankopladerne.online.server.test.filecache.configuration;
 
+import eu.bankopladerne.online.server.filecache.CacheFactory;
 import eu.bankopladerne.online.server.filecache.FileCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,6 +23,11 @@ import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.boot.context.properties.bind.DefaultValue;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
 
 /**
  * Configuring the FileCache with some sane defaults (configurable)
@@ -33,13 +39,114 @@ public class FileCacheConfiguration {
     @Bean
     public FileCache fileCache(FileCacheConfig cacheConfig) {
         LOGGER.info(cacheConfig.toString());
-        return new FileCache(cacheConfig.maxFilesToCache(), cacheConfig.minSpacePercent(), cacheConfig.maxConcurrency());
+        final var builder = FileCache.builder()
+                .maxFilesToCache(cacheConfig.maxFilesToCache())
+                .minFreeSpacePercent(cacheConfig.minSpacePercent())
+                .maxConcurrency(cacheConfig.maxConcurrency())
+                .cacheFactory(cacheFactory(cacheConfig))
+                .freeSpaceSampling(cacheConfig.freeSpaceSampleInterval(), cacheConfig.freeSpaceResampleAfter().toBytes())
+                .singleFlight(cacheConfig.singleFlight())
+                .hashedFileNames(cacheConfig.hashedFileNames())
+                .contentHashes(cacheConfig.contentHashes());
+        if (cacheConfig.maxBytesToCache().toBytes() > 0L) {
+            builder.maxBytesToCache(cacheConfig.maxBytesToCache().toBytes());
+        }
+        if (cacheConfig.deletionBacklog() > 0) {
+            builder.asyncDeletion(cacheConfig.deletionBacklog(), cacheConfig.deletionBatchSize());
+        }
+        if (cacheConfig.memoryTierMaxBytes().toBytes() > 0L) {
+            builder.memoryTier(cacheConfig.memoryTierMaxBytes().toBytes(),
+                    Math.toIntExact(cacheConfig.memoryTierMaxFileSize().toBytes()), cacheConfig.memoryTierPromoteAfterHits());
+        }
+        if (cacheConfig.timeToLive() != null) {
+            builder.timeToLive(cacheConfig.timeToLive()).refreshAhead(cacheConfig.refreshAhead());
+        }
+        if (cacheConfig.failureBackoff() != null) {
+            builder.failureBackoff(cacheConfig.failureBackoff(), cacheConfig.failureBackoffMax(), cacheConfig.maxConcurrentRetries());
+        }
+        if (cacheConfig.maxConcurrentProductions() > 0) {
+            builder.maxConcurrentProductions(cacheConfig.maxConcurrentProductions(), cacheConfig.maxQueuedProductions(),
+                    cacheConfig.maxProductionWait(), cacheConfig.prioritizeWaitedOn());
+        }
+        if (cacheConfig.compressibleSuffixes() != null && !cacheConfig.compressibleSuffixes().isEmpty()) {
+            builder.compressedVariants(objectName -> cacheConfig.compressibleSuffixes().stream().anyMatch(objectName::endsWith));
+        }
+        if (cacheConfig.scrubInterval() != null) {
+            builder.scrubbing(cacheConfig.scrubInterval(), cacheConfig.scrubFilesPerInterval());
+        }
+        if (cacheConfig.reconcileInterval() != null) {
+            builder.reconciling(cacheConfig.reconcileInterval(), cacheConfig.reconcileGracePeriod());
+        }
+        if (cacheConfig.storageDirectories() != null && !cacheConfig.storageDirectories().isEmpty()) {
+            // shard the files cached across directories, eg on different volumes
+            builder.tempPaths(cacheConfig.storageDirectories());
+        }
+        if (cacheConfig.persistentDirectory() != null) {
+            // keep the files cached across restarts
+            builder.tempPath(cacheConfig.persistentDirectory()).persistent(true);
+        }
+        return builder.build();
+    }
+
+    @Bean
+    public FileCacheMetrics fileCacheMetrics(FileCache fileCache) {
+        return new FileCacheMetrics(fileCache);
+    }
+
+    private static CacheFactory cacheFactory(FileCacheConfig cacheConfig) {
+        return switch (cacheConfig.cacheImplementation()) {
+            case SIMPLEST -> CacheFactory.simplest();
+            case SEGMENTED -> CacheFactory.segmented(cacheConfig.cacheSegments());
+            case CONCURRENT_LRU -> CacheFactory.concurrentLru();
+            case TINY_LFU -> CacheFactory.tinyLfu();
+        };
+    }
+
+    /**
+     * The cache implementations available for the FileCache
+     */
+    public enum CacheImplementation {
+        SIMPLEST,
+        SEGMENTED,
+        CONCURRENT_LRU,
+        TINY_LFU
     }
 
     @ConfigurationProperties("online.server.file-cache.config")
     public record FileCacheConfig(
             @DefaultValue("1000") int maxFilesToCache,
             @DefaultValue("20.0") double minSpacePercent,
-            @DefaultValue("10") int maxConcurrency) {
+            @DefaultValue("10") int maxConcurrency,
+            @DefaultValue("SIMPLEST") CacheImplementation cacheImplementation,
+            @DefaultValue("16") int cacheSegments,
+            @DefaultValue("0") DataSize maxBytesToCache,
+            @DefaultValue("1s") Duration freeSpaceSampleInterval,
+            @DefaultValue("10MB") DataSize freeSpaceResampleAfter,
+            @DefaultValue("1000") int deletionBacklog,
+            @DefaultValue("100") int deletionBatchSize,
+            @DefaultValue("true") boolean singleFlight,
+            Path persistentDirectory,
+            @DefaultValue("false") boolean hashedFileNames,
+            @DefaultValue("0") DataSize memoryTierMaxBytes,
+            @DefaultValue("64KB") DataSize memoryTierMaxFileSize,
+            @DefaultValue("2") int memoryTierPromoteAfterHits,
+            Duration timeToLive,
+            @DefaultValue("0s") Duration refreshAhead,
+            Duration failureBackoff,
+            @DefaultValue("5m") Duration failureBackoffMax,
+            @DefaultValue("4") int maxConcurrentRetries,
+            @DefaultValue("0") int maxConcurrentProductions,
+            @DefaultValue("100") int maxQueuedProductions,
+            @DefaultValue("5s") Duration maxProductionWait,
+            @DefaultValue("true") boolean prioritizeWaitedOn,
+            @DefaultValue("0") int warmUpNumbers,
+            Path warmUpAccessLog,
+            @DefaultValue("true") boolean contentHashes,
+            List<String> compressibleSuffixes,
+            List<Path> storageDirectories,
+            Duration scrubInterval,
+            @DefaultValue("100") int scrubFilesPerInterval,
+            Duration reconcileInterval,
+            @DefaultValue("10m") Duration reconcileGracePeriod) {
     }
 }
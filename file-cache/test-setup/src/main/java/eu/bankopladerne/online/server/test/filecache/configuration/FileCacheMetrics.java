@@ -0,0 +1,111 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.test.filecache.configuration;
+
+import eu.bankopladerne.online.server.filecache.FileCache;
+import eu.bankopladerne.online.server.filecache.FileCacheStats;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.BaseUnits;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exposes the statistics of the FileCache as Micrometer meters, eg on the actuator metrics endpoint
+ */
+public class FileCacheMetrics implements MeterBinder {
+    private final FileCache fileCache;
+
+    public FileCacheMetrics(FileCache fileCache) {
+        this.fileCache = fileCache;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        final var stats = fileCache.stats();
+
+        FunctionCounter.builder("filecache.requests", stats, FileCacheStats::hits)
+                .tag("result", "hit")
+                .description("Requests served by objects cached")
+                .register(registry);
+        FunctionCounter.builder("filecache.requests", stats, FileCacheStats::misses)
+                .tag("result", "miss")
+                .description("Requests for objects not cached")
+                .register(registry);
+
+        FunctionTimer.builder("filecache.produce", stats, FileCacheStats::productions,
+                        s -> s.produceTime().toNanos(), TimeUnit.NANOSECONDS)
+                .description("Objects produced")
+                .register(registry);
+        FunctionCounter.builder("filecache.produce.failures", stats, FileCacheStats::productionFailures)
+                .description("Productions failed")
+                .register(registry);
+        FunctionCounter.builder("filecache.produce.rejected", stats, FileCacheStats::productionsRejected)
+                .description("Productions rejected by admission control")
+                .register(registry);
+        final var buckets = FileCacheStats.produceTimeBuckets();
+        for (int i = 0; i <= buckets.size(); i++) {
+            final int bucket = i;
+            FunctionCounter.builder("filecache.produce.histogram", stats, s -> s.produceTimeHistogram()[bucket])
+                    .tag("le", bucket < buckets.size() ? Long.toString(buckets.get(bucket).toMillis()) : "+Inf")
+                    .description("Objects produced within the time in milliseconds given by the le tag, not cumulative")
+                    .register(registry);
+        }
+        Gauge.builder("filecache.producing", stats, FileCacheStats::producing)
+                .description("Objects being produced")
+                .register(registry);
+
+        for (var cause : FileCacheStats.EvictionCause.values()) {
+            FunctionCounter.builder("filecache.evictions", stats, s -> s.evictions(cause))
+                    .tag("cause", cause.name().toLowerCase(Locale.ROOT))
+                    .description("Files evicted")
+                    .register(registry);
+        }
+        FunctionCounter.builder("filecache.scrubbed", stats, FileCacheStats::filesScrubbed)
+                .description("Files verified by the scrubber")
+                .register(registry);
+        FunctionCounter.builder("filecache.orphans.reclaimed", stats, FileCacheStats::orphansReclaimed)
+                .description("Orphan files reclaimed by the reconciler")
+                .register(registry);
+        FunctionCounter.builder("filecache.orphans.reclaimed.bytes", stats, FileCacheStats::orphanBytesReclaimed)
+                .description("Bytes of orphan files reclaimed by the reconciler")
+                .baseUnit(BaseUnits.BYTES)
+                .register(registry);
+
+        Gauge.builder("filecache.size", stats, FileCacheStats::bytesCached)
+                .tag("tier", "disk")
+                .baseUnit(BaseUnits.BYTES)
+                .description("Bytes cached")
+                .register(registry);
+        Gauge.builder("filecache.size", fileCache, FileCache::bytesInMemory)
+                .tag("tier", "memory")
+                .baseUnit(BaseUnits.BYTES)
+                .description("Bytes cached")
+                .register(registry);
+        Gauge.builder("filecache.files", stats, FileCacheStats::filesCached)
+                .description("Files cached")
+                .register(registry);
+
+        FunctionCounter.builder("filecache.lock.wait", stats, s -> s.lockWaitTime().toNanos() / 1e9)
+                .baseUnit("seconds")
+                .description("Time spent waiting for locks")
+                .register(registry);
+    }
+}
@@ -22,20 +22,29 @@ import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.List;
 
 import static org.hamcrest.Matchers.containsString;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @ActiveProfiles("test")
 @Import({
         FileCacheConfiguration.class,
         NumbersImageController.class,
-        Responses.class
+        Responses.class,
+        SendfileLinks.class
 })
 @WebMvcTest(NumbersImageController.class)
 class NumbersImageControllerTest {
@@ -49,11 +58,66 @@ class NumbersImageControllerTest {
                 .andExpect(content().contentType(MediaType.IMAGE_PNG));
     }
 
+    @Test
+    void getPngAsync_sunshine_succeeds() throws Exception {
+        final var result = mockMvc.perform(get(NumbersImageController.BASE_PATH + "/async/200"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.IMAGE_PNG));
+    }
+
+    @Test
+    void getPngStreaming_sunshine_succeeds() throws Exception {
+        final var streamed = mockMvc.perform(get(NumbersImageController.BASE_PATH + "/stream/500"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.IMAGE_PNG))
+                .andReturn().getResponse().getContentAsByteArray();
+
+        mockMvc.perform(get(NumbersImageController.BASE_PATH + "/500"))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes(streamed));
+    }
+
+    @Test
+    void getPng_ifNoneMatchETag_notModified() throws Exception {
+        final var etag = mockMvc.perform(get(NumbersImageController.BASE_PATH + "/300"))
+                .andExpect(status().isOk())
+                .andExpect(header().exists(HttpHeaders.ETAG))
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+
+        mockMvc.perform(get(NumbersImageController.BASE_PATH + "/300").header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(status().isNotModified())
+                .andExpect(content().bytes(new byte[0]));
+    }
+
+    @Test
+    void getPngAsync_ifNoneMatchETag_notModified() throws Exception {
+        final var etag = mockMvc.perform(get(NumbersImageController.BASE_PATH + "/400"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+
+        final var result = mockMvc.perform(get(NumbersImageController.BASE_PATH + "/async/400").header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isNotModified());
+    }
+
     @Configuration
     static class NumbersImageControllerTestConfiguration {
         @Bean
         public FileCacheConfiguration.FileCacheConfig fileCacheConfig() {
-            return new FileCacheConfiguration.FileCacheConfig(100, 10, 100);
+            return new FileCacheConfiguration.FileCacheConfig(100, 10, 100,
+                    FileCacheConfiguration.CacheImplementation.CONCURRENT_LRU, 4, DataSize.ofMegabytes(10),
+                    Duration.ofSeconds(1), DataSize.ofMegabytes(1), 100, 10,
+                    true, null, true, DataSize.ofMegabytes(1), DataSize.ofKilobytes(64), 1,
+                    Duration.ofMinutes(10), Duration.ofMinutes(1), Duration.ofSeconds(1), Duration.ofMinutes(1), 4, 2, 10, Duration.ofSeconds(5), true,
+                    0, null, true, List.of(".png"), null, Duration.ofMinutes(1), 10,
+                    null, Duration.ofMinutes(10));
         }
     }
 }
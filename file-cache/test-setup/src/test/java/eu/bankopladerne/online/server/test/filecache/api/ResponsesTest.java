@@ -0,0 +1,277 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.test.filecache.api;
+
+import eu.bankopladerne.online.server.filecache.ContentValidator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ResponsesTest {
+    private final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/file");
+    private final MockHttpServletResponse response = new MockHttpServletResponse();
+    private final SendfileLinks sendfileLinks = new SendfileLinks();
+    private final Responses responses = new Responses(request, response, DataSize.ofKilobytes(1), sendfileLinks);
+
+    @TempDir
+    private Path tempDir;
+
+    @AfterEach
+    void tearDown() {
+        sendfileLinks.close();
+    }
+
+    @Test
+    void streamFile_sendfileNotSupported_transfersFile() throws IOException {
+        // Given
+        final var file = file(2048);
+
+        // When
+        responses.streamFile(MediaType.IMAGE_PNG_VALUE, file);
+
+        // Then
+        assertThat(response.getContentType()).isEqualTo(MediaType.IMAGE_PNG_VALUE);
+        assertThat(response.getContentLengthLong()).isEqualTo(2048L);
+        assertThat(response.getContentAsByteArray()).isEqualTo(Files.readAllBytes(file));
+        assertThat(request.getAttribute(Responses.SENDFILE_FILENAME)).isNull();
+    }
+
+    @Test
+    void streamFile_sendfileSupported_leavesFileToContainer() throws IOException {
+        // Given
+        request.setAttribute(Responses.SENDFILE_SUPPORTED, Boolean.TRUE);
+        final var file = file(2048);
+
+        // When
+        responses.streamFile(MediaType.IMAGE_PNG_VALUE, file);
+
+        // Then
+        assertThat(response.getContentLengthLong()).isEqualTo(2048L);
+        assertThat(response.getContentAsByteArray()).isEmpty();
+        final var link = Path.of((String) request.getAttribute(Responses.SENDFILE_FILENAME));
+        assertThat(link).isNotEqualTo(file.toAbsolutePath()).hasSameBinaryContentAs(file);
+        assertThat(request.getAttribute(Responses.SENDFILE_START)).isEqualTo(0L);
+        assertThat(request.getAttribute(Responses.SENDFILE_END)).isEqualTo(2048L);
+    }
+
+    @Test
+    void streamFile_sendfileSupportedFileEvicted_containerStillReadsFile() throws IOException {
+        // Given
+        request.setAttribute(Responses.SENDFILE_SUPPORTED, Boolean.TRUE);
+        final var file = file(2048);
+        final var content = Files.readAllBytes(file);
+        responses.streamFile(MediaType.IMAGE_PNG_VALUE, file);
+
+        // When - evicted before the container opens the file
+        Files.delete(file);
+
+        // Then
+        final var link = Path.of((String) request.getAttribute(Responses.SENDFILE_FILENAME));
+        assertThat(Files.readAllBytes(link)).isEqualTo(content);
+    }
+
+    @Test
+    void close_linksLeft_removesLinks() throws IOException {
+        // Given
+        request.setAttribute(Responses.SENDFILE_SUPPORTED, Boolean.TRUE);
+        final var file = file(2048);
+        responses.streamFile(MediaType.IMAGE_PNG_VALUE, file);
+        final var link = Path.of((String) request.getAttribute(Responses.SENDFILE_FILENAME));
+
+        // When
+        sendfileLinks.close();
+
+        // Then
+        assertThat(link).doesNotExist();
+        assertThat(file).exists();
+    }
+
+    @Test
+    void streamFile_sendfileSupportedSmallFile_transfersFile() throws IOException {
+        // Given
+        request.setAttribute(Responses.SENDFILE_SUPPORTED, Boolean.TRUE);
+        final var file = file(100);
+
+        // When
+        responses.streamFile(MediaType.IMAGE_PNG_VALUE, file);
+
+        // Then
+        assertThat(response.getContentAsByteArray()).isEqualTo(Files.readAllBytes(file));
+        assertThat(request.getAttribute(Responses.SENDFILE_FILENAME)).isNull();
+    }
+
+    @Test
+    void streamFile_singleRange_partialContent() throws IOException {
+        // Given
+        request.addHeader(HttpHeaders.RANGE, "bytes=100-199");
+        final var file = file(2048);
+
+        // When
+        responses.streamFile(MediaType.IMAGE_PNG_VALUE, file);
+
+        // Then
+        assertThat(response.getStatus()).isEqualTo(206);
+        assertThat(response.getHeader(HttpHeaders.CONTENT_RANGE)).isEqualTo("bytes 100-199/2048");
+        assertThat(response.getContentLengthLong()).isEqualTo(100L);
+        assertThat(response.getContentAsByteArray()).isEqualTo(Arrays.copyOfRange(Files.readAllBytes(file), 100, 200));
+    }
+
+    @Test
+    void streamFile_suffixRangeSendfileSupported_leavesRangeToContainer() throws IOException {
+        // Given
+        request.setAttribute(Responses.SENDFILE_SUPPORTED, Boolean.TRUE);
+        request.addHeader(HttpHeaders.RANGE, "bytes=-1500");
+        final var file = file(2048);
+
+        // When
+        responses.streamFile(MediaType.IMAGE_PNG_VALUE, file);
+
+        // Then
+        assertThat(response.getStatus()).isEqualTo(206);
+        assertThat(response.getHeader(HttpHeaders.CONTENT_RANGE)).isEqualTo("bytes 548-2047/2048");
+        assertThat(response.getContentAsByteArray()).isEmpty();
+        assertThat(request.getAttribute(Responses.SENDFILE_START)).isEqualTo(548L);
+        assertThat(request.getAttribute(Responses.SENDFILE_END)).isEqualTo(2048L);
+    }
+
+    @Test
+    void streamFile_multipleRanges_multipartByteranges() throws IOException {
+        // Given
+        request.addHeader(HttpHeaders.RANGE, "bytes=0-9,2000-");
+        final var file = file(2048);
+
+        // When
+        responses.streamFile(MediaType.IMAGE_PNG_VALUE, file);
+
+        // Then
+        assertThat(response.getStatus()).isEqualTo(206);
+        assertThat(response.getContentType()).startsWith("multipart/byteranges; boundary=");
+        final var body = response.getContentAsString(StandardCharsets.ISO_8859_1);
+        final var content = new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+        assertThat(body)
+                .contains("Content-Range: bytes 0-9/2048\r\n\r\n" + content.substring(0, 10) + "\r\n--")
+                .contains("Content-Range: bytes 2000-2047/2048\r\n\r\n" + content.substring(2000) + "\r\n--")
+                .endsWith("--\r\n");
+    }
+
+    @Test
+    void streamFile_rangeBeyondFile_notSatisfiable() throws IOException {
+        // Given
+        request.addHeader(HttpHeaders.RANGE, "bytes=4096-");
+        final var file = file(2048);
+
+        // When
+        responses.streamFile(MediaType.IMAGE_PNG_VALUE, file);
+
+        // Then
+        assertThat(response.getStatus()).isEqualTo(416);
+        assertThat(response.getHeader(HttpHeaders.CONTENT_RANGE)).isEqualTo("bytes */2048");
+        assertThat(response.getContentAsByteArray()).isEmpty();
+    }
+
+    @Test
+    void streamFile_ifRangeNotMatchingETag_wholeFile() throws IOException {
+        // Given
+        response.setHeader(HttpHeaders.ETAG, "\"current\"");
+        request.addHeader(HttpHeaders.RANGE, "bytes=100-199");
+        request.addHeader(HttpHeaders.IF_RANGE, "\"previous\"");
+        final var file = file(2048);
+
+        // When
+        responses.streamFile(MediaType.IMAGE_PNG_VALUE, file);
+
+        // Then
+        assertThat(response.getStatus()).isEqualTo(200);
+        assertThat(response.getContentAsByteArray()).isEqualTo(Files.readAllBytes(file));
+    }
+
+    @Test
+    void acceptsCompressed_acceptEncodingGzip_servesCompressed() throws IOException {
+        // Given
+        request.addHeader(HttpHeaders.ACCEPT_ENCODING, "br, gzip;q=0.8");
+        final var compressed = file(100);
+
+        // When
+        final var accepted = responses.acceptsCompressed(compressed);
+
+        // Then
+        assertThat(accepted).isTrue();
+        assertThat(response.getHeader(HttpHeaders.VARY)).isEqualTo(HttpHeaders.ACCEPT_ENCODING);
+    }
+
+    @Test
+    void acceptsCompressed_gzipNotAcceptedOrRange_servesContent() throws IOException {
+        // Given
+        final var compressed = file(100);
+        request.addHeader(HttpHeaders.ACCEPT_ENCODING, "gzip");
+        request.addHeader(HttpHeaders.RANGE, "bytes=0-9");
+
+        // When/Then
+        assertThat(responses.acceptsCompressed(compressed)).isFalse();
+        assertThat(responses.acceptsCompressed(null)).isFalse();
+        assertThat(Responses.acceptsGzip("gzip;q=0, identity")).isFalse();
+        assertThat(Responses.acceptsGzip("deflate")).isFalse();
+        assertThat(Responses.acceptsGzip("*")).isTrue();
+    }
+
+    @Test
+    void streamFile_compressed_contentEncodingGzip() throws IOException {
+        // Given
+        final var compressed = file(100);
+
+        // When
+        responses.streamFile(MediaType.IMAGE_PNG_VALUE, compressed, true);
+
+        // Then
+        assertThat(response.getHeader(HttpHeaders.CONTENT_ENCODING)).isEqualTo("gzip");
+        assertThat(response.getHeader(HttpHeaders.ACCEPT_RANGES)).isNull();
+        assertThat(response.getContentAsByteArray()).isEqualTo(Files.readAllBytes(compressed));
+    }
+
+    @Test
+    void notModified_compressedETagMatches_notModified() {
+        // Given
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, "\"abc" + Responses.GZIP_ETAG_SUFFIX + "\"");
+        final var validator = new ContentValidator("abc", Instant.EPOCH);
+
+        // When/Then
+        assertThat(responses.notModified(validator, false)).isFalse();
+        assertThat(responses.notModified(validator, true)).isTrue();
+        assertThat(response.getStatus()).isEqualTo(304);
+    }
+
+    private Path file(int size) throws IOException {
+        final var content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) i;
+        }
+        return Files.write(tempDir.resolve("file-" + size), content);
+    }
+}
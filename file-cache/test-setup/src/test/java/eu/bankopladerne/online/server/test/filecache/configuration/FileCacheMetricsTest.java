@@ -0,0 +1,59 @@
+/*
+ * Copyright 2024 Jesper Udby
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.bankopladerne.online.server.test.filecache.configuration;
+
+import eu.bankopladerne.online.server.filecache.FileCache;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FileCacheMetricsTest {
+
+    @Test
+    void bindTo_requests_areExposed() throws IOException {
+        // Given
+        final var registry = new SimpleMeterRegistry();
+        try (final var fileCache = FileCache.builder().build()) {
+            new FileCacheMetrics(fileCache).bindTo(registry);
+
+            // When
+            fileCache.produceAndCache("A", (objectName, tempFile) -> write(tempFile));
+            fileCache.produceAndCache("A", (objectName, tempFile) -> write(tempFile));
+
+            // Then
+            assertThat(registry.get("filecache.requests").tag("result", "hit").functionCounter().count()).isEqualTo(1.0);
+            assertThat(registry.get("filecache.requests").tag("result", "miss").functionCounter().count()).isEqualTo(1.0);
+            assertThat(registry.get("filecache.produce").functionTimer().count()).isEqualTo(1.0);
+            assertThat(registry.get("filecache.size").tag("tier", "disk").gauge().value()).isEqualTo(3.0);
+            assertThat(registry.get("filecache.files").gauge().value()).isEqualTo(1.0);
+            assertThat(registry.get("filecache.evictions").tag("cause", "size").functionCounter().count()).isZero();
+        }
+    }
+
+    private static Path write(Path tempFile) {
+        try {
+            return Files.writeString(tempFile, "abc");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}